@@ -0,0 +1,28 @@
+package reactivej.mawashi.nio.benchmarks;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Entry point of benchmarks.jar: runs the JMH suites with the usual JMH command line options
+ * and writes the results as JSON, into jmh-result-{ReactiveJ version}.json unless -rff says otherwise,
+ * so that two releases can be compared before rolling them out
+ */
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        String version = BenchmarkRunner.class.getPackage().getImplementationVersion();
+        Options options = new OptionsBuilder()
+                .parent(commandLine)
+                .resultFormat(commandLine.getResultFormat().orElse(ResultFormatType.JSON))
+                .result(commandLine.getResult().orElse("jmh-result-" + ((version == null) ? "dev" : version) + ".json"))
+                .build();
+        new Runner(options).run();
+    }
+}
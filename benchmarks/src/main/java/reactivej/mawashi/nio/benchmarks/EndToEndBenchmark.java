@@ -0,0 +1,71 @@
+package reactivej.mawashi.nio.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactivej.mawashi.nio.utils.Endpoints;
+import reactivej.mawashi.nio.utils.RestHandler;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Whole request path, from the GenericNioServlet to the non-blocking write of RestHandler#nioResponse,
+ * against an in-process Jetty reached through a LocalConnector: no network is involved
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EndToEndBenchmark {
+
+    @Param({"1", "1000"})
+    int size;
+
+    LocalServer server;
+    ByteBuffer request;
+
+    public static class BenchmarkEndpoints extends Endpoints {
+        BenchmarkEndpoints(int size){
+            List<SerializationBenchmark.ToDo> todos = new ArrayList<>();
+            for(int i=0; i<size; i++) todos.add(new SerializationBenchmark.ToDo(i, "todo number " + i, i % 3 == 0));
+            setEndpoint("/todos" + size, (request, response) -> toJsonResponse(request, response, todos));
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        RestHandler handler = new RestHandler();
+        handler.register(new BenchmarkEndpoints(size));
+        server = new LocalServer(handler);
+        request = LocalServer.get("/todos" + size);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Benchmark
+    public ByteBuffer getJson() throws Exception {
+        return server.send(request);
+    }
+}
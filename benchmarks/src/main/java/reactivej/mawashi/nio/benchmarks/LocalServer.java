@@ -0,0 +1,46 @@
+package reactivej.mawashi.nio.benchmarks;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import reactivej.mawashi.nio.servlets.GenericNioServlet;
+import reactivej.mawashi.nio.utils.RestHandler;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author alessandroargentieri
+ *
+ * In-process Jetty serving a handler through the GenericNioServlet, as ReactiveJ does, reached through a LocalConnector:
+ * the benchmarks of whole requests measure the server and not the network
+ */
+final class LocalServer {
+
+    private final Server server = new Server();
+    private final LocalConnector connector = new LocalConnector(server);
+
+    LocalServer(RestHandler handler) throws Exception {
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setAttribute(RestHandler.CONTEXT_ATTRIBUTE, handler);
+        context.addServlet(GenericNioServlet.class, "/*");
+        server.setHandler(context);
+        server.start();
+    }
+
+    /* the request of a GET on the path, to be sent as a duplicate on each invocation */
+    static ByteBuffer get(String path){
+        return StandardCharsets.US_ASCII.encode("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+    }
+
+    /* the whole raw response */
+    ByteBuffer send(ByteBuffer request) throws Exception {
+        return connector.getResponse(request.duplicate(), 5, TimeUnit.SECONDS);
+    }
+
+    void stop() throws Exception {
+        server.stop();
+    }
+}
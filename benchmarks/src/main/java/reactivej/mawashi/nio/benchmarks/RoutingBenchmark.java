@@ -0,0 +1,79 @@
+package reactivej.mawashi.nio.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reactivej.mawashi.nio.utils.Action;
+import reactivej.mawashi.nio.utils.HttpMethod;
+import reactivej.mawashi.nio.utils.RestHandler;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Route lookup through RestHandler#getEndpointIfMatches and RestHandler#getPathVariables
+ * on tables of 10, 100 and 1000 routes: a literal hit, a hit with path variables and a miss (the /not-found action)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"10", "100", "1000"})
+    int routes;
+
+    RestHandler handler;
+    String literalPath;
+    String variablesPath;
+    String missingPath;
+
+    @Setup
+    public void setUp(){
+        Logger.getLogger("").setLevel(Level.WARNING);
+        Action action = (request, response) -> {};
+        handler = new RestHandler();
+        /* a realistic mix: half literal routes, half routes with path variables */
+        for(int i=0; i<routes; i++){
+            if(i % 2 == 0){
+                handler.addEndpoint(HttpMethod.GET, "/api/v1/resource" + i + "/list", action);
+            } else {
+                handler.addEndpoint(HttpMethod.GET, "/api/v1/resource" + i + "/{id}/items/{itemId}", action);
+            }
+        }
+        literalPath   = "/api/v1/resource" + (routes - 2) + "/list";
+        variablesPath = "/api/v1/resource" + (routes - 1) + "/42/items/7";
+        missingPath   = "/api/v1/unknown/42";
+        /* the routes are compiled once, as ReactiveJ#start does */
+        handler.freeze();
+    }
+
+    @Benchmark
+    public Action literalHit(){
+        return handler.getEndpointIfMatches(literalPath);
+    }
+
+    @Benchmark
+    public Map<String, String> pathVariablesHit(){
+        return handler.getPathVariables(variablesPath);
+    }
+
+    @Benchmark
+    public Action miss(){
+        return handler.getEndpointIfMatches(missingPath);
+    }
+}
@@ -0,0 +1,103 @@
+package reactivej.mawashi.nio.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import reactivej.mawashi.nio.utils.JsonConverter;
+import reactivej.mawashi.nio.utils.PooledBuffer;
+import reactivej.mawashi.nio.utils.XmlConverter;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author alessandroargentieri
+ *
+ * JsonConverter#getJsonOf against XmlConverter#getXmlOf, and the pooled json path used by toJsonResponse,
+ * on a single small object and on a list of 1000 of them
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerializationBenchmark {
+
+    @Param({"1", "1000"})
+    int size;
+
+    Object payload;
+    JsonConverter jsonConverter = JsonConverter.getInstance();
+    XmlConverter  xmlConverter  = XmlConverter.getInstance();
+
+    @Setup
+    public void setUp(){
+        List<ToDo> todos = new ArrayList<>();
+        for(int i=0; i<size; i++){
+            todos.add(new ToDo(i, "todo number " + i, i % 3 == 0));
+        }
+        payload = (size == 1) ? todos.get(0) : new ToDos(todos);
+    }
+
+    @Benchmark
+    public String json(){
+        return jsonConverter.getJsonOf(payload);
+    }
+
+    @Benchmark
+    public int jsonPooled() throws IOException {
+        PooledBuffer buffer = PooledBuffer.acquire();
+        jsonConverter.writeJsonOf(payload, buffer.writer());
+        int size = buffer.size();
+        buffer.release();
+        return size;
+    }
+
+    @Benchmark
+    public String xml(){
+        return xmlConverter.getXmlOf(payload);
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class ToDo {
+        @XmlElement private long id;
+        @XmlElement private String description;
+        @XmlElement private boolean done;
+
+        public ToDo() {}
+
+        public ToDo(long id, String description, boolean done) {
+            this.id = id;
+            this.description = description;
+            this.done = done;
+        }
+    }
+
+    @XmlRootElement
+    @XmlAccessorType(XmlAccessType.FIELD)
+    public static class ToDos {
+        @XmlElement(name = "todo") private List<ToDo> todos;
+
+        public ToDos() {}
+
+        public ToDos(List<ToDo> todos) {
+            this.todos = todos;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package reactivej.mawashi.nio.benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import reactivej.mawashi.nio.utils.Endpoints;
+import reactivej.mawashi.nio.utils.RestHandler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Chunked write path of RestHandler#nioResponse on payloads of growing size, for each write chunk size,
+ * through a whole request against an in-process Jetty reached through a LocalConnector
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WritePathBenchmark {
+
+    @Param({"1024", "204800", "2097152"})
+    int payloadSize;
+
+    /* 1 is the byte per byte baseline the chunked writes are measured against */
+    @Param({"1", "8192", "32768"})
+    int chunkSize;
+
+    LocalServer server;
+    ByteBuffer request;
+
+    public static class PayloadEndpoints extends Endpoints {
+        PayloadEndpoints(int payloadSize){
+            byte[] payload = new byte[payloadSize];
+            for(int i=0; i<payload.length; i++) payload[i] = (byte) ('a' + i % 26);
+            setEndpoint("/payload", (request, response) -> toResponse(request, response, payload, "application/octet-stream"));
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        Logger.getLogger("").setLevel(Level.WARNING);
+        RestHandler handler = new RestHandler().setWriteChunkSize(chunkSize);
+        handler.register(new PayloadEndpoints(payloadSize));
+        server = new LocalServer(handler);
+        request = LocalServer.get("/payload");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Benchmark
+    public ByteBuffer write() throws Exception {
+        return server.send(request);
+    }
+}
@@ -0,0 +1,399 @@
+package reactivej.mawashi.nio.processor;
+
+import reactivej.mawashi.nio.annotations.JsonDto;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.tools.Diagnostic;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Annotation processor which generates, for each class annotated with @JsonDto, a Gson TypeAdapter reading and writing
+ * its fields through plain field accesses or getters and setters: the same json Gson produces by reflection,
+ * without the reflective lookups nor the warm-up they need. The primitive fields are converted in place,
+ * the other ones through the Gson adapters of their types, resolved once when the adapter is created.
+ * It is optional: registered as a service, javac runs it whenever ReactiveJ is on the compile classpath,
+ * and the @JsonDto classes compiled without it are converted by reflection as before
+ */
+@SupportedAnnotationTypes("reactivej.mawashi.nio.annotations.JsonDto")
+public final class JsonDtoProcessor extends AbstractProcessor {
+
+    private static final String SERIALIZED_NAME = "com.google.gson.annotations.SerializedName";
+    private static final String JSON_ADAPTER = "com.google.gson.annotations.JsonAdapter";
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment round) {
+        for(Element element : round.getElementsAnnotatedWith(JsonDto.class)){
+            if(element.getKind() != ElementKind.CLASS){
+                error(element, "@JsonDto applies to classes only");
+                continue;
+            }
+            final TypeElement type = (TypeElement) element;
+            try {
+                final List<Property> properties = propertiesOf(type);
+                if(properties != null) generate(type, properties);
+            } catch (IOException e) {
+                error(type, "cannot write the json adapter: " + e.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /* a serialized field: its json names and how the generated adapter gets and sets it */
+    private static final class Property {
+        private final String   name;
+        private final String[] alternates;
+        private final TypeMirror type;
+        private final String   getter;
+        private final String   setter;
+        private final boolean  field;
+
+        private Property(String name, String[] alternates, TypeMirror type, String getter, String setter, boolean field) {
+            this.name = name;
+            this.alternates = alternates;
+            this.type = type;
+            this.getter = getter;
+            this.setter = setter;
+            this.field = field;
+        }
+
+        private String get(){
+            return field ? "value." + getter : "value." + getter + "()";
+        }
+
+        private String set(final String expression){
+            return field ? "value." + setter + " = " + expression : "value." + setter + "(" + expression + ")";
+        }
+    }
+
+    /* the fields Gson would bind, the class ones first then the ones of its superclasses; null after reporting an error */
+    private List<Property> propertiesOf(final TypeElement type){
+        boolean valid = true;
+        if(type.getModifiers().contains(Modifier.ABSTRACT)){
+            error(type, "a @JsonDto class must not be abstract");
+            valid = false;
+        }
+        if(!type.getTypeParameters().isEmpty()){
+            error(type, "a @JsonDto class must not be generic");
+            valid = false;
+        }
+        for(Element enclosing = type; enclosing.getKind() != ElementKind.PACKAGE; enclosing = enclosing.getEnclosingElement()){
+            if(enclosing.getModifiers().contains(Modifier.PRIVATE)
+                    || (enclosing instanceof TypeElement && ((TypeElement) enclosing).getNestingKind() == NestingKind.MEMBER && !enclosing.getModifiers().contains(Modifier.STATIC))){
+                error(type, "a @JsonDto class must be visible in its package and must not be an inner class");
+                valid = false;
+                break;
+            }
+        }
+        if(!hasNoArgConstructor(type)){
+            error(type, "a @JsonDto class needs a non-private no-arg constructor");
+            valid = false;
+        }
+
+        final List<Property> properties = new ArrayList<>();
+        final Set<String> names = new HashSet<>();
+        final DeclaredType owner = (DeclaredType) type.asType();
+        final List<ExecutableElement> methods = ElementFilter.methodsIn(processingEnv.getElementUtils().getAllMembers(type));
+        for(TypeElement declaring = type; declaring != null; declaring = superclassOf(declaring)){
+            for(VariableElement field : ElementFilter.fieldsIn(declaring.getEnclosedElements())){
+                if(field.getModifiers().contains(Modifier.STATIC) || field.getModifiers().contains(Modifier.TRANSIENT)) continue;
+                if(annotation(field, JSON_ADAPTER) != null){
+                    error(field, "fields with a @JsonAdapter are not supported by the generated adapter");
+                    valid = false;
+                    continue;
+                }
+                final TypeMirror fieldType = processingEnv.getTypeUtils().asMemberOf(owner, field);
+                if(containsTypeVariable(fieldType)){
+                    error(field, "the type of the field must be known in " + type.getSimpleName());
+                    valid = false;
+                    continue;
+                }
+                final Property property = propertyOf(type, field, fieldType, methods);
+                if(property == null){
+                    error(field, "the field must not be private nor final, or have a getter and a setter");
+                    valid = false;
+                    continue;
+                }
+                for(String name : namesOf(property)){
+                    if(!names.add(name)){
+                        error(field, type.getSimpleName() + " declares multiple json fields named " + name);
+                        valid = false;
+                    }
+                }
+                properties.add(property);
+            }
+        }
+        return valid ? properties : null;
+    }
+
+    private Property propertyOf(final TypeElement type, final VariableElement field, final TypeMirror fieldType, final List<ExecutableElement> methods){
+        final String fieldName = field.getSimpleName().toString();
+        String name = fieldName;
+        String[] alternates = new String[0];
+        final AnnotationMirror serializedName = annotation(field, SERIALIZED_NAME);
+        if(serializedName != null){
+            for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : serializedName.getElementValues().entrySet()){
+                if(e.getKey().getSimpleName().contentEquals("value")){
+                    name = (String) e.getValue().getValue();
+                } else if(e.getKey().getSimpleName().contentEquals("alternate")){
+                    final List<?> values = (List<?>) e.getValue().getValue();
+                    alternates = new String[values.size()];
+                    for(int i=0; i<values.size(); i++) alternates[i] = (String) ((AnnotationValue) values.get(i)).getValue();
+                }
+            }
+        }
+        if(!field.getModifiers().contains(Modifier.FINAL) && accessible(type, field)){
+            return new Property(name, alternates, fieldType, fieldName, fieldName, true);
+        }
+        final String capitalized = Character.toUpperCase(fieldName.charAt(0)) + fieldName.substring(1);
+        String getter = null;
+        String setter = null;
+        for(ExecutableElement method : methods){
+            if(method.getModifiers().contains(Modifier.STATIC) || !accessible(type, method)) continue;
+            final String methodName = method.getSimpleName().toString();
+            if(method.getParameters().isEmpty() && processingEnv.getTypeUtils().isSameType(method.getReturnType(), fieldType)
+                    && (methodName.equals("get" + capitalized) || (methodName.equals("is" + capitalized) && fieldType.getKind() == TypeKind.BOOLEAN))){
+                getter = methodName;
+            } else if(methodName.equals("set" + capitalized) && method.getParameters().size() == 1
+                    && processingEnv.getTypeUtils().isSameType(method.getParameters().get(0).asType(), fieldType)){
+                setter = methodName;
+            }
+        }
+        return (getter != null && setter != null) ? new Property(name, alternates, fieldType, getter, setter, false) : null;
+    }
+
+    /* the generated adapter lives in the package of the class */
+    private boolean accessible(final TypeElement type, final Element member){
+        if(member.getModifiers().contains(Modifier.PUBLIC)) return true;
+        if(member.getModifiers().contains(Modifier.PRIVATE)) return false;
+        return packageOf(member.getEnclosingElement()).equals(packageOf(type));
+    }
+
+    private boolean hasNoArgConstructor(final TypeElement type){
+        for(ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())){
+            if(constructor.getParameters().isEmpty() && !constructor.getModifiers().contains(Modifier.PRIVATE)) return true;
+        }
+        return false;
+    }
+
+    private TypeElement superclassOf(final TypeElement type){
+        final TypeMirror superclass = type.getSuperclass();
+        if(superclass.getKind() != TypeKind.DECLARED) return null;
+        final TypeElement element = (TypeElement) ((DeclaredType) superclass).asElement();
+        return element.getQualifiedName().contentEquals("java.lang.Object") ? null : element;
+    }
+
+    private static boolean containsTypeVariable(final TypeMirror type){
+        if(type.getKind() == TypeKind.TYPEVAR) return true;
+        if(type.getKind() == TypeKind.ARRAY) return containsTypeVariable(((javax.lang.model.type.ArrayType) type).getComponentType());
+        if(type.getKind() == TypeKind.DECLARED){
+            for(TypeMirror argument : ((DeclaredType) type).getTypeArguments()){
+                if(containsTypeVariable(argument)) return true;
+            }
+        }
+        if(type.getKind() == TypeKind.WILDCARD){
+            final javax.lang.model.type.WildcardType wildcard = (javax.lang.model.type.WildcardType) type;
+            return (wildcard.getExtendsBound() != null && containsTypeVariable(wildcard.getExtendsBound()))
+                    || (wildcard.getSuperBound() != null && containsTypeVariable(wildcard.getSuperBound()));
+        }
+        return false;
+    }
+
+    private static AnnotationMirror annotation(final Element element, final String name){
+        for(AnnotationMirror mirror : element.getAnnotationMirrors()){
+            if(((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(name)) return mirror;
+        }
+        return null;
+    }
+
+    private static List<String> namesOf(final Property property){
+        final List<String> names = new ArrayList<>();
+        names.add(property.name);
+        for(String alternate : property.alternates) names.add(alternate);
+        return names;
+    }
+
+    private String packageOf(final Element element){
+        return processingEnv.getElementUtils().getPackageOf(element).getQualifiedName().toString();
+    }
+
+    /* e.g. com.example.Outer.ToDo -> com.example.Outer_ToDo_JsonAdapter, as looked up by the JsonConverter */
+    private String adapterNameOf(final TypeElement type){
+        final String packageName = packageOf(type);
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        final String simpleName = packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1);
+        return simpleName.replace('$', '_') + JsonDto.ADAPTER_SUFFIX;
+    }
+
+    private void generate(final TypeElement type, final List<Property> properties) throws IOException {
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        final String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        final String adapterName = adapterNameOf(type);
+        final String dto = type.getQualifiedName().toString();
+
+        final StringBuilder src = new StringBuilder(4096);
+        if(!packageName.isEmpty()) src.append("package ").append(packageName).append(";\n\n");
+        src.append("/* generated by ").append(JsonDtoProcessor.class.getName()).append(" from ").append(dto).append(", do not edit */\n");
+        src.append("@java.lang.SuppressWarnings(\"unchecked\")\n");
+        src.append("public final class ").append(adapterName).append(" extends com.google.gson.TypeAdapter<").append(dto).append("> {\n\n");
+        src.append("    private final com.google.gson.Gson gson;\n");
+        for(int i=0; i<properties.size(); i++){
+            final Property p = properties.get(i);
+            if(!p.type.getKind().isPrimitive()){
+                src.append("    private final com.google.gson.TypeAdapter<").append(boxed(p.type)).append("> adapter").append(i).append(";\n");
+            }
+        }
+        src.append("\n    public ").append(adapterName).append("(com.google.gson.Gson gson) {\n");
+        src.append("        this.gson = gson;\n");
+        for(int i=0; i<properties.size(); i++){
+            final Property p = properties.get(i);
+            if(p.type.getKind().isPrimitive()) continue;
+            src.append("        this.adapter").append(i).append(" = gson.getAdapter(");
+            if(isParameterized(p.type)){
+                src.append("new com.google.gson.reflect.TypeToken<").append(p.type).append(">(){}");
+            } else {
+                src.append(processingEnv.getTypeUtils().erasure(p.type)).append(".class");
+            }
+            src.append(");\n");
+        }
+        src.append("    }\n\n");
+
+        src.append("    @Override\n");
+        src.append("    public void write(com.google.gson.stream.JsonWriter out, ").append(dto).append(" value) throws java.io.IOException {\n");
+        src.append("        if (value == null) {\n            out.nullValue();\n            return;\n        }\n");
+        src.append("        out.beginObject();\n");
+        for(int i=0; i<properties.size(); i++){
+            final Property p = properties.get(i);
+            src.append("        out.name(").append(literal(p.name)).append(");\n");
+            src.append("        ").append(writeOf(p, i)).append('\n');
+        }
+        src.append("        out.endObject();\n    }\n\n");
+
+        src.append("    @Override\n");
+        src.append("    public ").append(dto).append(" read(com.google.gson.stream.JsonReader in) throws java.io.IOException {\n");
+        src.append("        if (in.peek() == com.google.gson.stream.JsonToken.NULL) {\n            in.nextNull();\n            return null;\n        }\n");
+        src.append("        ").append(dto).append(" value = new ").append(dto).append("();\n");
+        src.append("        in.beginObject();\n");
+        src.append("        while (in.hasNext()) {\n");
+        src.append("            switch (in.nextName()) {\n");
+        for(int i=0; i<properties.size(); i++){
+            final Property p = properties.get(i);
+            for(String name : namesOf(p)) src.append("                case ").append(literal(name)).append(":\n");
+            src.append("                    ").append(readOf(p, i)).append('\n');
+            src.append("                    break;\n");
+        }
+        src.append("                default:\n                    in.skipValue();\n");
+        src.append("            }\n        }\n");
+        src.append("        in.endObject();\n        return value;\n    }\n}\n");
+
+        final String qualifiedName = packageName.isEmpty() ? adapterName : packageName + "." + adapterName;
+        try(Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()){
+            writer.write(src.toString());
+        }
+    }
+
+    /* the primitives are written as Gson writes them, the rest through the adapter of the declared type or of the runtime one */
+    private String writeOf(final Property p, final int index){
+        final String get = p.get();
+        switch(p.type.getKind()){
+            case BOOLEAN: case BYTE: case SHORT: case INT: case LONG: case DOUBLE:
+                return "out.value(" + get + ");";
+            case FLOAT:
+                return "out.value((java.lang.Number) " + get + ");";
+            case CHAR:
+                return "out.value(java.lang.String.valueOf(" + get + "));";
+            default:
+                if(!hasRuntimeSubtypes(p.type)) return "adapter" + index + ".write(out, " + get + ");";
+                return "{\n"
+                     + "            " + boxed(p.type) + " v = " + get + ";\n"
+                     + "            if (v != null && v.getClass() != " + processingEnv.getTypeUtils().erasure(p.type) + ".class) {\n"
+                     + "                ((com.google.gson.TypeAdapter<java.lang.Object>) gson.getAdapter(v.getClass())).write(out, v);\n"
+                     + "            } else {\n"
+                     + "                adapter" + index + ".write(out, v);\n"
+                     + "            }\n"
+                     + "        }";
+        }
+    }
+
+    private String readOf(final Property p, final int index){
+        final String read;
+        switch(p.type.getKind()){
+            case BOOLEAN: read = "in.peek() == com.google.gson.stream.JsonToken.STRING ? java.lang.Boolean.parseBoolean(in.nextString()) : in.nextBoolean()"; break;
+            case BYTE:    read = "(byte) in.nextInt()"; break;
+            case SHORT:   read = "(short) in.nextInt()"; break;
+            case INT:     read = "in.nextInt()"; break;
+            case LONG:    read = "in.nextLong()"; break;
+            case FLOAT:   read = "(float) in.nextDouble()"; break;
+            case DOUBLE:  read = "in.nextDouble()"; break;
+            case CHAR:
+                return "if (in.peek() == com.google.gson.stream.JsonToken.NULL) {\n"
+                     + "                        in.nextNull();\n"
+                     + "                    } else {\n"
+                     + "                        java.lang.String c = in.nextString();\n"
+                     + "                        if (c.length() != 1) throw new com.google.gson.JsonSyntaxException(\"Expecting character, got: \" + c);\n"
+                     + "                        " + p.set("c.charAt(0)") + ";\n"
+                     + "                    }";
+            default:
+                return p.set("adapter" + index + ".read(in)") + ";";
+        }
+        /* as with Gson, a null leaves the primitive field to its default */
+        return "if (in.peek() == com.google.gson.stream.JsonToken.NULL) in.nextNull(); else " + p.set(read) + ";";
+    }
+
+    /* like Gson, a value of a subclass of a non generic declared type is written with the adapter of its own class */
+    private boolean hasRuntimeSubtypes(final TypeMirror type){
+        if(type.getKind() != TypeKind.DECLARED || isParameterized(type)) return false;
+        return !((DeclaredType) type).asElement().getModifiers().contains(Modifier.FINAL);
+    }
+
+    private static boolean isParameterized(final TypeMirror type){
+        return type.getKind() == TypeKind.DECLARED && !((DeclaredType) type).getTypeArguments().isEmpty();
+    }
+
+    private String boxed(final TypeMirror type){
+        return type.getKind().isPrimitive() ? processingEnv.getTypeUtils().boxedClass((javax.lang.model.type.PrimitiveType) type).getQualifiedName().toString() : type.toString();
+    }
+
+    private static String literal(final String value){
+        final StringBuilder literal = new StringBuilder("\"");
+        for(char c : value.toCharArray()){
+            if(c == '"' || c == '\\') literal.append('\\').append(c);
+            else if(c < 0x20 || c > 0x7e) literal.append(String.format("\\u%04x", (int) c));
+            else literal.append(c);
+        }
+        return literal.append('"').toString();
+    }
+
+    private void error(final Element element, final String message){
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
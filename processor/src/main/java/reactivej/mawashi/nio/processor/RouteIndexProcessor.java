@@ -0,0 +1,290 @@
+package reactivej.mawashi.nio.processor;
+
+import reactivej.mawashi.nio.annotations.Api;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Annotation processor which indexes, for each Endpoints class declaring @Api annotated Action fields, its routes into a
+ * generated RouteIndex: e.g. ToDoEndpoints gets a ToDoEndpoints_RouteIndex in the same package, listed in
+ * META-INF/services so that RestHandler#registerApiFields finds it without scanning the class by reflection.
+ * The annotations are checked here rather than on the first request: a template with unbalanced braces, an empty or
+ * repeated path variable, an unknown HTTP method or a media type without subtype fail the build.
+ * A class with a private @Api field, which the index cannot read, is left to reflection with a warning
+ */
+@SupportedAnnotationTypes("reactivej.mawashi.nio.annotations.Api")
+public final class RouteIndexProcessor extends AbstractProcessor {
+
+    private static final String ENDPOINTS = "reactivej.mawashi.nio.utils.Endpoints";
+    private static final String ACTION = "reactivej.mawashi.nio.utils.Action";
+    private static final String ROUTE_INDEX = "reactivej.mawashi.nio.utils.RouteIndex";
+    private static final String SERVICE_FILE = "META-INF/services/" + ROUTE_INDEX;
+    private static final String SUFFIX = "_RouteIndex";
+    private static final Set<String> METHODS = new HashSet<>(Arrays.asList("GET", "HEAD", "POST", "PUT", "DELETE", "PATCH", "OPTIONS", "TRACE", "CONNECT"));
+
+    /* the indexes generated in every round, written to the service file in the last one */
+    private final Set<String> indexes = new TreeSet<>();
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment round) {
+        if(round.processingOver()){
+            if(!indexes.isEmpty()) writeServiceFile();
+            return true;
+        }
+        final Map<TypeElement, List<VariableElement>> fieldsByClass = new LinkedHashMap<>();
+        for(Element element : round.getElementsAnnotatedWith(Api.class)){
+            if(element.getKind() != ElementKind.FIELD || element.getModifiers().contains(Modifier.STATIC)) continue;
+            final TypeElement owner = (TypeElement) element.getEnclosingElement();
+            if(!isEndpoints(owner) || !isAction(element.asType())) continue;
+            fieldsByClass.computeIfAbsent(owner, o -> new ArrayList<>()).add((VariableElement) element);
+        }
+        for(Map.Entry<TypeElement, List<VariableElement>> e : fieldsByClass.entrySet()){
+            final List<Route> routes = routesOf(e.getKey(), e.getValue());
+            if(routes == null) continue;
+            try {
+                indexes.add(generate(e.getKey(), routes));
+            } catch (IOException ex) {
+                error(e.getKey(), "cannot write the route index: " + ex.getMessage());
+            }
+        }
+        return true;
+    }
+
+    /* a checked @Api field: the values its index passes to RestHandler */
+    private static final class Route {
+        private final String field;
+        private final String method;
+        private final String path;
+        private final String consumes;
+        private final String produces;
+        private final String requestType;
+        private final String responseType;
+
+        private Route(String field, String method, String path, String consumes, String produces, String requestType, String responseType) {
+            this.field = field;
+            this.method = method;
+            this.path = path;
+            this.consumes = consumes;
+            this.produces = produces;
+            this.requestType = requestType;
+            this.responseType = responseType;
+        }
+    }
+
+    /* the routes of the fields in declaration order; null after reporting an error, or when the class is left to reflection */
+    private List<Route> routesOf(final TypeElement type, final List<VariableElement> fields){
+        for(Element enclosing = type; enclosing.getKind() != ElementKind.PACKAGE; enclosing = enclosing.getEnclosingElement()){
+            if(enclosing.getModifiers().contains(Modifier.PRIVATE) || !(enclosing instanceof TypeElement) || ((TypeElement) enclosing).getQualifiedName().length() == 0){
+                warning(type, "the @Api fields of a private or local class are registered by reflection");
+                return null;
+            }
+        }
+        boolean valid = true;
+        boolean readable = true;
+        final List<Route> routes = new ArrayList<>();
+        for(VariableElement field : fields){
+            if(field.getModifiers().contains(Modifier.PRIVATE)){
+                warning(field, "a private @Api field cannot be indexed, the fields of " + type.getSimpleName() + " are registered by reflection");
+                readable = false;
+            }
+            final Map<String, AnnotationValue> values = valuesOf(field);
+            final String path = (String) values.get("path").getValue();
+            final String method = ((String) values.get("method").getValue()).trim().toUpperCase(Locale.ROOT);
+            final String consumes = (String) values.get("consumes").getValue();
+            final String produces = (String) values.get("produces").getValue();
+            final String templateError = checkTemplate(path);
+            if(templateError != null){
+                error(field, "invalid path " + path + ": " + templateError);
+                valid = false;
+            }
+            if(!method.isEmpty() && !METHODS.contains(method)){
+                error(field, "unknown HTTP method " + method + ", leave it empty to bind every method");
+                valid = false;
+            }
+            for(String mediaTypes : new String[]{consumes, produces}){
+                final String mediaTypeError = checkMediaTypes(mediaTypes);
+                if(mediaTypeError != null){
+                    error(field, mediaTypeError);
+                    valid = false;
+                }
+            }
+            routes.add(new Route(field.getSimpleName().toString(), method, path, consumes, produces,
+                    classOf(values.get("requestType")), classOf(values.get("responseType"))));
+        }
+        return (valid && readable) ? routes : null;
+    }
+
+    /* what the Router expects: a template starting with / whose variable segments are a whole {name}, each name once */
+    static String checkTemplate(final String path){
+        if(!path.startsWith("/")) return "it must start with /";
+        String trimmed = path.substring(1);
+        if(trimmed.endsWith("/")) trimmed = trimmed.substring(0, trimmed.length() - 1);
+        final Set<String> names = new HashSet<>();
+        for(String segment : trimmed.split("/", -1)){
+            final boolean opens = segment.startsWith("{");
+            final boolean closes = segment.endsWith("}");
+            if(opens != closes || segment.indexOf('{', 1) >= 0 || (segment.indexOf('}') >= 0 && segment.indexOf('}') < segment.length() - 1)){
+                return "the variable segment " + segment + " must be a whole {name}";
+            }
+            if(!opens) continue;
+            final String name = segment.substring(1, segment.length() - 1).replace(" ", "");
+            if(name.isEmpty()) return "a path variable needs a name";
+            if(!names.add(name)) return "the path variable " + name + " is repeated";
+        }
+        return null;
+    }
+
+    /* a comma separated list of type/subtype, optionally with parameters; empty means any */
+    static String checkMediaTypes(final String mediaTypes){
+        if(mediaTypes.trim().isEmpty()) return null;
+        for(String mediaType : mediaTypes.split(",")){
+            final String essence = mediaType.split(";")[0].trim();
+            final int slash = essence.indexOf('/');
+            if(slash <= 0 || slash == essence.length() - 1 || essence.indexOf('/', slash + 1) >= 0){
+                return "invalid media type " + mediaType.trim() + ", expected type/subtype";
+            }
+        }
+        return null;
+    }
+
+    /* the values of the @Api annotation of the field, defaults included */
+    private Map<String, AnnotationValue> valuesOf(final VariableElement field){
+        final Map<String, AnnotationValue> values = new LinkedHashMap<>();
+        for(AnnotationMirror mirror : field.getAnnotationMirrors()){
+            if(!((TypeElement) mirror.getAnnotationType().asElement()).getQualifiedName().contentEquals(Api.class.getName())) continue;
+            for(Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> e : processingEnv.getElementUtils().getElementValuesWithDefaults(mirror).entrySet()){
+                values.put(e.getKey().getSimpleName().toString(), e.getValue());
+            }
+        }
+        return values;
+    }
+
+    private String classOf(final AnnotationValue value){
+        final TypeMirror type = (TypeMirror) value.getValue();
+        return processingEnv.getTypeUtils().erasure(type) + ".class";
+    }
+
+    private boolean isEndpoints(final TypeElement type){
+        final TypeElement endpoints = processingEnv.getElementUtils().getTypeElement(ENDPOINTS);
+        return endpoints != null && !type.equals(endpoints)
+                && processingEnv.getTypeUtils().isSubtype(processingEnv.getTypeUtils().erasure(type.asType()), endpoints.asType());
+    }
+
+    private boolean isAction(final TypeMirror type){
+        final TypeElement action = processingEnv.getElementUtils().getTypeElement(ACTION);
+        return action != null && type.getKind() == TypeKind.DECLARED && processingEnv.getTypeUtils().isAssignable(type, action.asType());
+    }
+
+    /* e.g. com.example.Outer.ToDoEndpoints -> com.example.Outer_ToDoEndpoints_RouteIndex */
+    private String generate(final TypeElement type, final List<Route> routes) throws IOException {
+        final PackageElement pkg = processingEnv.getElementUtils().getPackageOf(type);
+        final String packageName = pkg.isUnnamed() ? "" : pkg.getQualifiedName().toString();
+        final String binaryName = processingEnv.getElementUtils().getBinaryName(type).toString();
+        final String indexName = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)).replace('$', '_') + SUFFIX;
+        final String endpoints = processingEnv.getTypeUtils().erasure(type.asType()).toString();
+
+        final StringBuilder src = new StringBuilder(2048);
+        if(!packageName.isEmpty()) src.append("package ").append(packageName).append(";\n\n");
+        src.append("/* generated by ").append(RouteIndexProcessor.class.getName()).append(" from ").append(type.getQualifiedName()).append(", do not edit */\n");
+        src.append("public final class ").append(indexName).append(" implements ").append(ROUTE_INDEX).append(" {\n\n");
+        src.append("    @Override\n");
+        src.append("    public java.lang.Class<").append(endpoints).append("> endpointsClass() {\n");
+        src.append("        return ").append(endpoints).append(".class;\n    }\n\n");
+        src.append("    @Override\n");
+        src.append("    public void register(").append(ENDPOINTS).append(" endpoints, ").append(ROUTE_INDEX).append(".Routes routes) {\n");
+        src.append("        ").append(endpoints).append(" e = (").append(endpoints).append(") endpoints;\n");
+        for(Route route : routes){
+            src.append("        routes.add(e.").append(route.field).append(", ")
+               .append(route.method.isEmpty() ? "null" : "reactivej.mawashi.nio.utils.HttpMethod." + route.method).append(", ")
+               .append(literal(route.path)).append(", ").append(literal(route.consumes)).append(", ").append(literal(route.produces)).append(", ")
+               .append(route.requestType).append(", ").append(route.responseType).append(");\n");
+        }
+        src.append("    }\n}\n");
+
+        final String qualifiedName = packageName.isEmpty() ? indexName : packageName + "." + indexName;
+        try(Writer writer = processingEnv.getFiler().createSourceFile(qualifiedName, type).openWriter()){
+            writer.write(src.toString());
+        }
+        return qualifiedName;
+    }
+
+    /* keeps the indexes listed by a previous incremental compilation of the same output */
+    private void writeServiceFile(){
+        final Set<String> entries = new TreeSet<>(indexes);
+        try {
+            final FileObject existing = processingEnv.getFiler().getResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            try(BufferedReader reader = new BufferedReader(new InputStreamReader(existing.openInputStream(), StandardCharsets.UTF_8))){
+                for(String line = reader.readLine(); line != null; line = reader.readLine()){
+                    final String entry = line.replaceAll("#.*", "").trim();
+                    if(!entry.isEmpty()) entries.add(entry);
+                }
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            /* first compilation of the output */
+        }
+        try {
+            final FileObject file = processingEnv.getFiler().createResource(StandardLocation.CLASS_OUTPUT, "", SERVICE_FILE);
+            try(Writer writer = file.openWriter()){
+                for(String entry : entries) writer.write(entry + "\n");
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, "cannot write " + SERVICE_FILE + ": " + e.getMessage());
+        }
+    }
+
+    private static String literal(final String value){
+        final StringBuilder literal = new StringBuilder("\"");
+        for(char c : value.toCharArray()){
+            if(c == '"' || c == '\\') literal.append('\\').append(c);
+            else if(c < 0x20 || c > 0x7e) literal.append(String.format("\\u%04x", (int) c));
+            else literal.append(c);
+        }
+        return literal.append('"').toString();
+    }
+
+    private void warning(final Element element, final String message){
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.WARNING, message, element);
+    }
+
+    private void error(final Element element, final String message){
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+}
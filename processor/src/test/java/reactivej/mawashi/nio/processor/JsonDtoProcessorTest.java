@@ -0,0 +1,101 @@
+package reactivej.mawashi.nio.processor;
+
+import com.google.gson.Gson;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactivej.mawashi.nio.annotations.JsonDto;
+import reactivej.mawashi.nio.utils.JsonConverter;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class JsonDtoProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static final String ORDER = "package sample;\n"
+            + "import com.google.gson.annotations.SerializedName;\n"
+            + "import reactivej.mawashi.nio.annotations.JsonDto;\n"
+            + "import java.util.List;\n"
+            + "@JsonDto\n"
+            + "public class Order extends Base {\n"
+            + "    int count; double price; float ratio; boolean paid; char grade; short size; Integer boxed;\n"
+            + "    transient int ignored;\n"
+            + "    @SerializedName(value = \"customer_name\", alternate = {\"customer\"}) String customer;\n"
+            + "    List<Line> lines;\n"
+            + "    Object extra;\n"
+            + "    private String note;\n"
+            + "    public String getNote() { return note; }\n"
+            + "    public void setNote(String note) { this.note = note; }\n"
+            + "    @JsonDto public static class Line { String sku; int qty; }\n"
+            + "}\n"
+            + "class Base { long id; }\n";
+
+    @Test
+    public void generated_adapter_test() throws Exception {
+        ClassLoader loader = compile("sample.Order", ORDER, new DiagnosticCollector<>());
+        Class<?> order = loader.loadClass("sample.Order");
+        JsonConverter converter = new JsonConverter();
+        assertEquals("Order_JsonAdapter", converter.getAdapter(order).getClass().getSimpleName());
+        assertEquals("Order_Line_JsonAdapter", converter.getAdapter(loader.loadClass("sample.Order$Line")).getClass().getSimpleName());
+
+        String json = "{\"count\":3,\"price\":9.5,\"ratio\":0.1,\"paid\":true,\"grade\":\"A\",\"size\":7,\"boxed\":null,\"ignored\":5,"
+                + "\"customer\":\"Bob\",\"lines\":[{\"sku\":\"x-1\",\"qty\":2}],\"extra\":{\"a\":1},\"note\":\"fast\",\"id\":42,\"unknown\":[1,2]}";
+        Object parsed = converter.getDataFrom(new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8)), order);
+        String reflective = new Gson().toJson(new Gson().fromJson(json, order));
+        assertEquals(reflective, converter.getJsonOf(parsed));
+        assertTrue(reflective.startsWith("{\"count\":3,\"price\":9.5,\"ratio\":0.1,\"paid\":true,\"grade\":\"A\",\"size\":7,\"customer_name\":\"Bob\""));
+        assertTrue(reflective.endsWith("\"note\":\"fast\",\"id\":42}"));
+    }
+
+    @Test
+    public void unsupported_field_test() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        String hidden = "package sample;\n"
+                + "@reactivej.mawashi.nio.annotations.JsonDto\n"
+                + "public class Hidden { private String secret; }\n";
+        assertNull(compile("sample.Hidden", hidden, diagnostics));
+        Diagnostic<? extends JavaFileObject> error = diagnostics.getDiagnostics().get(0);
+        assertEquals(Diagnostic.Kind.ERROR, error.getKind());
+        assertTrue(error.getMessage(null).contains("getter and a setter"));
+    }
+
+    /* compiles the source with the processor: null if it does not compile */
+    private ClassLoader compile(String className, String source, DiagnosticCollector<JavaFileObject> diagnostics) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        File out = folder.newFolder();
+        String classpath = pathOf(JsonDto.class) + File.pathSeparator + pathOf(Gson.class);
+        List<String> options = Arrays.asList("-classpath", classpath, "-d", out.getPath(), "-s", out.getPath());
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new JsonDtoProcessor()));
+        if(!task.call()) return null;
+        return new URLClassLoader(new URL[]{out.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    private static String pathOf(Class<?> type) throws Exception {
+        return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+}
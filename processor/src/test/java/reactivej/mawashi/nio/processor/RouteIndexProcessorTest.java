@@ -0,0 +1,158 @@
+package reactivej.mawashi.nio.processor;
+
+import com.google.gson.Gson;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import reactivej.mawashi.nio.annotations.Api;
+import reactivej.mawashi.nio.utils.Endpoints;
+import reactivej.mawashi.nio.utils.HttpMethod;
+import reactivej.mawashi.nio.utils.RestHandler;
+import reactivej.mawashi.nio.utils.RouteIndex;
+import reactivej.mawashi.nio.utils.Router;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.ToolProvider;
+import java.io.File;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.ServiceLoader;
+
+import static org.junit.Assert.*;
+
+public class RouteIndexProcessorTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    static final String TODOS = "package sample;\n"
+            + "import reactivej.mawashi.nio.annotations.Api;\n"
+            + "import reactivej.mawashi.nio.utils.Action;\n"
+            + "import reactivej.mawashi.nio.utils.Endpoints;\n"
+            + "public class TodoEndpoints extends Endpoints {\n"
+            + "    public static class Todo { long id; }\n"
+            + "    @Api(path = \"/todos\", method = \"post\", consumes = \"application/json\", produces = \"application/json\", requestType = Todo.class)\n"
+            + "    Action create = (request, response) -> {};\n"
+            + "    @Api(path = \"/todos/{id}\", produces = \"application/json\")\n"
+            + "    protected Action read = (request, response) -> {};\n"
+            + "    @Api(path = \"/todos/{id}/done\", method = \"PUT\")\n"
+            + "    public Action done = (request, response) -> {};\n"
+            + "    @Api(path = \"/static\") static Action ignored;\n"
+            + "}\n";
+
+    @Test
+    public void generated_index_test() throws Exception {
+        ClassLoader loader = compile("sample.TodoEndpoints", TODOS, new DiagnosticCollector<>());
+        assertNotNull(loader);
+        Class<?> type = loader.loadClass("sample.TodoEndpoints");
+        List<RouteIndex> indexes = new ArrayList<>();
+        for(RouteIndex index : ServiceLoader.load(RouteIndex.class, loader)) indexes.add(index);
+        assertEquals(1, indexes.size());
+        assertEquals("TodoEndpoints_RouteIndex", indexes.get(0).getClass().getSimpleName());
+        assertSame(type, indexes.get(0).endpointsClass());
+
+        RestHandler handler = new RestHandler();
+        handler.register((Endpoints) type.getDeclaredConstructor().newInstance());
+        Router router = handler.freeze();
+        Router.RouteMatch create = router.match(HttpMethod.POST, "/todos");
+        assertNotNull(create.getRoute());
+        assertNotNull(create.getRoute().getBodyAdapter());
+        assertTrue(create.getRoute().accepts("application/json"));
+        assertFalse(create.getRoute().accepts("text/xml"));
+        assertNull(router.match(HttpMethod.GET, "/todos").getRoute());
+
+        Router.RouteMatch read = router.match(HttpMethod.GET, "/todos/7");
+        assertNotNull(read.getRoute());
+        assertEquals("7", read.getPathVariables().get("id"));
+        assertEquals("application/json", read.getRoute().getProduces());
+        assertNotNull(router.match(HttpMethod.PUT, "/todos/7/done").getRoute());
+        assertNull(router.match("/static"));
+    }
+
+    @Test
+    public void invalid_api_test() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        String invalid = "package sample;\n"
+                + "import reactivej.mawashi.nio.annotations.Api;\n"
+                + "import reactivej.mawashi.nio.utils.Action;\n"
+                + "public class Broken extends reactivej.mawashi.nio.utils.Endpoints {\n"
+                + "    @Api(path = \"/todos/{id\") Action unbalanced;\n"
+                + "    @Api(path = \"/todos/{id}/{id}\") Action repeated;\n"
+                + "    @Api(path = \"todos\") Action relative;\n"
+                + "    @Api(path = \"/todos\", method = \"FETCH\") Action method;\n"
+                + "    @Api(path = \"/todos\", produces = \"json\") Action mediaType;\n"
+                + "}\n";
+        assertNull(compile("sample.Broken", invalid, diagnostics));
+        List<String> errors = new ArrayList<>();
+        for(Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()){
+            if(d.getKind() == Diagnostic.Kind.ERROR) errors.add(d.getMessage(null));
+        }
+        assertEquals(5, errors.size());
+        assertTrue(errors.get(0).contains("whole {name}"));
+        assertTrue(errors.get(1).contains("repeated"));
+        assertTrue(errors.get(2).contains("must start with /"));
+        assertTrue(errors.get(3).contains("FETCH"));
+        assertTrue(errors.get(4).contains("type/subtype"));
+    }
+
+    @Test
+    public void private_field_test() throws Exception {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        String hidden = "package sample;\n"
+                + "public class Hidden extends reactivej.mawashi.nio.utils.Endpoints {\n"
+                + "    @reactivej.mawashi.nio.annotations.Api(path = \"/hidden\")\n"
+                + "    private reactivej.mawashi.nio.utils.Action secret = (request, response) -> {};\n"
+                + "}\n";
+        ClassLoader loader = compile("sample.Hidden", hidden, diagnostics);
+        assertNotNull(loader);
+        assertEquals(Diagnostic.Kind.WARNING, diagnostics.getDiagnostics().get(0).getKind());
+        assertFalse(ServiceLoader.load(RouteIndex.class, loader).iterator().hasNext());
+
+        RestHandler handler = new RestHandler();
+        handler.register((Endpoints) loader.loadClass("sample.Hidden").getDeclaredConstructor().newInstance());
+        assertNotNull(handler.freeze().match(HttpMethod.GET, "/hidden").getRoute());
+    }
+
+    @Test
+    public void template_check_test(){
+        assertNull(RouteIndexProcessor.checkTemplate("/"));
+        assertNull(RouteIndexProcessor.checkTemplate("/todos/{id}/items/{ item }/"));
+        assertNotNull(RouteIndexProcessor.checkTemplate("/todos/id}"));
+        assertNotNull(RouteIndexProcessor.checkTemplate("/todos/{}"));
+        assertNotNull(RouteIndexProcessor.checkTemplate("/todos/{a}{b}"));
+        assertNull(RouteIndexProcessor.checkMediaTypes("application/json; charset=utf-8, text/*"));
+        assertNotNull(RouteIndexProcessor.checkMediaTypes("application/"));
+    }
+
+    /* compiles the source with the processor: null if it does not compile */
+    private ClassLoader compile(String className, String source, DiagnosticCollector<JavaFileObject> diagnostics) throws Exception {
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        File out = folder.newFolder();
+        String classpath = String.join(File.pathSeparator, pathOf(Api.class), pathOf(Gson.class), pathOf(HttpServletRequest.class));
+        List<String> options = Arrays.asList("-classpath", classpath, "-d", out.getPath(), "-s", out.getPath());
+        JavaFileObject file = new SimpleJavaFileObject(URI.create("string:///" + className.replace('.', '/') + ".java"), JavaFileObject.Kind.SOURCE) {
+            @Override
+            public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+                return source;
+            }
+        };
+        JavaCompiler.CompilationTask task = compiler.getTask(null, null, diagnostics, options, null, Collections.singletonList(file));
+        task.setProcessors(Collections.singletonList(new RouteIndexProcessor()));
+        if(!task.call()) return null;
+        return new URLClassLoader(new URL[]{out.toURI().toURL()}, getClass().getClassLoader());
+    }
+
+    private static String pathOf(Class<?> type) throws Exception {
+        return new File(type.getProtectionDomain().getCodeSource().getLocation().toURI()).getPath();
+    }
+}
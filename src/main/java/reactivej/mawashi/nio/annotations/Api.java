@@ -18,4 +18,7 @@ public @interface Api {
     String consumes()    default "";
     String produces()    default "plain/text";
     String description() default "";
+    /* class of the request body and of the response, used to prepare their converters at startup */
+    Class<?> requestType()  default Void.class;
+    Class<?> responseType() default Void.class;
 }
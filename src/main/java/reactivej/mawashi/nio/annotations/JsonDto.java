@@ -0,0 +1,20 @@
+package reactivej.mawashi.nio.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * @author alessandroargentieri
+ *
+ * marks a request or response class whose Gson TypeAdapter is generated at compile time by the JsonDtoProcessor,
+ * so that it is converted without reflection: e.g. ToDo gets a ToDo_JsonAdapter in the same package.
+ * The class needs a non-private no-arg constructor and fields which are not private or have a getter and a setter
+ */
+@Target({ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+public @interface JsonDto {
+    /* appended to the class name, with the $ of the nested classes replaced by _, to name the generated adapter */
+    String ADAPTER_SUFFIX = "_JsonAdapter";
+}
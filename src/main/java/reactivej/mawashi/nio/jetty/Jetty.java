@@ -1,8 +1,24 @@
 package reactivej.mawashi.nio.jetty;
 
+import org.eclipse.jetty.server.ConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.FilterMapping;
+import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHandler;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.time.LocalTime;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Logger;
 
 /**
  * @author alessandroargentieri
@@ -13,14 +29,99 @@ public class Jetty {
 
     public enum Dispatch {ALL, ASYNC, DEFAULT, ERROR, FORWARD, INCLUDE, REQUEST};
 
+    private final static Logger log = Logger.getLogger(Jetty.class.getName());
+
+    private static final String H2C_CONNECTION_FACTORY = "org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory";
+
     private int port = 8080;
-    private ServletHandler servletHandler= new ServletHandler();
+    private ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+    private ServletHandler servletHandler= context.getServletHandler();
+    private Server server;
+    private ServerConnector connector;
+
+    /* -1 keeps the Jetty default */
+    private int     minThreads        = -1;
+    private int     maxThreads        = -1;
+    private int     reservedThreads   = -1;
+    private boolean virtualThreads    = false;
+    private int     acceptors         = -1;
+    private int     selectors         = -1;
+    private boolean reusePort         = false;
+    private int     acceptQueueSize   = -1;
+    private long    idleTimeout       = -1;
+    private int     outputBufferSize  = -1;
+    private boolean sendDateHeader    = true;
+    private boolean sendServerVersion = true;
+    private boolean h2c                          = false;
+    private int     http2MaxConcurrentStreams    = -1;
+    private int     http2InitialStreamRecvWindow = -1;
+    private int     http2InitialSessionRecvWindow= -1;
 
     public Jetty port(int port){
         this.port = port;
         return this;
     }
 
+    /* size of the QueuedThreadPool serving the connections */
+    public Jetty threadPool(int minThreads, int maxThreads){
+        this.minThreads = minThreads;
+        this.maxThreads = maxThreads;
+        return this;
+    }
+
+    /* threads kept ready to run tasks without being dispatched through the pool queue */
+    public Jetty reservedThreads(int reservedThreads){
+        this.reservedThreads = reservedThreads;
+        return this;
+    }
+
+    /* the pool creates virtual threads instead of platform threads (JDK 21+, ignored on older JDKs) */
+    public Jetty virtualThreads(boolean virtualThreads){
+        this.virtualThreads = virtualThreads;
+        return this;
+    }
+
+    /* threads accepting connections and threads selecting the ready ones */
+    public Jetty acceptorsAndSelectors(int acceptors, int selectors){
+        this.acceptors = acceptors;
+        this.selectors = selectors;
+        return this;
+    }
+
+    /* SO_REUSEPORT on the listening socket (JDK 9+ and an OS supporting it) */
+    public Jetty reusePort(boolean reusePort){
+        this.reusePort = reusePort;
+        return this;
+    }
+
+    /* backlog of the listening socket */
+    public Jetty acceptQueueSize(int acceptQueueSize){
+        this.acceptQueueSize = acceptQueueSize;
+        return this;
+    }
+
+    /* milliseconds after which an idle connection is closed */
+    public Jetty idleTimeout(long idleTimeout){
+        this.idleTimeout = idleTimeout;
+        return this;
+    }
+
+    /* bytes buffered by the response output stream before being sent */
+    public Jetty outputBufferSize(int outputBufferSize){
+        this.outputBufferSize = outputBufferSize;
+        return this;
+    }
+
+    public Jetty sendDateHeader(boolean sendDateHeader){
+        this.sendDateHeader = sendDateHeader;
+        return this;
+    }
+
+    public Jetty sendServerVersion(boolean sendServerVersion){
+        this.sendServerVersion = sendServerVersion;
+        return this;
+    }
+
     public Jetty servlet(Class servletClass, String path){
         servletHandler.addServletWithMapping(servletClass, path);
         return this;
@@ -55,10 +156,146 @@ public class Jetty {
         return this;
     }
 
+    /* shared with the servlets and the filters through ServletContext#getAttribute */
+    public Jetty attribute(String name, Object value){
+        context.setAttribute(name, value);
+        return this;
+    }
+
+    /* starts the server and waits for it to be stopped */
     public void start() throws Exception {
-        Server server = new Server(port);
-        server.setHandler(servletHandler);
+        launch();
+        join();
+    }
+
+    public void join() throws InterruptedException {
+        if(server != null) server.join();
+    }
+
+    /* starts the server and returns, so that several servers can run in the same JVM */
+    public void launch() throws Exception {
+        server = new Server(threadPool());
+        connector = connector(server);
+        server.addConnector(connector);
+        server.setHandler(context);
         server.start();
-        server.join();
+    }
+
+    public void stop() throws Exception {
+        if(server != null) server.stop();
+    }
+
+    /* the port actually bound, when the configured one is 0; -1 before the start */
+    public int getLocalPort(){
+        return (connector != null) ? connector.getLocalPort() : -1;
+    }
+
+    /* null before the start */
+    ServerConnector getConnector(){
+        return connector;
+    }
+
+    /* HTTP/2 cleartext next to HTTP/1.1 on the same port: requires org.eclipse.jetty.http2:http2-server on the classpath */
+    public Jetty h2c(boolean h2c){
+        this.h2c = h2c;
+        return this;
+    }
+
+    /* max number of streams a client can open at the same time on a single HTTP/2 connection */
+    public Jetty http2MaxConcurrentStreams(int maxConcurrentStreams){
+        this.http2MaxConcurrentStreams = maxConcurrentStreams;
+        return this;
+    }
+
+    /* initial HTTP/2 flow control windows, in bytes, of each stream and of the whole connection */
+    public Jetty http2InitialRecvWindows(int streamRecvWindow, int sessionRecvWindow){
+        this.http2InitialStreamRecvWindow = streamRecvWindow;
+        this.http2InitialSessionRecvWindow = sessionRecvWindow;
+        return this;
+    }
+
+    private QueuedThreadPool threadPool(){
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        if(maxThreads > 0) threadPool.setMaxThreads(maxThreads);
+        if(minThreads > 0) threadPool.setMinThreads(minThreads);
+        if(reservedThreads >= 0) threadPool.setReservedThreads(reservedThreads);
+        if(virtualThreads){
+            ThreadFactory factory = virtualThreadFactory();
+            if(factory != null){
+                threadPool = new QueuedThreadPool(threadPool.getMaxThreads(), threadPool.getMinThreads(), 60000,
+                        threadPool.getReservedThreads(), null, null, factory);
+            }
+        }
+        return threadPool;
+    }
+
+    /* Thread.ofVirtual().factory(), looked up reflectively so that the library still runs on JDK 8 */
+    private static ThreadFactory virtualThreadFactory(){
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            log.warning(LocalTime.now() + ": virtual threads are not available on this JDK, using platform threads");
+            return null;
+        }
+    }
+
+    private ServerConnector connector(Server server){
+        HttpConfiguration configuration = new HttpConfiguration();
+        if(outputBufferSize > 0) configuration.setOutputBufferSize(outputBufferSize);
+        configuration.setSendDateHeader(sendDateHeader);
+        configuration.setSendServerVersion(sendServerVersion);
+
+        ConnectionFactory[] factories = h2c
+                ? new ConnectionFactory[]{ new HttpConnectionFactory(configuration), h2cConnectionFactory(configuration) }
+                : new ConnectionFactory[]{ new HttpConnectionFactory(configuration) };
+        ServerConnector connector = new ReusePortServerConnector(server, acceptors, selectors, reusePort, factories);
+        connector.setPort(port);
+        if(acceptQueueSize > 0) connector.setAcceptQueueSize(acceptQueueSize);
+        if(idleTimeout > 0) connector.setIdleTimeout(idleTimeout);
+        return connector;
+    }
+
+    /* http2-server is an optional dependency: the factory is created reflectively so that the library doesn't require it */
+    private ConnectionFactory h2cConnectionFactory(HttpConfiguration configuration){
+        try {
+            Class<?> type = Class.forName(H2C_CONNECTION_FACTORY);
+            ConnectionFactory factory = (ConnectionFactory) type.getConstructor(HttpConfiguration.class).newInstance(configuration);
+            if(http2MaxConcurrentStreams > 0) type.getMethod("setMaxConcurrentStreams", int.class).invoke(factory, http2MaxConcurrentStreams);
+            if(http2InitialStreamRecvWindow > 0) type.getMethod("setInitialStreamRecvWindow", int.class).invoke(factory, http2InitialStreamRecvWindow);
+            if(http2InitialSessionRecvWindow > 0) type.getMethod("setInitialSessionRecvWindow", int.class).invoke(factory, http2InitialSessionRecvWindow);
+            return factory;
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("h2c requires org.eclipse.jetty.http2:http2-server on the classpath", e);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("unable to create the h2c connection factory", e);
+        }
+    }
+
+    /* Jetty 9.4 doesn't expose SO_REUSEPORT: the listening channel is opened here when it is requested */
+    private static class ReusePortServerConnector extends ServerConnector {
+        private final boolean reusePort;
+
+        ReusePortServerConnector(Server server, int acceptors, int selectors, boolean reusePort, ConnectionFactory... factories) {
+            super(server, acceptors, selectors, factories);
+            this.reusePort = reusePort;
+        }
+
+        @Override
+        protected ServerSocketChannel openAcceptChannel() throws IOException {
+            if(!reusePort) return super.openAcceptChannel();
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            try {
+                SocketOption<Boolean> soReusePort = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+                channel.setOption(soReusePort, true);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                log.warning(LocalTime.now() + ": SO_REUSEPORT is not supported here, ignored");
+            }
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, getReuseAddress());
+            InetSocketAddress address = (getHost() == null) ? new InetSocketAddress(getPort()) : new InetSocketAddress(getHost(), getPort());
+            channel.bind(address, getAcceptQueueSize());
+            return channel;
+        }
     }
 }
@@ -1,13 +1,21 @@
 package reactivej.mawashi.nio.jetty;
 
+import reactivej.mawashi.nio.logging.AccessLog;
 import reactivej.mawashi.nio.servlets.GenericNioServlet;
+import reactivej.mawashi.nio.utils.AdmissionControl;
+import reactivej.mawashi.nio.utils.Batch;
+import reactivej.mawashi.nio.utils.Codec;
+import reactivej.mawashi.nio.utils.Compression;
+import reactivej.mawashi.nio.utils.DispatchMode;
 import reactivej.mawashi.nio.utils.Endpoints;
+import reactivej.mawashi.nio.utils.RestHandler;
 
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 import java.util.logging.Logger;
 
 /**
@@ -23,17 +31,187 @@ public class ReactiveJ {
     private final static Logger log = Logger.getLogger(ReactiveJ.class.getName());
 
     private int port;
+    private final Jetty jetty = new Jetty();
+    private final RestHandler handler = new RestHandler();
     private List<Endpoints>    endpointsList  = new ArrayList<>();
     private Map<Class, String> servletsMap    = new HashMap<>();
     private List<FilterItem>   filterItemList = new ArrayList<>();
 
+    /* 0, the default, lets the system pick a free port: see getLocalPort */
     public ReactiveJ port(int port){
         this.port = port;
         return this;
     }
 
+    /* binds the endpoints to this instance; the @Api annotated Action fields not registered in the constructor are registered here, from the RouteIndex generated at compile time if any */
     public ReactiveJ endpoints(Endpoints endpoints){
         endpointsList.add(endpoints);
+        handler.register(endpoints);
+        return this;
+    }
+
+    /* max number of bytes written to the response in a single non-blocking write */
+    public ReactiveJ writeChunkSize(int writeChunkSize){
+        handler.setWriteChunkSize(writeChunkSize);
+        return this;
+    }
+
+    /* max size of the request bodies read with Endpoints#readJsonBody and Endpoints#readXmlBody */
+    public ReactiveJ maxBodySize(long maxBodySize){
+        handler.setMaxBodySize(maxBodySize);
+        return this;
+    }
+
+    /* milliseconds a request has to start its response before it gets a 504 (30 s by default), 0 leaves the container timeout */
+    public ReactiveJ timeout(long timeout){
+        handler.setTimeout(timeout);
+        return this;
+    }
+
+    /* request header whose milliseconds can shorten the timeout (X-Request-Timeout by default), null ignores it */
+    public ReactiveJ deadlineHeader(String deadlineHeader){
+        handler.setDeadlineHeader(deadlineHeader);
+        return this;
+    }
+
+    /* sheds the requests past a limit of in-flight requests with a 503, e.g. new AdmissionControl(500).adaptive(100); off by default */
+    public ReactiveJ admissionControl(AdmissionControl admissionControl){
+        handler.setAdmissionControl(admissionControl);
+        return this;
+    }
+
+    /* a format for toNegotiatedResponse and readNegotiatedBody, next to json, xml and cbor; it replaces the one with the same media type */
+    public ReactiveJ codec(Codec codec){
+        handler.registerCodec(codec);
+        return this;
+    }
+
+    /* POST /batch runs several requests in one round trip, e.g. new Batch().maxRequests(20).timeout(5000); off by default */
+    public ReactiveJ batch(Batch batch){
+        handler.setBatch(batch);
+        return this;
+    }
+
+    /* hot files of toFileResponse kept memory-mapped: at most maxFiles (256 by default) of at most maxFileSize bytes (64 MB) each */
+    public ReactiveJ fileCache(int maxFiles, long maxFileSize){
+        handler.setFileCache(maxFiles, maxFileSize);
+        return this;
+    }
+
+    /* gzip/deflate compression of the textual responses, e.g. new Compression().minSize(2048); off by default */
+    public ReactiveJ compression(Compression compression){
+        handler.setCompression(compression);
+        return this;
+    }
+
+    /* milliseconds between two heartbeats of an idle SSE or NDJSON stream (15 s by default), 0 disables them */
+    public ReactiveJ heartbeatInterval(long heartbeatInterval){
+        handler.setHeartbeatInterval(heartbeatInterval);
+        return this;
+    }
+
+    /* one entry per request, written by a background thread: e.g. AccessLog.toStdout() or AccessLog.toFile(path) */
+    public ReactiveJ accessLog(AccessLog accessLog){
+        handler.setAccessLog(accessLog);
+        return this;
+    }
+
+    /* per route counters and latency histograms, exported in the Prometheus format on /metrics; off by default */
+    public ReactiveJ metrics(boolean metrics){
+        handler.setMetricsEnabled(metrics);
+        return this;
+    }
+
+    /* enables the metrics on another path than /metrics; an IllegalStateException if an endpoint already maps it */
+    public ReactiveJ metricsPath(String metricsPath){
+        handler.setMetricsPath(metricsPath);
+        return this;
+    }
+
+    /* where the actions run: INLINE on the Jetty thread (default), EXECUTOR on a bounded pool or VIRTUAL_THREAD (JDK 21+) */
+    public ReactiveJ dispatch(DispatchMode dispatchMode){
+        handler.setDispatchMode(dispatchMode);
+        return this;
+    }
+
+    /* executor used by the EXECUTOR dispatch mode instead of the default bounded pool */
+    public ReactiveJ dispatchExecutor(ExecutorService executor){
+        handler.setDispatchExecutor(executor);
+        return this;
+    }
+
+    /* size of the Jetty thread pool serving the connections */
+    public ReactiveJ threadPool(int minThreads, int maxThreads){
+        jetty.threadPool(minThreads, maxThreads);
+        return this;
+    }
+
+    public ReactiveJ reservedThreads(int reservedThreads){
+        jetty.reservedThreads(reservedThreads);
+        return this;
+    }
+
+    /* the Jetty thread pool creates virtual threads (JDK 21+) */
+    public ReactiveJ virtualThreads(boolean virtualThreads){
+        jetty.virtualThreads(virtualThreads);
+        return this;
+    }
+
+    public ReactiveJ acceptorsAndSelectors(int acceptors, int selectors){
+        jetty.acceptorsAndSelectors(acceptors, selectors);
+        return this;
+    }
+
+    public ReactiveJ reusePort(boolean reusePort){
+        jetty.reusePort(reusePort);
+        return this;
+    }
+
+    public ReactiveJ acceptQueueSize(int acceptQueueSize){
+        jetty.acceptQueueSize(acceptQueueSize);
+        return this;
+    }
+
+    public ReactiveJ idleTimeout(long idleTimeout){
+        jetty.idleTimeout(idleTimeout);
+        return this;
+    }
+
+    public ReactiveJ outputBufferSize(int outputBufferSize){
+        jetty.outputBufferSize(outputBufferSize);
+        return this;
+    }
+
+    public ReactiveJ sendDateHeader(boolean sendDateHeader){
+        jetty.sendDateHeader(sendDateHeader);
+        return this;
+    }
+
+    public ReactiveJ sendServerVersion(boolean sendServerVersion){
+        jetty.sendServerVersion(sendServerVersion);
+        return this;
+    }
+
+    /* HTTP/2 cleartext next to HTTP/1.1 on the same port, requires org.eclipse.jetty.http2:http2-server */
+    public ReactiveJ h2c(boolean h2c){
+        jetty.h2c(h2c);
+        return this;
+    }
+
+    public ReactiveJ http2MaxConcurrentStreams(int maxConcurrentStreams){
+        jetty.http2MaxConcurrentStreams(maxConcurrentStreams);
+        return this;
+    }
+
+    /* initial HTTP/2 flow control windows, in bytes, of each stream and of the whole connection */
+    public ReactiveJ http2InitialRecvWindows(int streamRecvWindow, int sessionRecvWindow){
+        jetty.http2InitialRecvWindows(streamRecvWindow, sessionRecvWindow);
+        return this;
+    }
+
+    /* creates the JAXB contexts of these classes at startup, the @Api requestType and responseType are prepared anyway */
+    public ReactiveJ prewarmXml(Class<?>... classes){
+        handler.getXmlConverter().prewarm(classes);
         return this;
     }
 
@@ -49,8 +227,26 @@ public class ReactiveJ {
         return this;
     }
 
+    /* the routes, converters, executors and metrics of this instance, isolated from the other ReactiveJ of the JVM */
+    public RestHandler getHandler(){
+        return handler;
+    }
+
+    /* the port actually bound, useful with port(0); -1 before the start */
+    public int getLocalPort(){
+        return jetty.getLocalPort();
+    }
+
+    /* starts the server and waits for it to be stopped */
     public void start() throws Exception {
-      Jetty jetty = new Jetty().port(port).servlet(GenericNioServlet.class, "/*");
+        launch();
+        jetty.join();
+    }
+
+    /* starts the server and returns: several instances, each with its own port and endpoints, can run in the same JVM */
+    public ReactiveJ launch() throws Exception {
+        handler.freeze();
+        jetty.port(port).attribute(RestHandler.CONTEXT_ATTRIBUTE, handler).servlet(GenericNioServlet.class, "/*");
         if(!servletsMap.isEmpty()){
             for (Map.Entry<Class, String> entry : servletsMap.entrySet()) {
                 jetty.servlet(entry.getKey(), entry.getValue());
@@ -63,7 +259,16 @@ public class ReactiveJ {
                 log.info(LocalDateTime.now()+": "+this.getClass().getSimpleName()+" | "+ "Added filter " + filter.getFilterClass() + "at path " + filter.getPath());
             }
         }
-        jetty.start();
+        jetty.launch();
+        return this;
+    }
+
+    /* stops the server, then the dispatch executors and the access log once the last requests are recorded */
+    public void stop() throws Exception {
+        jetty.stop();
+        handler.shutdown();
+        AccessLog accessLog = handler.getAccessLog();
+        if(accessLog != null) accessLog.close();
     }
 
 }
@@ -0,0 +1,164 @@
+package reactivej.mawashi.nio.logging;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Access log which records one entry per request (method, path template, status, bytes, latency).
+ * Request threads only copy the values into a preallocated slot of a lock-free ring buffer,
+ * a background daemon thread formats the entries and writes them to the file or to stdout.
+ * When the ring buffer is full the entry is dropped and counted rather than blocking the request
+ */
+public final class AccessLog implements AutoCloseable {
+
+    private final static Logger log = Logger.getLogger(AccessLog.class.getName());
+
+    public static final int DEFAULT_CAPACITY = 8192;
+
+    private final Entry[]         slots;
+    private final AtomicLongArray published;
+    private final int             mask;
+    private final AtomicLong      tail    = new AtomicLong();
+    private final AtomicLong      head    = new AtomicLong();
+    private final LongAdder       dropped = new LongAdder();
+    private final Writer          writer;
+    private final boolean         ownsWriter;
+    private final Thread          drainer;
+    private volatile boolean      running = true;
+
+    private AccessLog(Writer writer, boolean ownsWriter, int capacity) {
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.slots = new Entry[size];
+        for(int i=0; i<size; i++) slots[i] = new Entry();
+        this.published = new AtomicLongArray(size);
+        this.mask = size - 1;
+        this.writer = writer;
+        this.ownsWriter = ownsWriter;
+        this.drainer = new Thread(this::drain, "reactivej-access-log");
+        this.drainer.setDaemon(true);
+        this.drainer.start();
+    }
+
+    public static AccessLog toStdout(){
+        return toStdout(DEFAULT_CAPACITY);
+    }
+
+    public static AccessLog toStdout(int capacity){
+        return new AccessLog(new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8)), false, capacity);
+    }
+
+    public static AccessLog toFile(Path file) throws IOException {
+        return toFile(file, DEFAULT_CAPACITY);
+    }
+
+    public static AccessLog toFile(Path file, int capacity) throws IOException {
+        return new AccessLog(Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND), true, capacity);
+    }
+
+    /* called on the request thread: never blocks and never allocates */
+    public void record(String method, String pathTemplate, int status, long bytes, long latencyNanos){
+        long sequence;
+        do {
+            sequence = tail.get();
+            if(sequence - head.get() >= slots.length){
+                dropped.increment();
+                return;
+            }
+        } while(!tail.compareAndSet(sequence, sequence + 1));
+
+        int index = (int) sequence & mask;
+        Entry entry = slots[index];
+        entry.timestamp    = System.currentTimeMillis();
+        entry.method       = method;
+        entry.pathTemplate = pathTemplate;
+        entry.status       = status;
+        entry.bytes        = bytes;
+        entry.latencyNanos = latencyNanos;
+        published.lazySet(index, sequence + 1);
+    }
+
+    /* number of entries lost because the writer thread could not keep up */
+    public long getDropped(){
+        return dropped.sum();
+    }
+
+    /* stops the writer thread once the pending entries are written; stdout is only flushed, it is not ours to close */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(ownsWriter) writer.close();
+        else writer.flush();
+    }
+
+    private void drain(){
+        StringBuilder line = new StringBuilder(128);
+        while(running || head.get() < tail.get()){
+            long sequence = head.get();
+            int index = (int) sequence & mask;
+            if(published.get(index) != sequence + 1){
+                flushQuietly();
+                if(running) LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(10));
+                if(!running && published.get(index) != sequence + 1) break;
+                continue;
+            }
+            slots[index].format(line);
+            head.lazySet(sequence + 1);
+            try {
+                writer.write(line.toString());
+            } catch (IOException e) {
+                log.warning("access log write failed: " + e);
+            }
+            line.setLength(0);
+        }
+        flushQuietly();
+    }
+
+    private void flushQuietly(){
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            log.warning("access log flush failed: " + e);
+        }
+    }
+
+    private static final class Entry {
+        private long   timestamp;
+        private String method;
+        private String pathTemplate;
+        private int    status;
+        private long   bytes;
+        private long   latencyNanos;
+
+        /* timestamp method template status bytes latency(us) */
+        private void format(StringBuilder line){
+            line.append(Instant.ofEpochMilli(timestamp)).append(' ')
+                .append(method).append(' ')
+                .append(pathTemplate).append(' ')
+                .append(status).append(' ')
+                .append(bytes).append(' ')
+                .append(TimeUnit.NANOSECONDS.toMicros(latencyNanos)).append("us")
+                .append(System.lineSeparator());
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package reactivej.mawashi.nio.metrics;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Request level instrumentation: per route template counters and latency histograms, plus the number of
+ * in-flight async requests and the time the responses spent waiting for the connection to be writable again.
+ * Everything is recorded on LongAdders, so the request threads never contend on a lock;
+ * the values can be read through this API or in the Prometheus text format from the /metrics endpoint
+ */
+public final class Metrics {
+
+    /* Prometheus buckets of the histograms, in seconds */
+    private static final double[] BUCKETS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10};
+    private static final long[] BUCKET_MICROS = new long[BUCKETS.length];
+    static {
+        for(int i=0; i<BUCKETS.length; i++) BUCKET_MICROS[i] = (long) (BUCKETS[i] * 1_000_000);
+    }
+
+    private final ConcurrentMap<String, RouteMetrics> routes = new ConcurrentHashMap<>();
+    private final LongAdder started = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LatencyHistogram writeStalls = new LatencyHistogram();
+
+    /* decrements the in-flight gauge whatever the way the AsyncContext completes: response, error or timeout */
+    private final AsyncListener inFlightListener = new AsyncListener() {
+        @Override
+        public void onComplete(AsyncEvent event) {
+            completed.increment();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            //onComplete follows
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            //onComplete follows
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            //not re-registered on a new async cycle
+        }
+    };
+
+    /* called once the AsyncContext is started: the returned listener must be added to it */
+    public AsyncListener requestStarted(){
+        started.increment();
+        return inFlightListener;
+    }
+
+    public void recordRequest(final String template, final int status, final long bytes, final long latencyNanos){
+        RouteMetrics route = routes.get(template);
+        if(route == null) route = routes.computeIfAbsent(template, RouteMetrics::new);
+        route.record(status, bytes, TimeUnit.NANOSECONDS.toMicros(latencyNanos));
+    }
+
+    /* time between a write listener finding the output not ready and the container calling it back */
+    public void recordWriteStall(final long stallNanos){
+        writeStalls.record(TimeUnit.NANOSECONDS.toMicros(stallNanos));
+    }
+
+    public long getInFlight(){
+        return started.sum() - completed.sum();
+    }
+
+    public LatencyHistogram getWriteStalls(){
+        return writeStalls;
+    }
+
+    public RouteMetrics getRoute(final String template){
+        return routes.get(template);
+    }
+
+    /* route template -> metrics, sorted by template */
+    public Map<String, RouteMetrics> getRoutes(){
+        return Collections.unmodifiableMap(new TreeMap<>(routes));
+    }
+
+    /* Prometheus text exposition format, version 0.0.4 */
+    public String toPrometheus(){
+        final StringBuilder text = new StringBuilder(4096);
+        final Map<String, RouteMetrics> sorted = getRoutes();
+
+        text.append("# HELP reactivej_requests_total Completed requests by route template and status code.\n");
+        text.append("# TYPE reactivej_requests_total counter\n");
+        for(RouteMetrics route : sorted.values()){
+            for(Map.Entry<Integer, Long> status : route.getStatusCounts().entrySet()){
+                text.append("reactivej_requests_total{route=\"").append(escape(route.getTemplate()))
+                    .append("\",status=\"").append(status.getKey()).append("\"} ").append(status.getValue()).append('\n');
+            }
+        }
+
+        text.append("# HELP reactivej_response_bytes_total Bytes written by route template.\n");
+        text.append("# TYPE reactivej_response_bytes_total counter\n");
+        for(RouteMetrics route : sorted.values()){
+            text.append("reactivej_response_bytes_total{route=\"").append(escape(route.getTemplate())).append("\"} ").append(route.getBytes()).append('\n');
+        }
+
+        text.append("# HELP reactivej_request_duration_seconds Time from the servlet entry to the completion of the response.\n");
+        text.append("# TYPE reactivej_request_duration_seconds histogram\n");
+        for(RouteMetrics route : sorted.values()){
+            appendHistogram(text, "reactivej_request_duration_seconds", "route=\"" + escape(route.getTemplate()) + "\",", route.getLatency());
+        }
+
+        text.append("# HELP reactivej_requests_in_flight Requests whose AsyncContext is not completed yet.\n");
+        text.append("# TYPE reactivej_requests_in_flight gauge\n");
+        text.append("reactivej_requests_in_flight ").append(getInFlight()).append('\n');
+
+        text.append("# HELP reactivej_write_stall_seconds Time spent waiting for the connection to accept more bytes.\n");
+        text.append("# TYPE reactivej_write_stall_seconds histogram\n");
+        appendHistogram(text, "reactivej_write_stall_seconds", "", writeStalls);
+        return text.toString();
+    }
+
+    private static void appendHistogram(final StringBuilder text, final String name, final String labels, final LatencyHistogram histogram){
+        final long[] cumulative = histogram.cumulativeCounts(BUCKET_MICROS);
+        for(int i=0; i<BUCKETS.length; i++){
+            text.append(name).append("_bucket{").append(labels).append("le=\"").append(BUCKETS[i]).append("\"} ").append(cumulative[i]).append('\n');
+        }
+        final long count = histogram.getCount();
+        text.append(name).append("_bucket{").append(labels).append("le=\"+Inf\"} ").append(count).append('\n');
+        final String plainLabels = labels.isEmpty() ? "" : "{" + labels.substring(0, labels.length() - 1) + "}";
+        text.append(name).append("_sum").append(plainLabels).append(' ').append(histogram.getSumMicros() / 1_000_000.0).append('\n');
+        text.append(name).append("_count").append(plainLabels).append(' ').append(count).append('\n');
+    }
+
+    private static String escape(final String label){
+        return label.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
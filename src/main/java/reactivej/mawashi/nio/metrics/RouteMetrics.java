@@ -0,0 +1,74 @@
+package reactivej.mawashi.nio.metrics;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Counters of a single route template: requests, responses by status code, bytes written and latency
+ */
+public final class RouteMetrics {
+
+    private final String template;
+    private final LongAdder requests = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private final AtomicReferenceArray<LongAdder> statuses = new AtomicReferenceArray<>(600);
+    private final LatencyHistogram latency = new LatencyHistogram();
+
+    RouteMetrics(String template) {
+        this.template = template;
+    }
+
+    void record(final int status, final long bytes, final long latencyMicros){
+        requests.increment();
+        this.bytes.add(bytes);
+        statusCounter(status).increment();
+        latency.record(latencyMicros);
+    }
+
+    /* the counter of each status code is created by its first response */
+    private LongAdder statusCounter(final int status){
+        final int index = (status >= 100 && status < 600) ? status : 0;
+        LongAdder counter = statuses.get(index);
+        if(counter == null){
+            statuses.compareAndSet(index, null, new LongAdder());
+            counter = statuses.get(index);
+        }
+        return counter;
+    }
+
+    public String getTemplate() {
+        return template;
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public long getStatusCount(final int status) {
+        final LongAdder counter = statuses.get((status >= 100 && status < 600) ? status : 0);
+        return (counter == null) ? 0 : counter.sum();
+    }
+
+    /* status code -> responses, for the codes answered at least once; 0 stands for the invalid codes */
+    public Map<Integer, Long> getStatusCounts() {
+        final Map<Integer, Long> counts = new TreeMap<>();
+        for(int i=0; i<statuses.length(); i++){
+            final LongAdder counter = statuses.get(i);
+            if(counter != null) counts.put(i, counter.sum());
+        }
+        return counts;
+    }
+
+    /* from GenericNioServlet#service to the completion of the response */
+    public LatencyHistogram getLatency() {
+        return latency;
+    }
+}
@@ -1,36 +1,62 @@
 package reactivej.mawashi.nio.servlets;
 
 import reactivej.mawashi.nio.utils.RestHandler;
+import reactivej.mawashi.nio.utils.Router;
 
+import javax.servlet.AsyncContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
 import java.time.LocalDateTime;
-import java.time.LocalTime;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
  * @author alessandroargentieri
  *
  * Dispatcher Non-Blocking servlet which calls the endpoints defined by the programmer through the Action
+ * registered on the RestHandler found in the servlet context
  */
 public class GenericNioServlet extends HttpServlet {
 
     private final static Logger log = Logger.getLogger(GenericNioServlet.class.getName());
 
+    private RestHandler handler;
+
+    /* the RestHandler of the ReactiveJ which started the server; deployed by other means, the default one, e.g. RestHandler.getInstance().register(endpoints) */
+    @Override
+    public void init() throws ServletException {
+        final Object handler = getServletContext().getAttribute(RestHandler.CONTEXT_ATTRIBUTE);
+        this.handler = (handler instanceof RestHandler) ? (RestHandler) handler : RestHandler.getInstance();
+    }
+
     @Override
     protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-        request.startAsync();
-        log.info(LocalDateTime.now()+" - " + this.getClass().getSimpleName() + " - start Async context from http request: " + request.getRequestURI());
-        try{
-            RestHandler.getInstance().getEndpointIfMatches(request.getRequestURI()).act(request, response);
-        } catch (Exception e){
-            log.info(LocalTime.now() + ": Internal Server Error (code 500) " + e.toString());
-            request.setAttribute("internal-server-error", e.toString());
-            RestHandler.getInstance().getEndpointIfMatches("/internal-server-error").act(request, response);
+        final RestHandler handler = this.handler;
+        final boolean metricsEnabled = handler.isMetricsEnabled();
+        if(metricsEnabled || handler.getAccessLog() != null){
+            request.setAttribute(RestHandler.START_NANOS_ATTRIBUTE, System.nanoTime());
+        }
+        final AsyncContext async = request.startAsync();
+        if(metricsEnabled){
+            async.addListener(handler.getMetrics().requestStarted());
+        }
+        if(log.isLoggable(Level.FINE)){
+            log.fine(LocalDateTime.now()+" - " + this.getClass().getSimpleName() + " - start Async context from http request: " + request.getRequestURI());
+        }
+        final Router.RouteMatch match = handler.route(request);
+        request.setAttribute(RestHandler.ROUTE_MATCH_ATTRIBUTE, match);
+        if(!handler.admit(match, request)){
+            handler.shed(request, response);
+            return;
+        }
+        final HttpServletRequest bound = handler.arm(match, request, response);
+        if(handler.serveCached(match, bound, response, () -> handler.dispatch(match, bound, response))){
+            return;
         }
+        handler.dispatch(match, bound, response);
     }
 
 }
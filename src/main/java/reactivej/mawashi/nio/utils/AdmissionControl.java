@@ -0,0 +1,173 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Load shedding in front of the dispatch of the Actions, e.g. new ReactiveJ().admissionControl(new AdmissionControl(500).adaptive(100)).
+ * Past the limit of in-flight requests, of the whole server or of a route (Endpoint#maxInFlight), a request gets a 503 with
+ * a Retry-After at once, from a preallocated body, instead of queueing up and making every other request slower.
+ * The adaptive limit follows AIMD: it grows by one every limit requests served within the target latency
+ * and shrinks by 10% (at most once per window) when they get slower, between minLimit and the configured max.
+ * CRITICAL endpoints are never shed, LOW ones are shed first
+ */
+public final class AdmissionControl {
+
+    public static final int DEFAULT_RETRY_AFTER = 1;
+    public static final double DEFAULT_LOW_PRIORITY_SHARE = 0.8;
+    private static final long SCALE = 1000;
+    private static final long DECREASE_WINDOW = TimeUnit.MILLISECONDS.toNanos(100);
+
+    /* the body of every shed request: nothing is allocated to reject one */
+    static final byte[] OVERLOADED = "{\"code\":503,\"description\":\"Service overloaded\"}".getBytes(StandardCharsets.UTF_8);
+
+    private final int maxInFlight;
+    private volatile int minLimit = 1;
+    private volatile long targetLatencyNanos;
+    private volatile double lowPriorityShare = DEFAULT_LOW_PRIORITY_SHARE;
+    private volatile String retryAfter = String.valueOf(DEFAULT_RETRY_AFTER);
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /* the adaptive limit in thousandths, so that it can grow by less than one request at a time */
+    private final AtomicLong scaledLimit;
+    private final AtomicLong lastDecrease = new AtomicLong(System.nanoTime() - DECREASE_WINDOW);
+    private final LongAdder rejected = new LongAdder();
+
+    public AdmissionControl(int maxInFlight) {
+        if(maxInFlight <= 0) throw new IllegalArgumentException("max in-flight must be positive: " + maxInFlight);
+        this.maxInFlight = maxInFlight;
+        this.scaledLimit = new AtomicLong(maxInFlight * SCALE);
+    }
+
+    /* the limit adapts to the latency: below the target it grows up to maxInFlight, above it shrinks down to minLimit */
+    public AdmissionControl adaptive(long targetLatencyMillis){
+        if(targetLatencyMillis <= 0) throw new IllegalArgumentException("target latency must be positive: " + targetLatencyMillis);
+        this.targetLatencyNanos = TimeUnit.MILLISECONDS.toNanos(targetLatencyMillis);
+        return this;
+    }
+
+    /* lowest value of the adaptive limit */
+    public AdmissionControl minLimit(int minLimit){
+        if(minLimit <= 0 || minLimit > maxInFlight) throw new IllegalArgumentException("min limit must be between 1 and " + maxInFlight + ": " + minLimit);
+        this.minLimit = minLimit;
+        return this;
+    }
+
+    /* share of the limit the LOW priority requests can take, 0.8 by default */
+    public AdmissionControl lowPriorityShare(double lowPriorityShare){
+        if(lowPriorityShare <= 0 || lowPriorityShare > 1) throw new IllegalArgumentException("low priority share must be in (0, 1]: " + lowPriorityShare);
+        this.lowPriorityShare = lowPriorityShare;
+        return this;
+    }
+
+    /* seconds sent in the Retry-After header of the shed requests */
+    public AdmissionControl retryAfter(int seconds){
+        if(seconds < 0) throw new IllegalArgumentException("retry after must not be negative: " + seconds);
+        this.retryAfter = String.valueOf(seconds);
+        return this;
+    }
+
+    String getRetryAfter(){
+        return retryAfter;
+    }
+
+    public int getInFlight(){
+        return inFlight.get();
+    }
+
+    /* the current limit: maxInFlight, unless the adaptive limit lowered it */
+    public int getLimit(){
+        return (int) Math.max(minLimit, scaledLimit.get() / SCALE);
+    }
+
+    public long getRejected(){
+        return rejected.sum();
+    }
+
+    /*
+     * takes a slot of the server (if control is not null) and of the route (if it has a limit):
+     * the returned listener gives them back when the AsyncContext completes, null means the request must be shed
+     */
+    static AsyncListener acquire(final AdmissionControl control, final Router.Route route){
+        final Priority priority = route.getPriority();
+        final AtomicInteger routeInFlight = (route.getMaxInFlight() > 0) ? route.inFlight() : null;
+        if(routeInFlight != null && !tryAcquire(routeInFlight, route.getMaxInFlight(), priority, (control != null) ? control.lowPriorityShare : DEFAULT_LOW_PRIORITY_SHARE)){
+            if(control != null) control.rejected.increment();
+            return null;
+        }
+        if(control != null && !tryAcquire(control.inFlight, control.getLimit(), priority, control.lowPriorityShare)){
+            if(routeInFlight != null) routeInFlight.decrementAndGet();
+            control.rejected.increment();
+            return null;
+        }
+        return new Permit(control, routeInFlight);
+    }
+
+    /* CRITICAL requests are counted but never refused */
+    private static boolean tryAcquire(final AtomicInteger inFlight, final int limit, final Priority priority, final double lowPriorityShare){
+        final int current = inFlight.incrementAndGet();
+        if(priority == Priority.CRITICAL) return true;
+        final int allowed = (priority == Priority.LOW) ? Math.max(1, (int) (limit * lowPriorityShare)) : limit;
+        if(current <= allowed) return true;
+        inFlight.decrementAndGet();
+        return false;
+    }
+
+    /* additive increase while the server keeps up, multiplicative decrease when it slows down */
+    void onCompleted(final long latencyNanos, final int inFlightAtCompletion){
+        final long target = targetLatencyNanos;
+        if(target == 0) return;
+        if(latencyNanos > target){
+            final long now = System.nanoTime();
+            final long last = lastDecrease.get();
+            if(now - last > DECREASE_WINDOW && lastDecrease.compareAndSet(last, now)){
+                final long min = minLimit * SCALE;
+                scaledLimit.updateAndGet(limit -> Math.max(min, limit - limit / 10));
+            }
+        } else if(inFlightAtCompletion * 2 >= getLimit()){
+            /* the limit only grows when it is actually being used */
+            final long max = maxInFlight * SCALE;
+            scaledLimit.updateAndGet(limit -> Math.min(max, limit + SCALE * SCALE / Math.max(SCALE, limit)));
+        }
+    }
+
+    /* gives the slots back however the AsyncContext ends: response, error or timeout */
+    private static final class Permit implements AsyncListener {
+        private final AdmissionControl control;
+        private final AtomicInteger    routeInFlight;
+        private final long             start = System.nanoTime();
+
+        private Permit(AdmissionControl control, AtomicInteger routeInFlight) {
+            this.control = control;
+            this.routeInFlight = routeInFlight;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            if(routeInFlight != null) routeInFlight.decrementAndGet();
+            if(control != null) control.onCompleted(System.nanoTime() - start, control.inFlight.getAndDecrement());
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            //onComplete follows
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            //onComplete follows
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            //not re-registered on a new async cycle
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParseException;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonWriter;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Opt-in endpoint answering several requests in a single round trip, e.g. new ReactiveJ().batch(new Batch().maxRequests(20)).
+ * POST /batch takes a json array of sub-requests, {"method": "GET", "path": "/todos/1?verbose=true", "headers": {...}, "body": ...},
+ * routes each of them through the routes of the RestHandler and runs its Action, unchanged, on an in-memory request and response,
+ * with the dispatch mode, admission control, cache and deadline of its route: the sub-requests run concurrently, as far as
+ * their dispatch mode lets them. The answer is a json array with the status, headers and body of each sub-response, in the
+ * order of the sub-requests: a json body is embedded as it is, a textual one as a string and any other one in base64.
+ * A batch takes at most maxRequests sub-requests, maxBytes of request body and maxBytes of responses, and lasts at most
+ * timeout milliseconds: the sub-requests still running then are cancelled and answered with a 504
+ */
+public final class Batch {
+
+    public static final String DEFAULT_PATH = "/batch";
+    public static final int DEFAULT_MAX_REQUESTS = 20;
+    public static final long DEFAULT_MAX_BYTES = 1024 * 1024;
+    public static final long DEFAULT_TIMEOUT = 10_000;
+
+    private final static Logger log = Logger.getLogger(Batch.class.getName());
+    private static final TypeToken<List<Part>> PARTS = new TypeToken<List<Part>>(){};
+
+    private volatile String path = DEFAULT_PATH;
+    private volatile int maxRequests = DEFAULT_MAX_REQUESTS;
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+
+    /* the path of the endpoint, read when the batch is given to the RestHandler */
+    public Batch path(String path){
+        if(path == null || !path.startsWith("/")) throw new IllegalArgumentException("the path must start with /: " + path);
+        this.path = path;
+        return this;
+    }
+
+    /* sub-requests of a batch, more of them are rejected with a 413 */
+    public Batch maxRequests(int maxRequests){
+        if(maxRequests <= 0) throw new IllegalArgumentException("max requests must be positive: " + maxRequests);
+        this.maxRequests = maxRequests;
+        return this;
+    }
+
+    /* bytes of the batch body, and bytes of the sub-responses together: past them a sub-response is replaced by a 500 */
+    public Batch maxBytes(long maxBytes){
+        if(maxBytes <= 0) throw new IllegalArgumentException("max bytes must be positive: " + maxBytes);
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    /* milliseconds a batch has to answer, shortened by the deadline of the batch request if any */
+    public Batch timeout(long timeout){
+        if(timeout <= 0) throw new IllegalArgumentException("timeout must be positive: " + timeout);
+        this.timeout = timeout;
+        return this;
+    }
+
+    public String getPath(){
+        return path;
+    }
+
+    public int getMaxRequests(){
+        return maxRequests;
+    }
+
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    public long getTimeout(){
+        return timeout;
+    }
+
+    /* a sub-request as sent by the client */
+    static final class Part {
+        String method;
+        String path;
+        Map<String, String> headers;
+        JsonElement body;
+    }
+
+    /*
+     * the Action of the batch endpoint: the deadline of the batch request is disarmed at once,
+     * since the batch answers within a deadline of its own, whatever its sub-requests do
+     */
+    void run(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response){
+        final Deadline deadline = handler.getDeadline(request);
+        final long timeout = (deadline != null) ? Math.min(this.timeout, deadline.remainingMillis()) : this.timeout;
+        if(!handler.claim(request)) return;
+        final long expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        final long maxBytes = this.maxBytes;
+        final int maxRequests = this.maxRequests;
+        BodyReader.read(request, maxBytes).whenComplete((buffer, failure) -> {
+            if(failure != null){
+                reject(handler, request, response, (failure instanceof PayloadTooLargeException) ? 413 : 400, "Invalid batch: " + failure.getMessage());
+                return;
+            }
+            final JsonConverter<?> converter = handler.getJsonConverter();
+            final List<Part> parts;
+            try {
+                parts = converter.getDataFrom(buffer.toInputStream(), PARTS);
+            } catch (IOException | JsonParseException e) {
+                reject(handler, request, response, 400, "Invalid batch: " + e.getMessage());
+                return;
+            } finally {
+                buffer.release();
+            }
+            if(parts == null || parts.isEmpty()){
+                reject(handler, request, response, 400, "Invalid batch: no requests");
+                return;
+            }
+            if(parts.size() > maxRequests){
+                reject(handler, request, response, 413, "Too many requests in the batch: " + parts.size() + ", at most " + maxRequests);
+                return;
+            }
+            final long left = TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime());
+            if(left <= 0){
+                reject(handler, request, response, 504, "Gateway timeout after " + timeout + " ms");
+                return;
+            }
+            new Run(handler, request, response, parts, maxBytes, left).start();
+        });
+    }
+
+    private static void reject(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response, final int status, final String message){
+        log.info(LocalTime.now() + ": rejected batch (code " + status + ") " + message);
+        response.setStatus(status);
+        try {
+            handler.toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(status, request.getRequestURI(), message));
+        } catch (IOException | RuntimeException e) {
+            log.warning(LocalTime.now() + ": unable to send the batch response " + e.toString());
+            request.getAsyncContext().complete();
+        }
+    }
+
+    /* one batch request: its sub-requests, and the deadline which answers the batch with whatever is done by then */
+    private static final class Run {
+        private final RestHandler handler;
+        private final HttpServletRequest request;
+        private final HttpServletResponse response;
+        private final List<Part> parts;
+        private final long timeout;
+        private final AtomicLong budget;
+        private final BatchExchange[] exchanges;
+        private final AtomicInteger pending;
+        private Deadline deadline;
+
+        Run(RestHandler handler, HttpServletRequest request, HttpServletResponse response, List<Part> parts, long maxBytes, long timeout) {
+            this.handler = handler;
+            this.request = request;
+            this.response = response;
+            this.parts = parts;
+            this.timeout = timeout;
+            this.budget = new AtomicLong(maxBytes);
+            this.exchanges = new BatchExchange[parts.size()];
+            this.pending = new AtomicInteger(parts.size());
+        }
+
+        void start(){
+            if(log.isLoggable(Level.FINE)) log.fine(LocalTime.now() + ": batch of " + parts.size() + " requests");
+            deadline = Deadline.start(timeout, this::answer);
+            for(int i=0; i<exchanges.length; i++){
+                final Part part = parts.get(i);
+                final boolean valid = part != null && part.path != null && part.path.startsWith("/");
+                final String method = (part == null || part.method == null) ? "GET" : part.method.trim().toUpperCase(Locale.ROOT);
+                exchanges[i] = new BatchExchange(handler, request, response, method, valid ? part.path : "/",
+                        (part == null || part.headers == null) ? Collections.<String, String>emptyMap() : part.headers,
+                        valid ? contentOf(part) : null, budget, this::done);
+                if(valid){
+                    submit(exchanges[i]);
+                } else {
+                    fail(exchanges[i], 400, "Invalid request of the batch: a path starting with / is required");
+                }
+            }
+        }
+
+        /* what the GenericNioServlet does for a request, on the in-memory one */
+        private void submit(final BatchExchange exchange){
+            final HttpServletRequest sub = exchange.request;
+            final HttpServletResponse subResponse = exchange.response;
+            try {
+                if(handler.isMetricsEnabled() || handler.getAccessLog() != null){
+                    sub.setAttribute(RestHandler.START_NANOS_ATTRIBUTE, System.nanoTime());
+                }
+                if(handler.isMetricsEnabled()){
+                    exchange.addListener(handler.getMetrics().requestStarted());
+                }
+                final Router.RouteMatch match = handler.route(sub);
+                sub.setAttribute(RestHandler.ROUTE_MATCH_ATTRIBUTE, match);
+                final Object batch = request.getAttribute(RestHandler.ROUTE_MATCH_ATTRIBUTE);
+                if(batch instanceof Router.RouteMatch && ((Router.RouteMatch) batch).getAction() == match.getAction()){
+                    fail(exchange, 400, "A batch can't contain another batch");
+                    return;
+                }
+                if(!handler.admit(match, sub)){
+                    handler.shed(sub, subResponse);
+                    return;
+                }
+                final long left = Math.max(1, deadline.remainingMillis());
+                final HttpServletRequest bound = handler.arm(match, sub, subResponse, left);
+                if(handler.serveCached(match, bound, subResponse, () -> handler.dispatch(match, bound, subResponse))){
+                    return;
+                }
+                handler.dispatch(match, bound, subResponse);
+            } catch (IOException | RuntimeException e) {
+                log.info(LocalTime.now() + ": Internal Server Error (code 500) in a batch " + e.toString());
+                fail(exchange, 500, e.toString());
+            }
+        }
+
+        private void fail(final BatchExchange exchange, final int status, final String message){
+            exchange.response.setStatus(status);
+            try {
+                handler.toJsonResponse(exchange.request, exchange.response, new reactivej.mawashi.nio.utils.Error(status, exchange.request.getRequestURI(), message));
+            } catch (IOException | RuntimeException e) {
+                exchange.complete();
+            }
+        }
+
+        private void done(final BatchExchange exchange){
+            if(pending.decrementAndGet() == 0 && deadline.respond()) answer();
+        }
+
+        /* once every sub-request is done, or on the timer thread when the deadline expires first */
+        private void answer(){
+            final PooledBuffer buffer = PooledBuffer.acquire();
+            try {
+                final JsonWriter json = new JsonWriter(buffer.writer());
+                json.beginArray();
+                for(BatchExchange exchange : exchanges){
+                    write(json, exchange);
+                }
+                json.endArray();
+                json.flush();
+            } catch (IOException | RuntimeException e) {
+                buffer.release();
+                reject(handler, request, response, 500, e.toString());
+                return;
+            }
+            try {
+                handler.sendPooled(request, response, buffer, JsonCodec.MEDIA_TYPE);
+            } catch (IOException | RuntimeException e) {
+                log.warning(LocalTime.now() + ": unable to send the batch response " + e.toString());
+                request.getAsyncContext().complete();
+            }
+        }
+
+        private void write(final JsonWriter json, final BatchExchange exchange) throws IOException {
+            json.beginObject();
+            if(!exchange.isDone()){
+                exchange.abandon();
+                json.name("status").value(504);
+                json.name("headers").beginObject().name("Content-Type").value(JsonCodec.MEDIA_TYPE).endObject();
+                json.name("body");
+                handler.getJsonConverter().writeJsonOf(new reactivej.mawashi.nio.utils.Error(504, exchange.request.getRequestURI(), "Gateway timeout after " + timeout + " ms"), json);
+                json.endObject();
+                return;
+            }
+            final Map<String, String> headers = exchange.response.headers();
+            json.name("status").value(exchange.response.getStatus());
+            json.name("headers").beginObject();
+            for(Map.Entry<String, String> header : headers.entrySet()){
+                json.name(header.getKey()).value(header.getValue());
+            }
+            json.endObject();
+            final byte[] body = exchange.body();
+            if(body.length > 0){
+                final String contentType = exchange.response.getContentType();
+                if(isJson(contentType)){
+                    json.name("body").jsonValue(new String(body, StandardCharsets.UTF_8));
+                } else if(Compression.isCompressible(contentType)){
+                    json.name("body").value(new String(body, StandardCharsets.UTF_8));
+                } else {
+                    json.name("encoding").value("base64");
+                    json.name("body").value(Base64.getEncoder().encodeToString(body));
+                }
+            }
+            json.endObject();
+        }
+    }
+
+    /* a json body goes as it is, a string with another Content-Type as its text */
+    private static byte[] contentOf(final Part part){
+        if(part.body == null || part.body.isJsonNull()) return null;
+        String contentType = null;
+        if(part.headers != null){
+            for(Map.Entry<String, String> header : part.headers.entrySet()){
+                if("Content-Type".equalsIgnoreCase(header.getKey())) contentType = header.getValue();
+            }
+        }
+        if(contentType != null && !isJson(contentType) && part.body.isJsonPrimitive() && part.body.getAsJsonPrimitive().isString()){
+            return part.body.getAsString().getBytes(StandardCharsets.UTF_8);
+        }
+        return part.body.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /* application/json and the +json types: a single json document, unlike ndjson */
+    private static boolean isJson(final String contentType){
+        final String mediaType = Codecs.mediaTypeOf(contentType).toLowerCase(Locale.ROOT);
+        return mediaType.equals(JsonCodec.MEDIA_TYPE) || mediaType.endsWith("+json");
+    }
+}
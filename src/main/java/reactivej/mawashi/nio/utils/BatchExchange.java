@@ -0,0 +1,767 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletContext;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.WriteListener;
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * @author alessandroargentieri
+ *
+ * One sub-request of a batch: an in-memory request, response and AsyncContext handed to the Action as if it came from the container.
+ * The body of the sub-request is read from an array, the response is kept in memory: a buffered response is taken over by the
+ * exchange as a ResponseSink, before it reaches the servlet output stream, and a stream is written into an in-memory output stream.
+ * Completing the AsyncContext ends the exchange; the responses of a batch share the budget of bytes it can hold
+ */
+final class BatchExchange implements AsyncContext, ResponseSink {
+
+    /* headers of the batch request which make no sense for a sub-request, or would change how its response is encoded */
+    private static final String[] NOT_INHERITED = {"Content-Type", "Content-Length", "Transfer-Encoding", "Content-Encoding", "Accept-Encoding", "Expect"};
+
+    final Request request;
+    final Response response;
+    private final RestHandler handler;
+    private final AsyncContext outer;
+    private final AtomicLong budget;
+    private final Consumer<BatchExchange> onDone;
+    private final AtomicBoolean done = new AtomicBoolean();
+    private final List<AsyncListener> listeners = new CopyOnWriteArrayList<>();
+    private volatile byte[] body;
+    private volatile long timeout;
+
+    BatchExchange(RestHandler handler, HttpServletRequest batch, HttpServletResponse batchResponse, String method, String uri, Map<String, String> headers,
+                  byte[] content, AtomicLong budget, Consumer<BatchExchange> onDone) {
+        this.handler = handler;
+        this.outer = batch.getAsyncContext();
+        this.budget = budget;
+        this.onDone = onDone;
+        this.request = new Request(batch, method, uri, headers, content);
+        this.response = new Response(batchResponse);
+        request.setAttribute(RestHandler.RESPONSE_SINK_ATTRIBUTE, this);
+    }
+
+    /* the captured body of a completed exchange */
+    byte[] body(){
+        final byte[] captured = body;
+        return (captured != null) ? captured : response.out.toByteArray();
+    }
+
+    boolean isDone(){
+        return done.get();
+    }
+
+    /* the batch is answered without this exchange: what the Action still writes goes nowhere */
+    void abandon(){
+        response.out.closed = true;
+    }
+
+    /* ResponseSink: a copy of the buffered response is kept, the original goes back to its pool */
+    @Override
+    public ByteBuffer onResponse(final HttpServletRequest request, final HttpServletResponse response, final ByteBuffer content) {
+        final byte[] copy = new byte[content.remaining()];
+        if(!take(copy.length)){
+            overflow();
+        } else {
+            content.duplicate().get(copy);
+            this.body = copy;
+        }
+        handler.completed(request, response, copy.length);
+        complete();
+        return null;
+    }
+
+    @Override
+    public void onCompleted(final HttpServletRequest request, final HttpServletResponse response) {
+        //the exchange completes itself
+    }
+
+    private boolean take(final long bytes){
+        if(budget.addAndGet(-bytes) >= 0) return true;
+        budget.addAndGet(bytes);
+        return false;
+    }
+
+    /* a response beyond the budget of the batch is replaced by an error */
+    private void overflow(){
+        response.status = 500;
+        response.headers.clear();
+        response.setContentType("application/json");
+        body = handler.getJsonConverter().getJsonOf(new reactivej.mawashi.nio.utils.Error(500, request.uri, "Response exceeds the byte limit of the batch"))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void complete() {
+        if(!done.compareAndSet(false, true)) return;
+        if(response.out.overflowed) overflow();
+        final AsyncEvent event = new AsyncEvent(this, request, response);
+        for(AsyncListener listener : listeners){
+            try {
+                listener.onComplete(event);
+            } catch (IOException | RuntimeException e) {
+                //a listener can't prevent the completion
+            }
+        }
+        onDone.accept(this);
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return response;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return true;
+    }
+
+    @Override
+    public void dispatch() {
+        throw new IllegalStateException("a batched request can't be dispatched");
+    }
+
+    @Override
+    public void dispatch(String path) {
+        throw new IllegalStateException("a batched request can't be dispatched");
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        throw new IllegalStateException("a batched request can't be dispatched");
+    }
+
+    /* on the container threads, as the AsyncContext of the batch request does */
+    @Override
+    public void start(Runnable run) {
+        outer.start(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest servletRequest, ServletResponse servletResponse) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> type) throws ServletException {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    /* the deadline of the batch bounds the sub-requests: the timeout is only kept */
+    @Override
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /*
+     * the sub-request: method, uri, headers, attributes and body of its own, the rest from the batch request.
+     * What an Action usually asks of the connection is copied upfront, since the batch request is recycled once answered
+     */
+    final class Request extends HttpServletRequestWrapper {
+        private final String method;
+        private final String uri;
+        private final String query;
+        private final Map<String, List<String>> headers = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+        private final Map<String, String[]> parameters;
+        private final byte[] content;
+        private final String scheme;
+        private final String serverName;
+        private final int serverPort;
+        private final String remoteAddr;
+        private final String protocol;
+        private final String contextPath;
+        private ServletInputStream in;
+
+        Request(HttpServletRequest batch, String method, String uri, Map<String, String> headers, byte[] content) {
+            super(batch);
+            final int question = uri.indexOf('?');
+            this.method = method;
+            this.uri = (question < 0) ? uri : uri.substring(0, question);
+            this.query = (question < 0) ? null : uri.substring(question + 1);
+            for(Enumeration<String> names = batch.getHeaderNames(); names.hasMoreElements(); ){
+                final String name = names.nextElement();
+                if(isInherited(name)) this.headers.put(name, Collections.list(batch.getHeaders(name)));
+            }
+            for(Map.Entry<String, String> header : headers.entrySet()){
+                this.headers.put(header.getKey(), Collections.singletonList(header.getValue()));
+            }
+            if(content != null){
+                this.headers.put("Content-Length", Collections.singletonList(String.valueOf(content.length)));
+                if(!this.headers.containsKey("Content-Type")) this.headers.put("Content-Type", Collections.singletonList(JsonCodec.MEDIA_TYPE));
+            }
+            this.parameters = parse(query);
+            this.content = (content != null) ? content : new byte[0];
+            this.scheme = batch.getScheme();
+            this.serverName = batch.getServerName();
+            this.serverPort = batch.getServerPort();
+            this.remoteAddr = batch.getRemoteAddr();
+            this.protocol = batch.getProtocol();
+            this.contextPath = batch.getContextPath();
+        }
+
+        @Override
+        public String getMethod() {
+            return method;
+        }
+
+        @Override
+        public String getRequestURI() {
+            return uri;
+        }
+
+        @Override
+        public StringBuffer getRequestURL() {
+            final StringBuffer url = new StringBuffer(scheme).append("://").append(serverName);
+            if(!(("http".equals(scheme) && serverPort == 80) || ("https".equals(scheme) && serverPort == 443))) url.append(':').append(serverPort);
+            return url.append(uri);
+        }
+
+        @Override
+        public String getQueryString() {
+            return query;
+        }
+
+        @Override
+        public String getServletPath() {
+            return "";
+        }
+
+        @Override
+        public String getPathInfo() {
+            return uri.substring(Math.min(contextPath.length(), uri.length()));
+        }
+
+        @Override
+        public String getContextPath() {
+            return contextPath;
+        }
+
+        @Override
+        public String getScheme() {
+            return scheme;
+        }
+
+        @Override
+        public String getServerName() {
+            return serverName;
+        }
+
+        @Override
+        public int getServerPort() {
+            return serverPort;
+        }
+
+        @Override
+        public String getRemoteAddr() {
+            return remoteAddr;
+        }
+
+        @Override
+        public String getProtocol() {
+            return protocol;
+        }
+
+        @Override
+        public String getHeader(String name) {
+            final List<String> values = headers.get(name);
+            return (values == null || values.isEmpty()) ? null : values.get(0);
+        }
+
+        @Override
+        public Enumeration<String> getHeaders(String name) {
+            final List<String> values = headers.get(name);
+            return Collections.enumeration((values == null) ? Collections.<String>emptyList() : values);
+        }
+
+        @Override
+        public Enumeration<String> getHeaderNames() {
+            return Collections.enumeration(new ArrayList<>(headers.keySet()));
+        }
+
+        @Override
+        public int getIntHeader(String name) {
+            final String value = getHeader(name);
+            return (value == null) ? -1 : Integer.parseInt(value.trim());
+        }
+
+        @Override
+        public long getDateHeader(String name) {
+            final String value = getHeader(name);
+            if(value == null) return -1;
+            try {
+                return ZonedDateTime.parse(value.trim(), DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+            } catch (DateTimeParseException e) {
+                throw new IllegalArgumentException("not a date: " + value);
+            }
+        }
+
+        @Override
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+
+        @Override
+        public int getContentLength() {
+            return (content.length > 0 || getContentType() != null) ? content.length : -1;
+        }
+
+        @Override
+        public long getContentLengthLong() {
+            return getContentLength();
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            final String type = getContentType();
+            final int charset = (type == null) ? -1 : type.toLowerCase(Locale.ROOT).indexOf("charset=");
+            return (charset < 0) ? null : type.substring(charset + 8).split(";")[0].trim().replace("\"", "");
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            if(in == null) in = new ContentInputStream(content);
+            return in;
+        }
+
+        @Override
+        public BufferedReader getReader() throws UnsupportedEncodingException {
+            final String charset = getCharacterEncoding();
+            return new BufferedReader(new InputStreamReader(getInputStream(), (charset == null) ? "UTF-8" : charset));
+        }
+
+        @Override
+        public String getParameter(String name) {
+            final String[] values = parameters.get(name);
+            return (values == null) ? null : values[0];
+        }
+
+        @Override
+        public Map<String, String[]> getParameterMap() {
+            return Collections.unmodifiableMap(parameters);
+        }
+
+        @Override
+        public Enumeration<String> getParameterNames() {
+            return Collections.enumeration(parameters.keySet());
+        }
+
+        @Override
+        public String[] getParameterValues(String name) {
+            final String[] values = parameters.get(name);
+            return (values == null) ? null : values.clone();
+        }
+
+        @Override
+        public Object getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        @Override
+        public Enumeration<String> getAttributeNames() {
+            return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+        }
+
+        @Override
+        public void setAttribute(String name, Object value) {
+            if(value == null) attributes.remove(name);
+            else attributes.put(name, value);
+        }
+
+        @Override
+        public void removeAttribute(String name) {
+            attributes.remove(name);
+        }
+
+        @Override
+        public AsyncContext startAsync() {
+            return BatchExchange.this;
+        }
+
+        @Override
+        public AsyncContext startAsync(ServletRequest servletRequest, ServletResponse servletResponse) {
+            return BatchExchange.this;
+        }
+
+        @Override
+        public AsyncContext getAsyncContext() {
+            return BatchExchange.this;
+        }
+
+        @Override
+        public boolean isAsyncStarted() {
+            return !done.get();
+        }
+
+        @Override
+        public boolean isAsyncSupported() {
+            return true;
+        }
+    }
+
+    /* the response of the sub-request: status, headers and body stay in memory, nothing reaches the batch response */
+    final class Response extends HttpServletResponseWrapper {
+        private final Map<String, List<String>> headers = Collections.synchronizedMap(new TreeMap<>(String.CASE_INSENSITIVE_ORDER));
+        private final CapturingOutputStream out = new CapturingOutputStream();
+        private volatile int status = 200;
+        private volatile String characterEncoding;
+        private PrintWriter writer;
+
+        Response(HttpServletResponse batch) {
+            super(batch);
+        }
+
+        /* the headers in the order of their names, each with its values joined */
+        Map<String, String> headers(){
+            final Map<String, String> joined = new LinkedHashMap<>();
+            synchronized (headers){
+                for(Map.Entry<String, List<String>> header : headers.entrySet()){
+                    joined.put(header.getKey(), String.join(", ", header.getValue()));
+                }
+            }
+            return joined;
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+        }
+
+        @Override
+        @SuppressWarnings("deprecation")
+        public void setStatus(int status, String message) {
+            this.status = status;
+        }
+
+        @Override
+        public int getStatus() {
+            return status;
+        }
+
+        @Override
+        public void sendError(int status) {
+            sendError(status, null);
+        }
+
+        @Override
+        public void sendError(int status, String message) {
+            this.status = status;
+            complete();
+        }
+
+        @Override
+        public void sendRedirect(String location) {
+            status = 302;
+            setHeader("Location", location);
+            complete();
+        }
+
+        @Override
+        public void setHeader(String name, String value) {
+            if(value == null) headers.remove(name);
+            else headers.put(name, new ArrayList<>(Collections.singletonList(value)));
+        }
+
+        @Override
+        public void addHeader(String name, String value) {
+            if(value == null) return;
+            synchronized (headers){
+                headers.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+            }
+        }
+
+        @Override
+        public void setIntHeader(String name, int value) {
+            setHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public void addIntHeader(String name, int value) {
+            addHeader(name, String.valueOf(value));
+        }
+
+        @Override
+        public void setDateHeader(String name, long date) {
+            setHeader(name, DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(date).atZone(ZoneOffset.UTC)));
+        }
+
+        @Override
+        public void addDateHeader(String name, long date) {
+            addHeader(name, DateTimeFormatter.RFC_1123_DATE_TIME.format(Instant.ofEpochMilli(date).atZone(ZoneOffset.UTC)));
+        }
+
+        @Override
+        public void addCookie(Cookie cookie) {
+            addHeader("Set-Cookie", cookie.getName() + "=" + cookie.getValue());
+        }
+
+        @Override
+        public boolean containsHeader(String name) {
+            return headers.containsKey(name);
+        }
+
+        @Override
+        public String getHeader(String name) {
+            synchronized (headers){
+                final List<String> values = headers.get(name);
+                return (values == null || values.isEmpty()) ? null : values.get(0);
+            }
+        }
+
+        @Override
+        public Collection<String> getHeaders(String name) {
+            synchronized (headers){
+                final List<String> values = headers.get(name);
+                return (values == null) ? Collections.<String>emptyList() : new ArrayList<>(values);
+            }
+        }
+
+        @Override
+        public Collection<String> getHeaderNames() {
+            synchronized (headers){
+                return new ArrayList<>(headers.keySet());
+            }
+        }
+
+        @Override
+        public void setContentType(String type) {
+            setHeader("Content-Type", type);
+        }
+
+        @Override
+        public String getContentType() {
+            return getHeader("Content-Type");
+        }
+
+        @Override
+        public void setCharacterEncoding(String charset) {
+            this.characterEncoding = charset;
+        }
+
+        @Override
+        public String getCharacterEncoding() {
+            return (characterEncoding != null) ? characterEncoding : "UTF-8";
+        }
+
+        /* the length of a sub-response is the one of its body in the batch: the header is left out */
+        @Override
+        public void setContentLength(int length) {
+            //ignored
+        }
+
+        @Override
+        public void setContentLengthLong(long length) {
+            //ignored
+        }
+
+        @Override
+        public ServletOutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public synchronized PrintWriter getWriter() throws UnsupportedEncodingException {
+            if(writer == null) writer = new PrintWriter(new OutputStreamWriter(out, getCharacterEncoding()));
+            return writer;
+        }
+
+        @Override
+        public void flushBuffer() {
+            if(writer != null) writer.flush();
+        }
+
+        @Override
+        public boolean isCommitted() {
+            return done.get();
+        }
+
+        @Override
+        public void reset() {
+            resetBuffer();
+            headers.clear();
+            status = 200;
+        }
+
+        @Override
+        public void resetBuffer() {
+            out.buffer.reset();
+        }
+    }
+
+    /* the body of the sub-request, always ready: the read listener is called back at once */
+    private static final class ContentInputStream extends ServletInputStream {
+        private final ByteArrayInputStream in;
+
+        ContentInputStream(byte[] content) {
+            this.in = new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public boolean isFinished() {
+            return in.available() == 0;
+        }
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setReadListener(ReadListener listener) {
+            try {
+                listener.onDataAvailable();
+                listener.onAllDataRead();
+            } catch (IOException | RuntimeException e) {
+                listener.onError(e);
+            }
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, len);
+        }
+    }
+
+    /* the body of a streamed sub-response, always ready: it fails once the batch runs out of bytes or is answered */
+    private final class CapturingOutputStream extends ServletOutputStream {
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        private volatile boolean closed;
+        private volatile boolean overflowed;
+
+        @Override
+        public boolean isReady() {
+            return true;
+        }
+
+        @Override
+        public void setWriteListener(WriteListener listener) {
+            try {
+                listener.onWritePossible();
+            } catch (IOException | RuntimeException e) {
+                listener.onError(e);
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            check(1);
+            buffer.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            check(len);
+            buffer.write(b, off, len);
+        }
+
+        private void check(final int length) throws IOException {
+            if(closed || done.get()) throw new IOException("the batched response is closed");
+            if(!take(length)){
+                overflowed = true;
+                throw new IOException("the batched response exceeds the byte limit of the batch");
+            }
+        }
+
+        byte[] toByteArray(){
+            return buffer.toByteArray();
+        }
+    }
+
+    private static boolean isInherited(final String name){
+        for(String header : NOT_INHERITED){
+            if(header.equalsIgnoreCase(name)) return false;
+        }
+        return true;
+    }
+
+    private static Map<String, String[]> parse(final String query){
+        final Map<String, List<String>> values = new LinkedHashMap<>();
+        if(query != null){
+            for(String pair : query.split("&")){
+                if(pair.isEmpty()) continue;
+                final int equals = pair.indexOf('=');
+                final String name = decode((equals < 0) ? pair : pair.substring(0, equals));
+                final String value = (equals < 0) ? "" : decode(pair.substring(equals + 1));
+                values.computeIfAbsent(name, n -> new ArrayList<>()).add(value);
+            }
+        }
+        final Map<String, String[]> parameters = new LinkedHashMap<>();
+        for(Map.Entry<String, List<String>> entry : values.entrySet()){
+            parameters.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+        }
+        return parameters;
+    }
+
+    private static String decode(final String text){
+        try {
+            return URLDecoder.decode(text, "UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return text;
+        }
+    }
+}
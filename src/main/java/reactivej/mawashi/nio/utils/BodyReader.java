@@ -0,0 +1,76 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.ReadListener;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Non-Blocking reader of the request body: the container calls it back through the Servlet 3.1 ReadListener
+ * whenever data is available, and the body is collected into a PooledBuffer without pinning any thread.
+ * The returned stage completes with the whole body or fails with a PayloadTooLargeException
+ * as soon as the body is known to exceed the configured max size
+ */
+final class BodyReader implements ReadListener {
+
+    private final ServletInputStream in;
+    private final long maxBodySize;
+    private final PooledBuffer buffer = PooledBuffer.acquire();
+    private final CompletableFuture<PooledBuffer> body = new CompletableFuture<>();
+
+    private BodyReader(ServletInputStream in, long maxBodySize) {
+        this.in = in;
+        this.maxBodySize = maxBodySize;
+    }
+
+    /* the buffer the stage completes with belongs to the caller, which must release it */
+    static CompletionStage<PooledBuffer> read(final HttpServletRequest request, final long maxBodySize){
+        if(request.getContentLengthLong() > maxBodySize){
+            CompletableFuture<PooledBuffer> rejected = new CompletableFuture<>();
+            rejected.completeExceptionally(new PayloadTooLargeException(maxBodySize));
+            return rejected;
+        }
+        try {
+            BodyReader reader = new BodyReader(request.getInputStream(), maxBodySize);
+            reader.in.setReadListener(reader);
+            return reader.body;
+        } catch (IOException | IllegalStateException e){
+            CompletableFuture<PooledBuffer> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    @Override
+    public void onDataAvailable() {
+        try {
+            while (!body.isDone() && in.isReady()) {
+                /* asks for one byte more than allowed to detect an oversized body without a Content-Length */
+                long allowed = maxBodySize - buffer.size() + 1;
+                int read = buffer.readFrom(in, (int) Math.min(allowed, Integer.MAX_VALUE));
+                if (read < 0) return;
+                if (buffer.size() > maxBodySize) fail(new PayloadTooLargeException(maxBodySize));
+            }
+        } catch (IOException e){
+            fail(e);
+        }
+    }
+
+    @Override
+    public void onAllDataRead() {
+        body.complete(buffer);
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        fail(t);
+    }
+
+    private void fail(Throwable t){
+        if(body.completeExceptionally(t)) buffer.release();
+    }
+}
@@ -0,0 +1,52 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonSyntaxException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+/**
+ * @author alessandroargentieri
+ *
+ * application/cbor (RFC 8949), the compact self-describing binary twin of json for the calls between services.
+ * Values go through the same cached Gson adapters as json, generated @JsonDto adapters included, writing to a CborWriter
+ * instead of the text JsonWriter: the same documents, with binary numbers and no quoting nor escaping.
+ * Bodies are decoded by the CborReader into the Gson tree of the same json document, then read by the adapters
+ */
+public final class CborCodec implements Codec {
+
+    public static final String MEDIA_TYPE = "application/cbor";
+
+    private final JsonConverter jsonConverter;
+
+    public CborCodec(JsonConverter jsonConverter) {
+        this.jsonConverter = jsonConverter;
+    }
+
+    @Override
+    public String getMediaType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public void encode(final Object value, final OutputStream out) throws IOException {
+        final CborWriter writer = new CborWriter(out);
+        writer.setSerializeNulls(jsonConverter.serializeNulls());
+        jsonConverter.writeJsonOf(value, writer);
+        writer.flush();
+    }
+
+    @Override
+    public Object decode(final InputStream in, final Type type) throws IOException {
+        final JsonElement tree;
+        try {
+            tree = CborReader.read(in);
+        } catch (IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+        return (tree == null) ? null : jsonConverter.fromTree(tree, jsonConverter.getAdapter(type));
+    }
+}
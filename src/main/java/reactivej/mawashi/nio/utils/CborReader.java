@@ -0,0 +1,211 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+import com.google.gson.stream.MalformedJsonException;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Decoder of a CBOR document into the Gson tree of the same json document, the twin of the CborWriter:
+ * the tree then goes through the very same adapters as a json body, maps and generated adapters included.
+ * Definite and indefinite lengths, tags (skipped), half, single and double floats are supported;
+ * byte strings are read as arrays of numbers, as Gson writes a byte[], and integer map keys as names.
+ * The lengths come from the client: strings are read in bounded chunks and containers grow with the items
+ * actually received, so a length bigger than the body only ends it early and the tree never outgrows the body
+ */
+final class CborReader {
+
+    private static final int MAX_DEPTH = 512;
+    private static final int CHUNK_SIZE = 8192;
+
+    private final InputStream in;
+
+    private CborReader(InputStream in) {
+        this.in = in;
+    }
+
+    /* the tree of the whole document, null for an empty one; trailing content is rejected */
+    static JsonElement read(final InputStream in) throws IOException {
+        final int initial = in.read();
+        if(initial < 0) return null;
+        final CborReader reader = new CborReader(in);
+        final JsonElement tree = reader.item(initial, 0);
+        if(in.read() >= 0) throw new MalformedJsonException("CBOR document was not fully consumed");
+        return tree;
+    }
+
+    /* a data item, with everything it contains */
+    private JsonElement item(int initial, final int depth) throws IOException {
+        while((initial >>> 5) == 6){
+            argument(initial);
+            initial = readByte();
+        }
+        switch(initial >>> 5){
+            case 0:
+            case 1:
+                return new JsonPrimitive(integer(initial));
+            case 2:
+                return bytes(initial);
+            case 3:
+                return new JsonPrimitive(readText(initial));
+            case 4:
+                return array(initial, depth);
+            case 5:
+                return map(initial, depth);
+            default:
+                return simple(initial);
+        }
+    }
+
+    private JsonArray array(final int initial, final int depth) throws IOException {
+        if(depth == MAX_DEPTH) throw new MalformedJsonException("CBOR nesting deeper than " + MAX_DEPTH);
+        final JsonArray array = new JsonArray();
+        if((initial & 0x1f) == 31){
+            for(int next = readByte(); next != 0xff; next = readByte()) array.add(item(next, depth + 1));
+            return array;
+        }
+        for(long left = length(argument(initial)); left > 0; left--) array.add(item(readByte(), depth + 1));
+        return array;
+    }
+
+    private JsonObject map(final int initial, final int depth) throws IOException {
+        if(depth == MAX_DEPTH) throw new MalformedJsonException("CBOR nesting deeper than " + MAX_DEPTH);
+        final JsonObject map = new JsonObject();
+        if((initial & 0x1f) == 31){
+            for(int next = readByte(); next != 0xff; next = readByte()) map.add(key(next), item(readByte(), depth + 1));
+            return map;
+        }
+        for(long left = length(argument(initial)); left > 0; left--) map.add(key(readByte()), item(readByte(), depth + 1));
+        return map;
+    }
+
+    /* signed numbers, as Gson writes a byte[] */
+    private JsonArray bytes(final int initial) throws IOException {
+        final ByteArrayOutputStream content = new ByteArrayOutputStream();
+        readString(initial, 2, content);
+        final JsonArray array = new JsonArray();
+        for(byte b : content.toByteArray()) array.add((long) b);
+        return array;
+    }
+
+    private String key(int initial) throws IOException {
+        while((initial >>> 5) == 6){
+            argument(initial);
+            initial = readByte();
+        }
+        switch(initial >>> 5){
+            case 0:
+            case 1:
+                return integer(initial).toString();
+            case 3:
+                return readText(initial);
+            default:
+                throw new MalformedJsonException("unsupported CBOR map key, major type " + (initial >>> 5));
+        }
+    }
+
+    /* an unsigned (major type 0) or negative (major type 1) integer, of up to 65 bits */
+    private Number integer(final int initial) throws IOException {
+        final long n = argument(initial);
+        if((initial >>> 5) == 0) return (n >= 0) ? (Number) n : new BigInteger(Long.toUnsignedString(n));
+        if(n >= 0) return -1 - n;
+        return new BigInteger(Long.toUnsignedString(n)).add(BigInteger.ONE).negate();
+    }
+
+    private JsonElement simple(final int initial) throws IOException {
+        switch(initial){
+            case 0xf4: return new JsonPrimitive(false);
+            case 0xf5: return new JsonPrimitive(true);
+            case 0xf6: case 0xf7: return JsonNull.INSTANCE;
+            case 0xf9: return new JsonPrimitive((double) halfToFloat((int) readUnsigned(2)));
+            case 0xfa: return new JsonPrimitive((double) Float.intBitsToFloat((int) readUnsigned(4)));
+            case 0xfb: return new JsonPrimitive(Double.longBitsToDouble(readUnsigned(8)));
+            default:
+                if((initial & 0x1f) < 24) return new JsonPrimitive((long) (initial & 0x1f));
+                if((initial & 0x1f) == 24) return new JsonPrimitive((long) readByte());
+                throw new MalformedJsonException("unexpected CBOR byte 0x" + Integer.toHexString(initial));
+        }
+    }
+
+    /* the unsigned argument of the initial byte, as the bits of a long */
+    private long argument(final int initial) throws IOException {
+        final int info = initial & 0x1f;
+        if(info < 24) return info;
+        switch(info){
+            case 24: return readUnsigned(1);
+            case 25: return readUnsigned(2);
+            case 26: return readUnsigned(4);
+            case 27: return readUnsigned(8);
+            default: throw new MalformedJsonException("unexpected CBOR byte 0x" + Integer.toHexString(initial));
+        }
+    }
+
+    /* the declared number of items, only an upper bound: each of them still has to be read from the body */
+    private static long length(final long items) throws IOException {
+        if(items < 0) throw new MalformedJsonException("CBOR container too long: " + Long.toUnsignedString(items));
+        return items;
+    }
+
+    private String readText(final int initial) throws IOException {
+        final ByteArrayOutputStream text = new ByteArrayOutputStream();
+        readString(initial, 3, text);
+        return new String(text.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    /* a text (major type 3) or byte (2) string, whose indefinite length chunks must all be of the same type */
+    private void readString(final int initial, final int major, final ByteArrayOutputStream out) throws IOException {
+        if((initial & 0x1f) != 31){
+            readFully(argument(initial), out);
+            return;
+        }
+        for(int chunk = readByte(); chunk != 0xff; chunk = readByte()){
+            if((chunk >>> 5) != major || (chunk & 0x1f) == 31) throw new MalformedJsonException("invalid chunk of an indefinite CBOR string");
+            readFully(argument(chunk), out);
+        }
+    }
+
+    /* the buffer grows with the bytes actually received, never with the declared length */
+    private void readFully(final long length, final ByteArrayOutputStream out) throws IOException {
+        if(length < 0 || length > Integer.MAX_VALUE - 8 - out.size()) throw new MalformedJsonException("CBOR string too long: " + Long.toUnsignedString(length));
+        final byte[] chunk = new byte[(int) Math.min(length, CHUNK_SIZE)];
+        long left = length;
+        while(left > 0){
+            final int n = in.read(chunk, 0, (int) Math.min(left, chunk.length));
+            if(n < 0) throw new MalformedJsonException("truncated CBOR document");
+            out.write(chunk, 0, n);
+            left -= n;
+        }
+    }
+
+    private long readUnsigned(final int bytes) throws IOException {
+        long value = 0;
+        for(int i=0; i<bytes; i++) value = (value << 8) | readByte();
+        return value;
+    }
+
+    private int readByte() throws IOException {
+        final int b = in.read();
+        if(b < 0) throw new MalformedJsonException("truncated CBOR document");
+        return b;
+    }
+
+    private static float halfToFloat(final int half){
+        final int exponent = (half >>> 10) & 0x1f;
+        final int mantissa = half & 0x3ff;
+        final float magnitude;
+        if(exponent == 0) magnitude = mantissa * (float) Math.pow(2, -24);
+        else if(exponent == 31) magnitude = (mantissa == 0) ? Float.POSITIVE_INFINITY : Float.NaN;
+        else magnitude = (float) ((mantissa + 1024) * Math.pow(2, exponent - 25));
+        return ((half & 0x8000) != 0) ? -magnitude : magnitude;
+    }
+}
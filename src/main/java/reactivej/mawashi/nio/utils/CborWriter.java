@@ -0,0 +1,260 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Gson JsonWriter emitting CBOR instead of json text, so that any TypeAdapter writes CBOR as it is.
+ * Arrays and objects are written with indefinite length, closed by a break, since their size is not known upfront;
+ * integers take from 1 to 9 bytes, doubles which are exact floats take 5, strings are UTF-8 with a length prefix.
+ * As with the json writer, the null fields of an object are left out unless the Gson serializes nulls
+ */
+final class CborWriter extends JsonWriter {
+
+    private static final int UNSIGNED = 0;
+    private static final int NEGATIVE = 1 << 5;
+    private static final int TEXT     = 3 << 5;
+    private static final int FALSE    = 0xf4;
+    private static final int TRUE     = 0xf5;
+    private static final int NULL     = 0xf6;
+    private static final int FLOAT    = 0xfa;
+    private static final int DOUBLE   = 0xfb;
+    private static final int ARRAY    = 0x9f;
+    private static final int MAP      = 0xbf;
+    private static final int BREAK    = 0xff;
+
+    /* the base class needs a Writer, which is never used */
+    private static final Writer UNWRITABLE = new Writer() {
+        @Override
+        public void write(char[] buffer, int offset, int count) {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void flush() {
+            throw new AssertionError();
+        }
+
+        @Override
+        public void close() {
+            throw new AssertionError();
+        }
+    };
+
+    private final OutputStream out;
+    private final byte[] scratch = new byte[9];
+    private String deferredName;
+
+    CborWriter(OutputStream out) {
+        super(UNWRITABLE);
+        this.out = out;
+    }
+
+    @Override
+    public JsonWriter beginArray() throws IOException {
+        writeDeferredName();
+        out.write(ARRAY);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endArray() throws IOException {
+        out.write(BREAK);
+        return this;
+    }
+
+    @Override
+    public JsonWriter beginObject() throws IOException {
+        writeDeferredName();
+        out.write(MAP);
+        return this;
+    }
+
+    @Override
+    public JsonWriter endObject() throws IOException {
+        if(deferredName != null) throw new IllegalStateException("dangling name: " + deferredName);
+        out.write(BREAK);
+        return this;
+    }
+
+    /* the name is written with its value, so that it can be dropped with a null one */
+    @Override
+    public JsonWriter name(final String name) throws IOException {
+        if(name == null) throw new NullPointerException("name == null");
+        if(deferredName != null) throw new IllegalStateException("dangling name: " + deferredName);
+        deferredName = name;
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(final String value) throws IOException {
+        if(value == null) return nullValue();
+        writeDeferredName();
+        writeText(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter jsonValue(final String value) throws IOException {
+        if(value == null) return nullValue();
+        throw new UnsupportedOperationException("raw json values can't be written as CBOR");
+    }
+
+    @Override
+    public JsonWriter nullValue() throws IOException {
+        if(deferredName != null){
+            if(!getSerializeNulls()){
+                deferredName = null;
+                return this;
+            }
+            writeDeferredName();
+        }
+        out.write(NULL);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(final boolean value) throws IOException {
+        writeDeferredName();
+        out.write(value ? TRUE : FALSE);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(final Boolean value) throws IOException {
+        return (value == null) ? nullValue() : value(value.booleanValue());
+    }
+
+    @Override
+    public JsonWriter value(final double value) throws IOException {
+        if(!isLenient() && (Double.isNaN(value) || Double.isInfinite(value))){
+            throw new IllegalArgumentException("Numeric values must be finite, but was " + value);
+        }
+        writeDeferredName();
+        writeDouble(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(final long value) throws IOException {
+        writeDeferredName();
+        writeLong(value);
+        return this;
+    }
+
+    @Override
+    public JsonWriter value(final Number value) throws IOException {
+        if(value == null) return nullValue();
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof AtomicInteger || value instanceof AtomicLong){
+            return value(value.longValue());
+        }
+        if(value instanceof Float){
+            final float f = value.floatValue();
+            if(!isLenient() && (Float.isNaN(f) || Float.isInfinite(f))) throw new IllegalArgumentException("Numeric values must be finite, but was " + f);
+            writeDeferredName();
+            writeFloat(f);
+            return this;
+        }
+        if(value instanceof Double) return value(value.doubleValue());
+        /* BigInteger, BigDecimal, Gson LazilyParsedNumber: as a long when exact, else as the text of the number, which reads back as a number */
+        final String text = value.toString();
+        try {
+            return value(Long.parseLong(text));
+        } catch (NumberFormatException e) {
+            //not a long
+        }
+        if(!(value instanceof BigInteger) && !(value instanceof BigDecimal)){
+            final double d = Double.parseDouble(text);
+            if(BigDecimal.valueOf(d).compareTo(new BigDecimal(text)) == 0) return value(d);
+        }
+        writeDeferredName();
+        writeText(text);
+        return this;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.flush();
+    }
+
+    private void writeDeferredName() throws IOException {
+        if(deferredName != null){
+            writeText(deferredName);
+            deferredName = null;
+        }
+    }
+
+    private void writeLong(final long value) throws IOException {
+        if(value >= 0){
+            writeHead(UNSIGNED, value);
+        } else {
+            writeHead(NEGATIVE, -1 - value);
+        }
+    }
+
+    /* a double which is exactly a float takes 5 bytes instead of 9 */
+    private void writeDouble(final double value) throws IOException {
+        final float f = (float) value;
+        if(f == value || Double.isNaN(value)){
+            writeFloat(f);
+            return;
+        }
+        final long bits = Double.doubleToLongBits(value);
+        scratch[0] = (byte) DOUBLE;
+        for(int i=1; i<=8; i++) scratch[i] = (byte) (bits >>> (64 - 8 * i));
+        out.write(scratch, 0, 9);
+    }
+
+    private void writeFloat(final float value) throws IOException {
+        final int bits = Float.floatToIntBits(value);
+        scratch[0] = (byte) FLOAT;
+        scratch[1] = (byte) (bits >>> 24);
+        scratch[2] = (byte) (bits >>> 16);
+        scratch[3] = (byte) (bits >>> 8);
+        scratch[4] = (byte) bits;
+        out.write(scratch, 0, 5);
+    }
+
+    /* ascii text, the common case of names and values, is written without encoding it into a new array */
+    private void writeText(final String text) throws IOException {
+        final int length = text.length();
+        boolean ascii = true;
+        for(int i=0; i<length && ascii; i++) ascii = text.charAt(i) < 0x80;
+        if(ascii){
+            writeHead(TEXT, length);
+            for(int i=0; i<length; i++) out.write(text.charAt(i));
+            return;
+        }
+        final byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+        writeHead(TEXT, utf8.length);
+        out.write(utf8);
+    }
+
+    /* major type and argument, in the shortest of the 1, 2, 3, 5 or 9 bytes forms */
+    private void writeHead(final int majorType, final long argument) throws IOException {
+        if(argument < 24){
+            out.write(majorType | (int) argument);
+            return;
+        }
+        final int bytes = (argument <= 0xffL) ? 1 : (argument <= 0xffffL) ? 2 : (argument <= 0xffffffffL) ? 4 : 8;
+        scratch[0] = (byte) (majorType | ((bytes == 1) ? 24 : (bytes == 2) ? 25 : (bytes == 4) ? 26 : 27));
+        for(int i=1; i<=bytes; i++) scratch[i] = (byte) (argument >>> (8 * (bytes - i)));
+        out.write(scratch, 0, bytes + 1);
+    }
+}
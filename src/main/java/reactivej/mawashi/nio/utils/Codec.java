@@ -0,0 +1,25 @@
+package reactivej.mawashi.nio.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+/**
+ * @author alessandroargentieri
+ *
+ * A format the responses can be encoded into and the request bodies decoded from, chosen by media type:
+ * from the Accept of the client for toNegotiatedResponse, from the Content-Type for readNegotiatedBody.
+ * json, xml and cbor are registered by default; more can be added with ReactiveJ#codec
+ */
+public interface Codec {
+
+    /* e.g. application/json, without parameters */
+    String getMediaType();
+
+    /* writes the whole value into out, which is not closed */
+    void encode(Object value, OutputStream out) throws IOException;
+
+    /* reads a value of the given type from the whole input; null for an empty body */
+    Object decode(InputStream in, Type type) throws IOException;
+}
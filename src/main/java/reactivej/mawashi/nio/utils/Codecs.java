@@ -0,0 +1,154 @@
+package reactivej.mawashi.nio.utils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author alessandroargentieri
+ *
+ * The codecs of a RestHandler and the content negotiation between them.
+ * An Accept header is parsed once: the codecs it accepts, sorted by its preference and then by registration order,
+ * are kept for the next requests with the same Accept, so a negotiation is usually a map lookup and a short scan
+ * for the first codec the route produces
+ */
+public final class Codecs {
+
+    /* distinct Accept headers kept; past this the cache starts over, so odd clients can't grow it without limit */
+    static final int MAX_CACHED = 512;
+    private static final Codec[] NONE = new Codec[0];
+
+    private volatile Codec[] codecs;
+    private final ConcurrentMap<String, Codec[]> ranked = new ConcurrentHashMap<>();
+
+    Codecs(Codec... codecs) {
+        this.codecs = codecs.clone();
+    }
+
+    /* a codec with the media type of one already registered replaces it, otherwise it comes last, as the least preferred on ties */
+    public synchronized Codecs register(final Codec codec){
+        final List<Codec> next = new ArrayList<>(Arrays.asList(codecs));
+        boolean replaced = false;
+        for(int i=0; i<next.size() && !replaced; i++){
+            if(next.get(i).getMediaType().equalsIgnoreCase(codec.getMediaType())){
+                next.set(i, codec);
+                replaced = true;
+            }
+        }
+        if(!replaced) next.add(codec);
+        codecs = next.toArray(NONE);
+        ranked.clear();
+        return this;
+    }
+
+    public List<Codec> getCodecs(){
+        return Collections.unmodifiableList(Arrays.asList(codecs));
+    }
+
+    /* the codec of a Content-Type, parameters ignored; null when none is registered */
+    public Codec forContentType(final String contentType){
+        final String mediaType = mediaTypeOf(contentType);
+        for(Codec codec : codecs){
+            if(codec.getMediaType().equalsIgnoreCase(mediaType)) return codec;
+        }
+        return null;
+    }
+
+    /*
+     * the codec preferred by the Accept among the media types the route produces (all the codecs when it lists none of them);
+     * null when the client accepts none of them
+     */
+    public Codec negotiate(final String accept, final String[] produces){
+        final Codec[] candidates = rank(accept);
+        Codec fallback = null;
+        boolean listed = false;
+        for(Codec codec : candidates){
+            if(contains(produces, codec.getMediaType())) return codec;
+            if(fallback == null) fallback = codec;
+        }
+        for(Codec codec : codecs){
+            if(contains(produces, codec.getMediaType())){
+                listed = true;
+                break;
+            }
+        }
+        return listed ? null : fallback;
+    }
+
+    private static boolean contains(final String[] produces, final String mediaType){
+        for(String p : produces){
+            if(p.equalsIgnoreCase(mediaType)) return true;
+        }
+        return false;
+    }
+
+    Codec[] rank(final String accept){
+        final String key = (accept == null) ? "" : accept;
+        Codec[] result = ranked.get(key);
+        if(result == null){
+            result = parse(key, codecs);
+            if(ranked.size() >= MAX_CACHED) ranked.clear();
+            ranked.put(key, result);
+        }
+        return result;
+    }
+
+    /* RFC 7231 section 5.3.2: each codec takes the quality of the most specific range matching it, 0 excludes it */
+    private static Codec[] parse(final String accept, final Codec[] codecs){
+        if(accept.trim().isEmpty()) return codecs.clone();
+        final String[] ranges = accept.split(",");
+        final double[] quality = new double[codecs.length];
+        final int[] specificity = new int[codecs.length];
+        Arrays.fill(specificity, -1);
+        for(String range : ranges){
+            final String[] parts = range.split(";");
+            final String mediaRange = parts[0].trim().toLowerCase(Locale.ROOT);
+            if(mediaRange.isEmpty()) continue;
+            double q = 1;
+            for(int i=1; i<parts.length; i++){
+                final String parameter = parts[i].trim();
+                if(parameter.startsWith("q=") || parameter.startsWith("Q=")){
+                    try {
+                        q = Double.parseDouble(parameter.substring(2).trim());
+                    } catch (NumberFormatException e) {
+                        q = 0;
+                    }
+                }
+            }
+            for(int c=0; c<codecs.length; c++){
+                final int s = specificityOf(mediaRange, codecs[c].getMediaType().toLowerCase(Locale.ROOT));
+                if(s > specificity[c]){
+                    specificity[c] = s;
+                    quality[c] = q;
+                }
+            }
+        }
+        final List<Integer> accepted = new ArrayList<>();
+        for(int c=0; c<codecs.length; c++){
+            if(specificity[c] >= 0 && quality[c] > 0) accepted.add(c);
+        }
+        /* stable: the registration order breaks the ties */
+        accepted.sort((a, b) -> Double.compare(quality[b], quality[a]));
+        final Codec[] result = new Codec[accepted.size()];
+        for(int i=0; i<result.length; i++) result[i] = codecs[accepted.get(i)];
+        return result;
+    }
+
+    /* 2 for the exact type, 1 for type/*, 0 for * / *, -1 when the range does not match */
+    private static int specificityOf(final String range, final String mediaType){
+        if(range.equals(mediaType)) return 2;
+        if(range.equals("*/*") || range.equals("*")) return 0;
+        if(range.endsWith("/*") && mediaType.startsWith(range.substring(0, range.length() - 1))) return 1;
+        return -1;
+    }
+
+    static String mediaTypeOf(final String contentType){
+        if(contentType == null) return "";
+        final int semicolon = contentType.indexOf(';');
+        return ((semicolon < 0) ? contentType : contentType.substring(0, semicolon)).trim();
+    }
+}
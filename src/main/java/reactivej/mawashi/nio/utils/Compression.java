@@ -0,0 +1,170 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Opt-in gzip/deflate compression of the responses, e.g. new ReactiveJ().compression(new Compression().minSize(2048)).
+ * Only textual responses (text, json, xml, javascript) at least minSize bytes long are compressed, with the encoding
+ * preferred by the Accept-Encoding of the client. The Deflaters come from a pool and compress the response chunk by chunk
+ * while it is written; the endpoints marked as precompressed keep the compressed bytes of their last response for each url,
+ * which is compressed again only when its content changes
+ */
+public final class Compression {
+
+    public static final int DEFAULT_MIN_SIZE = 1024;
+    public static final int DEFAULT_CACHE_SIZE = 256;
+    private static final int MAX_POOLED = 64;
+
+    static final String GZIP = "gzip";
+    static final String DEFLATE = "deflate";
+
+    private volatile int minSize = DEFAULT_MIN_SIZE;
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+    private volatile int cacheSize = DEFAULT_CACHE_SIZE;
+
+    private final Queue<Compressor> gzipPool = new ConcurrentLinkedQueue<>();
+    private final Queue<Compressor> deflatePool = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooled = new AtomicInteger();
+    private final ConcurrentMap<String, Precompressed> cache = new ConcurrentHashMap<>();
+
+    /* responses shorter than this are sent as they are: compressing them costs more than it saves */
+    public Compression minSize(int minSize){
+        if(minSize < 0) throw new IllegalArgumentException("min size must not be negative: " + minSize);
+        this.minSize = minSize;
+        return this;
+    }
+
+    /* from Deflater.BEST_SPEED (1) to Deflater.BEST_COMPRESSION (9); the pooled Deflaters keep the level they were created with */
+    public Compression level(int level){
+        if(level != Deflater.DEFAULT_COMPRESSION && (level < 0 || level > 9)) throw new IllegalArgumentException("invalid compression level: " + level);
+        this.level = level;
+        return this;
+    }
+
+    /* max number of urls whose compressed response is kept for the precompressed endpoints */
+    public Compression cacheSize(int cacheSize){
+        if(cacheSize < 0) throw new IllegalArgumentException("cache size must not be negative: " + cacheSize);
+        this.cacheSize = cacheSize;
+        return this;
+    }
+
+    /*
+     * the encoding to use for this response, or null to send it as it is;
+     * adds Vary: Accept-Encoding to the responses which could have been compressed, for the caches in between
+     */
+    String negotiate(final HttpServletRequest request, final HttpServletResponse response, final long length){
+        if(length < minSize || !isCompressible(response.getContentType())) return null;
+        final int status = response.getStatus();
+        if(status == 204 || status == 304 || response.containsHeader("Content-Encoding") || "HEAD".equals(request.getMethod())) return null;
+        response.addHeader("Vary", "Accept-Encoding");
+        return encodingOf(request.getHeader("Accept-Encoding"));
+    }
+
+    static boolean isCompressible(final String contentType){
+        if(contentType == null) return false;
+        final String type = contentType.toLowerCase(Locale.ROOT);
+        return type.startsWith("text/") || type.contains("json") || type.contains("xml") || type.contains("javascript");
+    }
+
+    /* gzip is preferred over deflate, the encodings refused with q=0 are never used */
+    static String encodingOf(final String acceptEncoding){
+        if(acceptEncoding == null) return null;
+        Boolean gzip = null, deflate = null, any = null;
+        for(String token : acceptEncoding.split(",")){
+            final int semicolon = token.indexOf(';');
+            final String coding = ((semicolon < 0) ? token : token.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+            final boolean accepted = semicolon < 0 || !isZeroQuality(token.substring(semicolon + 1));
+            if(coding.equals(GZIP) || coding.equals("x-gzip")) gzip = accepted;
+            else if(coding.equals(DEFLATE)) deflate = accepted;
+            else if(coding.equals("*")) any = accepted;
+        }
+        /* an encoding not listed is accepted only through the * wildcard */
+        if((gzip != null) ? gzip : Boolean.TRUE.equals(any)) return GZIP;
+        if((deflate != null) ? deflate : Boolean.TRUE.equals(any)) return DEFLATE;
+        return null;
+    }
+
+    private static boolean isZeroQuality(final String parameters){
+        for(String parameter : parameters.split(";")){
+            final String p = parameter.trim();
+            if(p.startsWith("q=") || p.startsWith("Q=")){
+                try {
+                    return Double.parseDouble(p.substring(2).trim()) <= 0;
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+        }
+        return false;
+    }
+
+    Compressor acquire(final String encoding, final int chunkSize){
+        final Compressor compressor = poolOf(encoding).poll();
+        if(compressor == null) return new Compressor(GZIP.equals(encoding), level, chunkSize);
+        pooled.decrementAndGet();
+        return compressor.reset(chunkSize);
+    }
+
+    void release(final Compressor compressor){
+        if(pooled.incrementAndGet() <= MAX_POOLED){
+            poolOf(compressor.isGzip() ? GZIP : DEFLATE).offer(compressor);
+        } else {
+            pooled.decrementAndGet();
+            compressor.end();
+        }
+    }
+
+    private Queue<Compressor> poolOf(final String encoding){
+        return GZIP.equals(encoding) ? gzipPool : deflatePool;
+    }
+
+    /* the compressed bytes of content, compressed now only if the url last answered something else */
+    ByteBuffer precompressed(final String url, final String encoding, final ByteBuffer content, final int chunkSize){
+        final String key = encoding + ' ' + url;
+        final Precompressed cached = cache.get(key);
+        if(cached != null && cached.original.equals(content)) return ByteBuffer.wrap(cached.compressed);
+
+        final Compressor compressor = acquire(encoding, chunkSize);
+        final PooledBuffer compressed = PooledBuffer.acquire();
+        try {
+            final ByteBuffer input = content.duplicate();
+            int length;
+            while((length = compressor.next(input)) >= 0){
+                compressed.write(compressor.buffer(), 0, length);
+            }
+            final byte[] bytes = compressed.toByteArray();
+            if(cached != null || cache.size() < cacheSize){
+                final ByteBuffer original = ByteBuffer.allocate(content.remaining());
+                original.put(content.duplicate());
+                ((Buffer) original).flip();
+                cache.put(key, new Precompressed(original, bytes));
+            }
+            return ByteBuffer.wrap(bytes);
+        } finally {
+            compressed.release();
+            release(compressor);
+        }
+    }
+
+    private static final class Precompressed {
+        private final ByteBuffer original;
+        private final byte[]     compressed;
+
+        private Precompressed(ByteBuffer original, byte[] compressed) {
+            this.original = original;
+            this.compressed = compressed;
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package reactivej.mawashi.nio.utils;
+
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Pooled Deflater compressing a response one chunk at a time into its own output buffer:
+ * raw deflate wrapped in the gzip header and trailer, or zlib for the deflate encoding.
+ * The caller writes the buffer out after each call to next, so the compressed response never lives in memory as a whole
+ */
+final class Compressor {
+
+    private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+
+    private final boolean gzip;
+    private final Deflater deflater;
+    private final CRC32 crc = new CRC32();
+    private byte[] input;
+    private byte[] output;
+    private boolean headerWritten;
+    private boolean trailerWritten;
+
+    Compressor(boolean gzip, int level, int chunkSize) {
+        this.gzip = gzip;
+        this.deflater = new Deflater(level, gzip);
+        reset(chunkSize);
+    }
+
+    /* back to a fresh stream; the buffers are kept unless the chunk size changed */
+    Compressor reset(final int chunkSize){
+        deflater.reset();
+        crc.reset();
+        if(output == null || output.length != chunkSize){
+            input = null;
+            output = new byte[chunkSize];
+        }
+        headerWritten = !gzip;
+        trailerWritten = !gzip;
+        return this;
+    }
+
+    boolean isGzip(){
+        return gzip;
+    }
+
+    /* holds the bytes produced by the last call to next */
+    byte[] buffer(){
+        return output;
+    }
+
+    /* compresses the next piece of content into the buffer: returns the number of bytes produced, or -1 once the stream is over */
+    int next(final ByteBuffer content){
+        if(!headerWritten){
+            headerWritten = true;
+            System.arraycopy(GZIP_HEADER, 0, output, 0, GZIP_HEADER.length);
+            return GZIP_HEADER.length;
+        }
+        while(!deflater.finished()){
+            if(deflater.needsInput()){
+                if(content.hasRemaining()){
+                    feed(content);
+                } else {
+                    deflater.finish();
+                }
+            }
+            int length = deflater.deflate(output, 0, output.length);
+            if(length > 0) return length;
+        }
+        if(!trailerWritten){
+            trailerWritten = true;
+            writeIntLE((int) crc.getValue(), 0);
+            writeIntLE(deflater.getTotalIn(), 4);
+            return 8;
+        }
+        return -1;
+    }
+
+    private void feed(final ByteBuffer content){
+        int length = Math.min(content.remaining(), output.length);
+        if(content.hasArray()){
+            int offset = content.arrayOffset() + content.position();
+            deflater.setInput(content.array(), offset, length);
+            if(gzip) crc.update(content.array(), offset, length);
+        } else {
+            if(input == null) input = new byte[output.length];
+            content.duplicate().get(input, 0, length);
+            deflater.setInput(input, 0, length);
+            if(gzip) crc.update(input, 0, length);
+        }
+        ((Buffer) content).position(content.position() + length);
+    }
+
+    private void writeIntLE(final int value, final int offset){
+        output[offset]     = (byte) value;
+        output[offset + 1] = (byte) (value >>> 8);
+        output[offset + 2] = (byte) (value >>> 16);
+        output[offset + 3] = (byte) (value >>> 24);
+    }
+
+    void end(){
+        deflater.end();
+    }
+}
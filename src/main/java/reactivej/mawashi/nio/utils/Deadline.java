@@ -0,0 +1,125 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import java.time.LocalTime;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * The time a request has to start its response: the timeout of its endpoint, shortened by the deadline header of the client.
+ * Whichever comes first wins: the response of the Action, which disarms the deadline, or the expiry, which runs the
+ * cancellation hooks registered by the Action (e.g. deadline.onCancel(subscription::cancel)) and answers with a 504;
+ * a response attempted after the expiry is dropped
+ */
+public final class Deadline {
+
+    private final static Logger log = Logger.getLogger(Deadline.class.getName());
+
+    private static final int PENDING = 0;
+    private static final int RESPONDING = 1;
+    private static final int EXPIRED = 2;
+
+    /* shared by every request: its single daemon thread only flips the state of the expired deadlines */
+    private static final class Timer {
+        private static final ScheduledExecutorService INSTANCE = timer();
+
+        private static ScheduledExecutorService timer(){
+            ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                Thread thread = new Thread(runnable, "reactivej-deadline");
+                thread.setDaemon(true);
+                return thread;
+            });
+            executor.setRemoveOnCancelPolicy(true);
+            return executor;
+        }
+    }
+
+    private final long expiresAt;
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final Queue<Runnable> cancelHooks = new ConcurrentLinkedQueue<>();
+    private volatile ScheduledFuture<?> timer;
+
+    private Deadline(long timeoutMillis) {
+        this.expiresAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+    }
+
+    /* onExpiry runs on the timer thread, once the deadline is expired and its cancellation hooks have run */
+    static Deadline start(final long timeoutMillis, final Runnable onExpiry){
+        final Deadline deadline = new Deadline(timeoutMillis);
+        deadline.timer = Timer.INSTANCE.schedule(() -> {
+            if(deadline.expire()) onExpiry.run();
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        if(deadline.state.get() != PENDING) deadline.timer.cancel(false);
+        return deadline;
+    }
+
+    /*
+     * the request handed to the Action: it keeps its deadline even once the container has recycled the request of an expired
+     * exchange for another one, so that a late response is dropped instead of being written to someone else's exchange
+     */
+    static final class BoundRequest extends HttpServletRequestWrapper {
+        final Deadline deadline;
+
+        BoundRequest(HttpServletRequest request, Deadline deadline) {
+            super(request);
+            this.deadline = deadline;
+        }
+    }
+
+    /* milliseconds left, 0 once expired */
+    public long remainingMillis(){
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    public boolean isExpired(){
+        return state.get() == EXPIRED;
+    }
+
+    /* runs when the deadline expires before the response, at once if it is already expired: e.g. onCancel(subscription::cancel) */
+    public Deadline onCancel(final Runnable hook){
+        cancelHooks.add(hook);
+        if(state.get() == EXPIRED && cancelHooks.remove(hook)) run(hook);
+        return this;
+    }
+
+    /* cancels the future, interrupting it, when the deadline expires before the response */
+    public <F extends Future<?>> F cancelOnExpiry(final F future){
+        onCancel(() -> future.cancel(true));
+        return future;
+    }
+
+    /* true if the caller can answer the request: the deadline was not expired, and it is now disarmed */
+    boolean respond(){
+        if(state.compareAndSet(PENDING, RESPONDING)){
+            final ScheduledFuture<?> timer = this.timer;
+            if(timer != null) timer.cancel(false);
+            cancelHooks.clear();
+            return true;
+        }
+        return state.get() == RESPONDING;
+    }
+
+    private boolean expire(){
+        if(!state.compareAndSet(PENDING, EXPIRED)) return false;
+        for(Runnable hook; (hook = cancelHooks.poll()) != null; ) run(hook);
+        return true;
+    }
+
+    private static void run(final Runnable hook){
+        try {
+            hook.run();
+        } catch (RuntimeException e) {
+            log.warning(LocalTime.now() + ": cancellation hook failed: " + e);
+        }
+    }
+}
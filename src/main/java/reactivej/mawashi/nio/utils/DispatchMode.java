@@ -0,0 +1,13 @@
+package reactivej.mawashi.nio.utils;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Where the GenericNioServlet runs the Action of an endpoint:
+ * INLINE on the Jetty thread which received the request (the default, for Non-Blocking actions),
+ * EXECUTOR on a bounded thread pool and VIRTUAL_THREAD on a new virtual thread per request (JDK 21+, falls back to EXECUTOR),
+ * so that blocking actions don't starve the Jetty thread pool
+ */
+public enum DispatchMode {
+    INLINE, EXECUTOR, VIRTUAL_THREAD
+}
@@ -1,25 +1,165 @@
 package reactivej.mawashi.nio.utils;
 
+import java.lang.reflect.Type;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
  * @author alessandroargentieri
  *
  * This pojo class represents each endpoint
- * then associate together a url path to an action corresponding to it
+ * then associate together a url path to an action corresponding to it.
+ * It is only read when the routes are compiled: requests see the immutable Router.Route copied from it,
+ * which shares its count of requests in flight, so that republishing the routes doesn't reset it
  */
 public class Endpoint {
+    private final HttpMethod method;
     private final String path;
     private final Action action;
+    private DispatchMode dispatchMode;
+    private String consumes = "";
+    private String produces = "";
+    private boolean precompressed;
+    private ResponseCache cache;
+    private Priority priority = Priority.NORMAL;
+    private int maxInFlight;
+    private long timeout;
+    private Type bodyType;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    /* the handler the endpoint is registered on, told about the changes made once the routes are compiled */
+    RestHandler registry;
 
     public Endpoint(String path, Action action) {
+        this(null, path, action);
+    }
+
+    /* a null method binds the action to every method */
+    public Endpoint(HttpMethod method, String path, Action action) {
+        this.method = method;
         this.path = path;
         this.action = action;
     }
 
-    public synchronized String getPath() {
+    public HttpMethod getMethod() {
+        return method;
+    }
+
+    public String getPath() {
         return path;
     }
 
-    public synchronized Action getAction() {
+    public Action getAction() {
         return action;
     }
+
+    /* overrides the dispatch mode set on ReactiveJ for this endpoint only */
+    public Endpoint dispatch(DispatchMode dispatchMode) {
+        this.dispatchMode = dispatchMode;
+        return changed();
+    }
+
+    /* null when the endpoint follows the dispatch mode set on ReactiveJ */
+    public DispatchMode getDispatchMode() {
+        return dispatchMode;
+    }
+
+    /* comma separated media types accepted in the request body (e.g. "application/json"), requests with another one get a 415 */
+    public Endpoint consumes(String consumes) {
+        this.consumes = (consumes == null) ? "" : consumes;
+        return changed();
+    }
+
+    public String getConsumes() {
+        return consumes;
+    }
+
+    /* comma separated media types of the response, descriptive */
+    public Endpoint produces(String produces) {
+        this.produces = (produces == null) ? "" : produces;
+        return changed();
+    }
+
+    public String getProduces() {
+        return produces;
+    }
+
+    /* the compressed bytes of the responses are kept, and compressed again only when the response changes: for static or rarely changing content */
+    public Endpoint precompressed() {
+        this.precompressed = true;
+        return changed();
+    }
+
+    public boolean isPrecompressed() {
+        return precompressed;
+    }
+
+    /* GET responses are kept for ttl milliseconds, at most maxEntries of them: e.g. cache(5000, 1000) */
+    public Endpoint cache(long ttlMillis, int maxEntries) {
+        return cache(new ResponseCache(ttlMillis, maxEntries));
+    }
+
+    /* e.g. cache(new ResponseCache(5000, 1000).keyParams("page", "size").maxBytes(16 * 1024 * 1024)) */
+    public Endpoint cache(ResponseCache cache) {
+        this.cache = cache;
+        return changed();
+    }
+
+    /* null when the responses are not cached */
+    public ResponseCache getCache() {
+        return cache;
+    }
+
+    /* CRITICAL endpoints are never shed by the admission control, LOW ones are shed first */
+    public Endpoint priority(Priority priority) {
+        this.priority = (priority == null) ? Priority.NORMAL : priority;
+        return changed();
+    }
+
+    public Priority getPriority() {
+        return priority;
+    }
+
+    /* requests of this endpoint served at the same time, the others get a 503; 0 (the default) means no limit */
+    public Endpoint maxInFlight(int maxInFlight) {
+        if (maxInFlight < 0) throw new IllegalArgumentException("max in-flight must not be negative: " + maxInFlight);
+        this.maxInFlight = maxInFlight;
+        return changed();
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /* milliseconds the action has to start its response before the client gets a 504; 0 (the default) follows the server timeout */
+    public Endpoint timeout(long timeoutMillis) {
+        if (timeoutMillis < 0) throw new IllegalArgumentException("timeout must not be negative: " + timeoutMillis);
+        this.timeout = timeoutMillis;
+        return changed();
+    }
+
+    public long getTimeout() {
+        return timeout;
+    }
+
+    /*
+     * type of the json request body, e.g. body(ToDo.class) or body(new TypeToken<List<ToDo>>(){}.getType()):
+     * its adapter is resolved when the routes are compiled and Endpoints#readJsonBody(request) uses it
+     */
+    public Endpoint body(Type bodyType) {
+        this.bodyType = bodyType;
+        return changed();
+    }
+
+    /* null when the endpoint declares no body type */
+    public Type getBodyType() {
+        return bodyType;
+    }
+
+    AtomicInteger inFlight() {
+        return inFlight;
+    }
+
+    private Endpoint changed() {
+        if (registry != null) registry.republish();
+        return this;
+    }
 }
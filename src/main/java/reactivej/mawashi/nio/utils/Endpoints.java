@@ -1,37 +1,117 @@
 package reactivej.mawashi.nio.utils;
 
+import com.google.gson.reflect.TypeToken;
+
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 /**
  * @author alessandroargentieri
  *
  * This abstract class must be extended by the programmer in order to define Endpoints
  * The programmer must define various Action and then must add each endpoint in the constructor with Endpoints#setEndpoint
- * Each extended class must be set into the ReactiveJ#endpoints
+ * Each extended class must be set into the ReactiveJ#endpoints, which binds it to the RestHandler of that ReactiveJ:
+ * until then its endpoints are only recorded, and the helpers use the default RestHandler and converters
  */
 public abstract class Endpoints {
 
     protected RestHandler   handler       = RestHandler.getInstance();
-    protected JsonConverter jsonConverter = JsonConverter.getInstance();
-    protected XmlConverter  xmlConverter  = XmlConverter.getInstance();
+    protected JsonConverter jsonConverter = handler.getJsonConverter();
+    protected XmlConverter  xmlConverter  = handler.getXmlConverter();
+    private final List<Endpoint> declared = new ArrayList<>();
+    private boolean bound;
+
+    /* the endpoints are bound to a RestHandler by ReactiveJ#endpoints, or by RestHandler#register without a ReactiveJ */
+    protected Endpoints(){
+    }
+
+    protected Endpoints(RestHandler handler){
+        bind(handler);
+    }
+
+    /* the returned Endpoint lets you tune this endpoint, e.g. setEndpoint(path, action).dispatch(DispatchMode.EXECUTOR) */
+    protected synchronized Endpoint setEndpoint(final String path, final Action action){
+        return setEndpoint(null, path, action);
+    }
+
+    /* binds the action to a single HTTP method: the other methods get a 405 without calling it */
+    protected synchronized Endpoint setEndpoint(final HttpMethod method, final String path, final Action action){
+        final Endpoint endpoint = bound ? handler.addEndpoint(method, path, action) : new Endpoint(method, path, action);
+        declared.add(endpoint);
+        return endpoint;
+    }
 
-    protected synchronized void setEndpoint(final String path, final Action action){
-        handler.setEndpoint(path, action);
+    /* the actions use the handler and the converters of the ReactiveJ serving them; returns the previous handler, null if none */
+    synchronized RestHandler bind(final RestHandler handler){
+        final RestHandler previous = bound ? this.handler : null;
+        this.bound = true;
+        this.handler = handler;
+        this.jsonConverter = handler.getJsonConverter();
+        this.xmlConverter = handler.getXmlConverter();
+        return previous;
+    }
+
+    synchronized List<Endpoint> declared(){
+        return new ArrayList<>(declared);
     }
 
     protected Object getDataFromJsonBodyRequest(final HttpServletRequest request, final Class clazz) throws IOException {
         return jsonConverter.getDataFromBodyRequest(request, clazz);
     }
 
+    /* for generic types, e.g. getDataFromJsonBodyRequest(request, new TypeToken<List<ToDo>>(){}) */
+    protected <T> T getDataFromJsonBodyRequest(final HttpServletRequest request, final TypeToken<T> type) throws IOException {
+        return (T) jsonConverter.getDataFromBodyRequest(request, type);
+    }
+
     protected Object getDataFromXmlBodyRequest(final HttpServletRequest request, final Class clazz) throws IOException {
         return xmlConverter.getDataFromBodyRequest(request, clazz);
     }
 
+    /* Non-Blocking alternative to getDataFromJsonBodyRequest: the stage completes once the whole body has been received */
+    protected <T> CompletionStage<T> readJsonBody(final HttpServletRequest request, final Class<T> clazz){
+        return handler.readBody(request, body -> clazz.cast(jsonConverter.getDataFrom(body, clazz)));
+    }
+
+    /* same as above for generic types, e.g. readJsonBody(request, new TypeToken<List<ToDo>>(){}) */
+    protected <T> CompletionStage<T> readJsonBody(final HttpServletRequest request, final TypeToken<T> type){
+        return handler.readBody(request, body -> (T) jsonConverter.getDataFrom(body, type));
+    }
+
+    /* reads the body as the type declared with setEndpoint(path, action).body(type), whose adapter was resolved with the routes */
+    protected <T> CompletionStage<T> readJsonBody(final HttpServletRequest request){
+        return handler.readJsonBody(request);
+    }
+
+    /* the body decoded by the codec of its Content-Type (json by default), e.g. readNegotiatedBody(request, ToDo.class) */
+    protected <T> CompletionStage<T> readNegotiatedBody(final HttpServletRequest request, final Class<T> clazz){
+        return handler.readNegotiatedBody(request, clazz);
+    }
+
+    protected <T> CompletionStage<T> readNegotiatedBody(final HttpServletRequest request, final TypeToken<T> type){
+        return handler.readNegotiatedBody(request, type.getType());
+    }
+
+    /* Non-Blocking alternative to getDataFromXmlBodyRequest: the stage completes once the whole body has been received */
+    protected <T> CompletionStage<T> readXmlBody(final HttpServletRequest request, final Class<T> clazz){
+        return handler.readBody(request, body -> clazz.cast(xmlConverter.getDataFrom(body, clazz)));
+    }
+
     protected Map<String, String> getPathVariables(final HttpServletRequest request){
-        return handler.getPathVariables(request.getRequestURI());
+        return handler.getPathVariables(request);
+    }
+
+    /* null when the request has no deadline: register on it what must stop when the client gets a 504, e.g. getDeadline(request).onCancel(subscription::cancel) */
+    protected Deadline getDeadline(final HttpServletRequest request){
+        return handler.getDeadline(request);
     }
 
     protected void toJsonResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
@@ -42,11 +122,62 @@ public abstract class Endpoints {
         handler.toXmlResponse(request, response, resp);
     }
 
+    /* json, xml, cbor or a codec registered on ReactiveJ: the one preferred by the Accept of the client among the produces of the endpoint */
+    protected void toNegotiatedResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
+        handler.toNegotiatedResponse(request, response, resp);
+    }
+
     protected void toTextResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
         handler.toTextResponse(request, response, resp);
     }
 
+    /* Non-Blocking json array of unbounded size: the elements are encoded one at a time, while the client reads them */
+    protected void toJsonStream(final HttpServletRequest request, final HttpServletResponse response, final Iterator<?> elements) throws IOException {
+        handler.toJsonStream(request, response, elements);
+    }
+
+    /* same as above for a java.util.concurrent.Flow.Publisher or an org.reactivestreams.Publisher (RxJava, Reactor...) */
+    protected void toJsonStream(final HttpServletRequest request, final HttpServletResponse response, final Object publisher) throws IOException {
+        handler.toJsonStream(request, response, publisher);
+    }
+
+    /*
+     * opens a Server-Sent Events (text/event-stream) stream: keep the returned EventStream and send events to it from any thread,
+     * complete it to end the response; onClose tells when the client goes away
+     */
+    protected EventStream toEventStream(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        return handler.toEventStream(request, response, EventStream.DEFAULT_QUEUE_SIZE, OverflowPolicy.DROP_NEWEST);
+    }
+
+    /* the queue holds the events not yet written to a slow client, the policy tells what to do when it is full */
+    protected EventStream toEventStream(final HttpServletRequest request, final HttpServletResponse response, final int queueSize, final OverflowPolicy overflowPolicy) throws IOException {
+        return handler.toEventStream(request, response, queueSize, overflowPolicy);
+    }
+
+    /* same as toEventStream with one json document per line (application/x-ndjson) */
+    protected EventStream toNdjsonStream(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        return handler.toNdjsonStream(request, response, EventStream.DEFAULT_QUEUE_SIZE, OverflowPolicy.DROP_NEWEST);
+    }
+
+    protected EventStream toNdjsonStream(final HttpServletRequest request, final HttpServletResponse response, final int queueSize, final OverflowPolicy overflowPolicy) throws IOException {
+        return handler.toNdjsonStream(request, response, queueSize, overflowPolicy);
+    }
+
     protected void toResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp, final String mimetype) throws IOException {
         handler.toResponse(request, response, resp, mimetype);
     }
+
+    /* a file, or the Range of it asked by the client (206), sent off-heap: big downloads never go through the heap */
+    protected void toFileResponse(final HttpServletRequest request, final HttpServletResponse response, final Path file) throws IOException {
+        handler.toFileResponse(request, response, file);
+    }
+
+    protected void toFileResponse(final HttpServletRequest request, final HttpServletResponse response, final Path file, final String mimetype) throws IOException {
+        handler.toFileResponse(request, response, file, mimetype);
+    }
+
+    /* same as above for content already mapped by the application, e.g. a region of a big file */
+    protected void toMappedResponse(final HttpServletRequest request, final HttpServletResponse response, final MappedByteBuffer content, final String mimetype) throws IOException {
+        handler.toMappedResponse(request, response, content, mimetype);
+    }
 }
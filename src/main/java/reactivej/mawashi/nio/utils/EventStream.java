@@ -0,0 +1,315 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalTime;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Long-lived response pushing events to the client as Server-Sent Events (text/event-stream) or as NDJSON (application/x-ndjson).
+ * The AsyncContext stays open until the stream is completed or the client goes away: any thread can send events,
+ * they are encoded on the sender thread into a bounded queue and written through the Servlet 3.1 WriteListener,
+ * so that no thread is held by an idle subscriber. A single shared scheduler sends the heartbeats of every stream,
+ * which keep the connection alive through proxies and detect the clients which disconnected
+ */
+public final class EventStream implements WriteListener, AsyncListener {
+
+    private final static Logger log = Logger.getLogger(EventStream.class.getName());
+
+    public static final int  DEFAULT_QUEUE_SIZE = 256;
+    public static final long DEFAULT_HEARTBEAT_INTERVAL = 15_000;
+
+    private static final byte[] SSE_HEARTBEAT    = ":\n\n".getBytes(StandardCharsets.UTF_8);
+    private static final byte[] NDJSON_HEARTBEAT = "\n".getBytes(StandardCharsets.UTF_8);
+
+    private static volatile ScheduledExecutorService heartbeats;
+
+    enum Format {
+        SSE("text/event-stream;charset=utf-8", SSE_HEARTBEAT),
+        NDJSON("application/x-ndjson", NDJSON_HEARTBEAT);
+
+        private final String contentType;
+        private final byte[] heartbeat;
+
+        Format(String contentType, byte[] heartbeat) {
+            this.contentType = contentType;
+            this.heartbeat = heartbeat;
+        }
+    }
+
+    private final RestHandler handler;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final ServletOutputStream out;
+    private final AsyncContext async;
+    private final Format format;
+    private final OverflowPolicy overflowPolicy;
+    private final int chunkSize;
+    private final BlockingQueue<byte[]> queue;
+    private final List<Runnable> closeCallbacks = new CopyOnWriteArrayList<>();
+    private final LongAdder dropped = new LongAdder();
+    private final AtomicInteger wip = new AtomicInteger();
+    private volatile ScheduledFuture<?> heartbeat;
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private boolean dirty = true;
+    private long written;
+    private volatile boolean active;
+    private volatile boolean completing;
+    private volatile boolean failed;
+    private volatile boolean asyncCompleted;
+    private volatile boolean closed;
+
+    private EventStream(RestHandler handler, HttpServletRequest request, HttpServletResponse response, Format format,
+                        int queueSize, OverflowPolicy overflowPolicy, int chunkSize) throws IOException {
+        this.handler = handler;
+        this.request = request;
+        this.response = response;
+        this.out = response.getOutputStream();
+        this.async = request.getAsyncContext();
+        this.format = format;
+        this.overflowPolicy = overflowPolicy;
+        this.chunkSize = chunkSize;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+    }
+
+    /* sends the headers straight away, so that the client sees the stream open before the first event */
+    static EventStream open(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response, final Format format,
+                            final int queueSize, final OverflowPolicy overflowPolicy, final int chunkSize, final long heartbeatInterval) throws IOException {
+        if(queueSize <= 0) throw new IllegalArgumentException("queue size must be positive: " + queueSize);
+        response.setContentType(format.contentType);
+        response.setHeader("Cache-Control", "no-cache");
+        response.setHeader("X-Accel-Buffering", "no");
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        final EventStream stream = new EventStream(handler, request, response, format, queueSize, overflowPolicy, chunkSize);
+        stream.async.setTimeout(0);
+        stream.async.addListener(stream);
+        stream.out.setWriteListener(stream);
+        if(heartbeatInterval > 0){
+            stream.heartbeat = heartbeats().scheduleAtFixedRate(stream::heartbeat, heartbeatInterval, heartbeatInterval, TimeUnit.MILLISECONDS);
+            if(stream.closed) stream.heartbeat.cancel(false);
+        }
+        return stream;
+    }
+
+    private static ScheduledExecutorService heartbeats(){
+        ScheduledExecutorService scheduler = heartbeats;
+        if(scheduler == null){
+            synchronized (EventStream.class){
+                if(heartbeats == null){
+                    ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, runnable -> {
+                        Thread thread = new Thread(runnable, "reactivej-heartbeat");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    executor.setRemoveOnCancelPolicy(true);
+                    heartbeats = executor;
+                }
+                scheduler = heartbeats;
+            }
+        }
+        return scheduler;
+    }
+
+    /* sends an unnamed event: text is sent as it is by SSE streams, everything else as json; false if dropped or closed */
+    public boolean send(final Object data){
+        return send(null, data);
+    }
+
+    /* sends an SSE event with the given name, the name is ignored by NDJSON streams */
+    public boolean send(final String event, final Object data){
+        if(closed || completing) return false;
+        return enqueue(encode(event, data));
+    }
+
+    /* ends the stream once the queued events are written */
+    public void complete(){
+        completing = true;
+        drain();
+    }
+
+    public boolean isOpen(){
+        return !closed;
+    }
+
+    /* events dropped by the overflow policy */
+    public long getDropped(){
+        return dropped.sum();
+    }
+
+    /* runs once the stream is closed, whoever closed it: e.g. to unsubscribe from the source of the events */
+    public EventStream onClose(final Runnable callback){
+        closeCallbacks.add(callback);
+        if(closed && closeCallbacks.remove(callback)) callback.run();
+        return this;
+    }
+
+    private byte[] encode(final String event, final Object data){
+        if(format == Format.NDJSON){
+            return (handler.getJsonConverter().getJsonOf(data) + "\n").getBytes(StandardCharsets.UTF_8);
+        }
+        final String text = (data instanceof CharSequence) ? data.toString() : handler.getJsonConverter().getJsonOf(data);
+        final StringBuilder sse = new StringBuilder(text.length() + 16);
+        if(event != null) sse.append("event: ").append(event).append('\n');
+        for(String line : text.split("\r\n|\r|\n", -1)){
+            sse.append("data: ").append(line).append('\n');
+        }
+        return sse.append('\n').toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private boolean enqueue(final byte[] bytes){
+        boolean queued = queue.offer(bytes);
+        if(!queued){
+            switch (overflowPolicy) {
+                case DROP_OLDEST:
+                    while(!queued){
+                        if(queue.poll() != null) dropped.increment();
+                        queued = queue.offer(bytes);
+                    }
+                    break;
+                case CLOSE:
+                    log.warning(LocalTime.now() + ": event stream to " + request.getRequestURI() + " closed: the client is too slow");
+                    dropped.increment();
+                    failed = true;
+                    break;
+                default:
+                    dropped.increment();
+            }
+        }
+        drain();
+        return queued;
+    }
+
+    /* only when nothing was written since the previous heartbeat */
+    private void heartbeat(){
+        if(active){
+            active = false;
+        } else if(!closed && queue.isEmpty()){
+            queue.offer(format.heartbeat);
+            drain();
+        }
+    }
+
+    @Override
+    public void onWritePossible() {
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        if(log.isLoggable(Level.FINE)){
+            log.fine(LocalTime.now() + ": event stream to " + request.getRequestURI() + " closed: " + t);
+        }
+        failed = true;
+        drain();
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) {
+        asyncCompleted = true;
+        drain();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) {
+        failed = true;
+        drain();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) {
+        failed = true;
+        drain();
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) {
+        //the stream is opened on an AsyncContext already started
+    }
+
+    /* runs the loop on a single thread at a time, the other callers just ask it to go round once more */
+    private void drain(){
+        if(wip.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            if(!closed){
+                try {
+                    if(failed || asyncCompleted){
+                        close();
+                    } else {
+                        writeWhileReady();
+                    }
+                } catch (Throwable t) {
+                    log.warning(LocalTime.now() + ": event stream to " + request.getRequestURI() + " failed: " + t);
+                    close();
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while(missed != 0);
+    }
+
+    /* the events are flushed as soon as the queue is empty, a stream must not wait for the output buffer to fill */
+    private void writeWhileReady() throws IOException {
+        while(out.isReady()){
+            if(pending.hasRemaining()){
+                int before = pending.remaining();
+                RestHandler.writeChunk(out, pending, chunkSize);
+                written += before - pending.remaining();
+                dirty = true;
+                active = true;
+                continue;
+            }
+            byte[] next = queue.poll();
+            if(next != null){
+                pending = ByteBuffer.wrap(next);
+            } else if(dirty){
+                dirty = false;
+                out.flush();
+            } else {
+                if(completing) close();
+                return;
+            }
+        }
+    }
+
+    private void close(){
+        closed = true;
+        if(heartbeat != null) heartbeat.cancel(false);
+        queue.clear();
+        for(Runnable callback : closeCallbacks){
+            if(!closeCallbacks.remove(callback)) continue;
+            try {
+                callback.run();
+            } catch (RuntimeException e) {
+                log.warning(LocalTime.now() + ": event stream close callback failed: " + e);
+            }
+        }
+        if(asyncCompleted) return;
+        handler.completed(request, response, written);
+        try {
+            async.complete();
+        } catch (IllegalStateException alreadyCompleted) {
+            //the container completed it first
+        }
+    }
+}
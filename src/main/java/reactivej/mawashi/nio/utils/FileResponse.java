@@ -0,0 +1,279 @@
+package reactivej.mawashi.nio.utils;
+
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Locale;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * A file or a memory-mapped buffer sent without going through the heap: the whole content, or the single range asked by the
+ * Range header of a GET (206 Partial Content), unless its If-Range validator no longer matches the content.
+ * With Jetty a mapped buffer is handed to HttpOutput#sendContent in one call, which writes it from the page cache to the socket;
+ * a file too big to be mapped and cached is read by Jetty from its channel into its pooled direct buffers.
+ * Any other output stream (e.g. the in-memory one of a batch) gets the bytes through the usual WriteListener, chunk by chunk
+ */
+final class FileResponse {
+
+    private final static Logger log = Logger.getLogger(FileResponse.class.getName());
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /* the content when it is mapped, otherwise it is read from the file */
+    private final ByteBuffer mapped;
+    private final Path file;
+    private final long size;
+    private final String etag;
+    private final long lastModified;
+
+    private FileResponse(ByteBuffer mapped, Path file, long size, String etag, long lastModified) {
+        this.mapped = mapped;
+        this.file = file;
+        this.size = size;
+        this.etag = etag;
+        this.lastModified = lastModified;
+    }
+
+    /* the remaining bytes of a buffer, which has no validators: a Range with an If-Range gets the whole content */
+    static FileResponse of(final ByteBuffer content){
+        final ByteBuffer view = content.slice();
+        return new FileResponse(view, null, view.remaining(), null, -1);
+    }
+
+    /* a file, mapped when it is cached; its ETag changes with its size and last modified time */
+    static FileResponse of(final Path file, final BasicFileAttributes attributes, final MappedFiles.Mapping mapping){
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        final String etag = "\"" + Long.toHexString(attributes.size()) + "-" + Long.toHexString(lastModified) + "\"";
+        return new FileResponse((mapping != null) ? ((ByteBuffer) mapping.content).duplicate() : null, file, attributes.size(), etag, lastModified);
+    }
+
+    void send(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response, final String mimetype, final int chunkSize) throws IOException {
+        long first = 0;
+        long last = size - 1;
+        response.setStatus(200);
+        final String range = request.getHeader("Range");
+        if(range != null && "GET".equals(request.getMethod()) && ifRangeMatches(request.getHeader("If-Range"))){
+            final long[] bounds = range(range, size);
+            if(bounds == UNSATISFIABLE){
+                response.setStatus(416);
+                response.setHeader("Content-Range", "bytes */" + size);
+                first = 0;
+                last = -1;
+            } else if(bounds != null){
+                first = bounds[0];
+                last = bounds[1];
+                response.setStatus(206);
+                response.setHeader("Content-Range", "bytes " + first + "-" + last + "/" + size);
+            }
+        }
+        response.setContentType(mimetype);
+        response.setHeader("Accept-Ranges", "bytes");
+        if(etag != null) response.setHeader("ETag", etag);
+        if(lastModified >= 0) response.setDateHeader("Last-Modified", lastModified);
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        final long length = last - first + 1;
+        response.setContentLengthLong(length);
+        final AsyncContext async = request.getAsyncContext();
+        if(length == 0 || "HEAD".equals(request.getMethod())){
+            handler.completed(request, response, 0);
+            async.complete();
+            return;
+        }
+        final ServletOutputStream out = response.getOutputStream();
+        if(out instanceof HttpOutput){
+            sendContent(handler, request, response, (HttpOutput) out, first, length);
+        } else {
+            write(handler, request, response, out, first, length, chunkSize);
+        }
+    }
+
+    private void sendContent(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response, final HttpOutput out,
+                             final long first, final long length) throws IOException {
+        final AsyncContext async = request.getAsyncContext();
+        final ReadableByteChannel channel = (mapped != null) ? null : new RangeChannel(FileChannel.open(file, StandardOpenOption.READ), first, length);
+        final Callback callback = new Callback() {
+            @Override
+            public void succeeded() {
+                close(channel);
+                handler.completed(request, response, length);
+                async.complete();
+            }
+
+            @Override
+            public void failed(Throwable t) {
+                log.warning(LocalDateTime.now().toString() + " | " + FileResponse.class.getSimpleName() + ":" + t.toString());
+                close(channel);
+                handler.completed(request, response, 0);
+                async.complete();
+            }
+        };
+        if(channel == null){
+            out.sendContent(region(first, (int) length), callback);
+        } else {
+            out.sendContent(channel, callback);
+        }
+    }
+
+    /* any other output stream: chunkSize bytes at a time, as fast as it takes them */
+    private void write(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response, final ServletOutputStream out,
+                       final long first, final long length, final int chunkSize) throws IOException {
+        final AsyncContext async = request.getAsyncContext();
+        final FileChannel channel = (mapped != null) ? null : FileChannel.open(file, StandardOpenOption.READ);
+        out.setWriteListener(new WriteListener() {
+            private ByteBuffer current;
+            private long read;
+            private long written;
+
+            @Override
+            public void onWritePossible() throws IOException {
+                while (out.isReady()) {
+                    if (current == null || !current.hasRemaining()) {
+                        if (read == length) {
+                            close(channel);
+                            handler.completed(request, response, length);
+                            async.complete();
+                            return;
+                        }
+                        current = next(channel, first + read, (int) Math.min(chunkSize, length - read));
+                        read += current.remaining();
+                    }
+                    final int before = current.remaining();
+                    RestHandler.writeChunk(out, current, chunkSize);
+                    written += before - current.remaining();
+                }
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.warning(LocalDateTime.now().toString() + " | " + FileResponse.class.getSimpleName() + ":" + t.toString());
+                close(channel);
+                handler.completed(request, response, written);
+                async.complete();
+            }
+        });
+    }
+
+    /* the next chunk: a view of the mapped content, or bytes read from the file */
+    private ByteBuffer next(final FileChannel channel, final long position, final int length) throws IOException {
+        if(channel == null) return region(position, length);
+        final ByteBuffer chunk = ByteBuffer.allocate(length);
+        while(chunk.hasRemaining()){
+            if(channel.read(chunk, position + chunk.position()) < 0) throw new IOException("file truncated while sent: " + file);
+        }
+        ((Buffer) chunk).flip();
+        return chunk;
+    }
+
+    private ByteBuffer region(final long position, final int length){
+        final ByteBuffer view = mapped.duplicate();
+        ((Buffer) view).limit((int) position + length);
+        ((Buffer) view).position((int) position);
+        return view.slice();
+    }
+
+    /* a missing If-Range always matches; otherwise it must be the strong ETag or the exact Last-Modified date of the content */
+    private boolean ifRangeMatches(final String ifRange){
+        if(ifRange == null) return true;
+        final String validator = ifRange.trim();
+        if(validator.startsWith("\"") || validator.startsWith("W/")) return etag != null && etag.equals(validator);
+        if(lastModified < 0) return false;
+        try {
+            return ZonedDateTime.parse(validator, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond() == lastModified / 1000;
+        } catch (DateTimeParseException e) {
+            return false;
+        }
+    }
+
+    /*
+     * RFC 7233: the first and last byte of a single "bytes=" range, null to send the whole content (no range, an invalid one,
+     * or several of them, which are not supported), UNSATISFIABLE when the range starts past the end of the content
+     */
+    static long[] range(final String header, final long size){
+        final String value = header.trim();
+        if(!value.toLowerCase(Locale.ROOT).startsWith("bytes=") || value.indexOf(',') >= 0) return null;
+        final String spec = value.substring(6).trim();
+        final int dash = spec.indexOf('-');
+        if(dash < 0) return null;
+        try {
+            if(dash == 0){
+                final long suffix = Long.parseLong(spec.substring(1).trim());
+                if(suffix <= 0) return UNSATISFIABLE;
+                return (size == 0) ? UNSATISFIABLE : new long[]{Math.max(0, size - suffix), size - 1};
+            }
+            final long first = Long.parseLong(spec.substring(0, dash).trim());
+            final String end = spec.substring(dash + 1).trim();
+            final long last = end.isEmpty() ? Long.MAX_VALUE : Long.parseLong(end);
+            if(first < 0 || last < first) return null;
+            if(first >= size) return UNSATISFIABLE;
+            return new long[]{first, Math.min(last, size - 1)};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private static void close(final Closeable channel){
+        if(channel == null) return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.fine(LocalTime.now() + ": unable to close the file channel " + e);
+        }
+    }
+
+    /* length bytes of the file from first on, with positional reads: the channel stays at its position */
+    private static final class RangeChannel implements ReadableByteChannel {
+        private final FileChannel channel;
+        private long position;
+        private long remaining;
+
+        RangeChannel(FileChannel channel, long first, long length) {
+            this.channel = channel;
+            this.position = first;
+            this.remaining = length;
+        }
+
+        @Override
+        public int read(final ByteBuffer destination) throws IOException {
+            if(remaining == 0) return -1;
+            final ByteBuffer window = destination.duplicate();
+            if(window.remaining() > remaining) ((Buffer) window).limit(window.position() + (int) remaining);
+            final int read = channel.read(window, position);
+            if(read < 0) return -1;
+            ((Buffer) destination).position(destination.position() + read);
+            position += read;
+            remaining -= read;
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+}
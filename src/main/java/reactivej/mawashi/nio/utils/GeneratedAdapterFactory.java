@@ -0,0 +1,42 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import reactivej.mawashi.nio.annotations.JsonDto;
+
+import java.time.LocalTime;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Gson factory of the TypeAdapters generated by the JsonDtoProcessor for the classes annotated with @JsonDto.
+ * Gson asks for each type once: the generated adapter is looked up by name and built then, the other types are left
+ * to the Gson reflective adapters, as are the @JsonDto classes compiled without the processor
+ */
+final class GeneratedAdapterFactory implements TypeAdapterFactory {
+
+    private final static Logger log = Logger.getLogger(GeneratedAdapterFactory.class.getName());
+
+    @Override
+    public <A> TypeAdapter<A> create(final Gson gson, final TypeToken<A> type) {
+        final Class<?> raw = type.getRawType();
+        if(!raw.isAnnotationPresent(JsonDto.class) || raw.getTypeParameters().length > 0) return null;
+        try {
+            final Class<?> adapter = Class.forName(adapterNameOf(raw), true, raw.getClassLoader());
+            return (TypeAdapter<A>) adapter.getConstructor(Gson.class).newInstance(gson);
+        } catch (ReflectiveOperationException | ClassCastException e) {
+            log.fine(LocalTime.now() + ": no generated json adapter for " + raw.getName() + ", falling back to reflection");
+            return null;
+        }
+    }
+
+    /* e.g. com.example.Outer$ToDo -> com.example.Outer_ToDo_JsonAdapter */
+    static String adapterNameOf(final Class<?> type){
+        final String name = type.getName();
+        final int dot = name.lastIndexOf('.');
+        return name.substring(0, dot + 1) + name.substring(dot + 1).replace('$', '_') + JsonDto.ADAPTER_SUFFIX;
+    }
+}
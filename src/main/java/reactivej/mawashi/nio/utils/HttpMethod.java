@@ -0,0 +1,27 @@
+package reactivej.mawashi.nio.utils;
+
+/**
+ * @author alessandroargentieri
+ *
+ * HTTP methods an endpoint can be bound to
+ */
+public enum HttpMethod {
+    GET, HEAD, POST, PUT, DELETE, PATCH, OPTIONS, TRACE, CONNECT;
+
+    /* null for an unknown or empty method; the switch avoids the exception thrown by valueOf on the request path */
+    public static HttpMethod of(final String method){
+        if(method == null) return null;
+        switch (method) {
+            case "GET":     return GET;
+            case "HEAD":    return HEAD;
+            case "POST":    return POST;
+            case "PUT":     return PUT;
+            case "DELETE":  return DELETE;
+            case "PATCH":   return PATCH;
+            case "OPTIONS": return OPTIONS;
+            case "TRACE":   return TRACE;
+            case "CONNECT": return CONNECT;
+            default:        return null;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package reactivej.mawashi.nio.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author alessandroargentieri
+ *
+ * application/json through the cached Gson adapters of a JsonConverter
+ */
+public final class JsonCodec implements Codec {
+
+    public static final String MEDIA_TYPE = "application/json";
+
+    private final JsonConverter jsonConverter;
+
+    public JsonCodec(JsonConverter jsonConverter) {
+        this.jsonConverter = jsonConverter;
+    }
+
+    @Override
+    public String getMediaType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public void encode(final Object value, final OutputStream out) throws IOException {
+        jsonConverter.writeJsonOf(value, (out instanceof PooledBuffer) ? ((PooledBuffer) out).writer() : new OutputStreamWriter(out, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Object decode(final InputStream in, final Type type) throws IOException {
+        return jsonConverter.read(in, jsonConverter.getAdapter(type));
+    }
+}
@@ -1,41 +1,163 @@
 package reactivej.mawashi.nio.utils;
 
 import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonIOException;
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 
 import javax.servlet.http.HttpServletRequest;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.lang.reflect.Type;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author alessandroargentieri
  *
  * Util class which encapsulate the use of Gson class to parse Json messages from the request to a Java class
- * and from a Java class to a Json string message
+ * and from a Java class to a Json string message.
+ * The Gson TypeAdapter of each type is resolved once and kept, so that a conversion is a single map lookup
+ * followed by the adapter reading from a JsonReader or writing to a JsonWriter laid straight on the stream.
+ * Generic types are given as a TypeToken, e.g. new TypeToken&lt;List&lt;ToDo&gt;&gt;(){};
+ * the classes annotated with @JsonDto use the adapter generated at compile time, without reflection
  * @param <T>
  */
 public class JsonConverter<T> {
 
-    private static JsonConverter instance = null;
+    /* the holder class is initialized, once and thread-safely, on the first call */
+    private static final class Holder {
+        private static final JsonConverter INSTANCE = new JsonConverter();
+    }
     public static JsonConverter getInstance(){
-        if(instance == null){
-            instance = new JsonConverter();
-        }
-        return instance;
+        return Holder.INSTANCE;
     }
 
-    Gson gson = new Gson();
+    Gson gson = new GsonBuilder().registerTypeAdapterFactory(new GeneratedAdapterFactory()).create();
+
+    private final ConcurrentMap<Type, TypeAdapter<?>> adapters = new ConcurrentHashMap<>();
 
 
+    /* the adapter of the type, resolved on the first call only */
+    public <A> TypeAdapter<A> getAdapter(final TypeToken<A> type){
+        return (TypeAdapter<A>) getAdapter(type.getType());
+    }
+
+    public TypeAdapter<?> getAdapter(final Type type){
+        TypeAdapter<?> adapter = adapters.get(type);
+        if(adapter == null){
+            adapter = gson.getAdapter(TypeToken.get(type));
+            adapters.putIfAbsent(type, adapter);
+        }
+        return adapter;
+    }
+
     public T getDataFromBodyRequest(final HttpServletRequest request, final Class clazz) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        String s;
-        while ((s = request.getReader().readLine()) != null) {
-            sb.append(s);
+        return (T) read(request.getReader(), getAdapter(clazz));
+    }
+
+    public <A> A getDataFromBodyRequest(final HttpServletRequest request, final TypeToken<A> type) throws IOException {
+        return read(request.getReader(), getAdapter(type));
+    }
+
+    /* parses a UTF-8 encoded json body, as collected by the non-blocking body reader */
+    public T getDataFrom(final InputStream in, final Class clazz) throws IOException {
+        return (T) read(in, getAdapter(clazz));
+    }
+
+    public <A> A getDataFrom(final InputStream in, final TypeToken<A> type) throws IOException {
+        return read(in, getAdapter(type));
+    }
+
+    public <A> A read(final InputStream in, final TypeAdapter<A> adapter) throws IOException {
+        return read(new InputStreamReader(in, StandardCharsets.UTF_8), adapter);
+    }
+
+    /* same leniency and errors as Gson#fromJson: an empty document is null, trailing content is rejected */
+    public <A> A read(final Reader reader, final TypeAdapter<A> adapter) throws IOException {
+        return read(gson.newJsonReader(reader), adapter);
+    }
+
+    private <A> A read(final JsonReader json, final TypeAdapter<A> adapter) throws IOException {
+        json.setLenient(true);
+        boolean empty = true;
+        final A value;
+        try {
+            json.peek();
+            empty = false;
+            value = adapter.read(json);
+        } catch (EOFException e) {
+            if(empty) return null;
+            throw new JsonSyntaxException(e);
+        } catch (IllegalStateException | IOException e) {
+            throw new JsonSyntaxException(e);
+        }
+        if(json.peek() != JsonToken.END_DOCUMENT) throw new JsonIOException("JSON document was not fully consumed.");
+        return value;
+    }
+
+    /* same errors as above from the tree of a document decoded from another format, e.g. by the CborReader */
+    <A> A fromTree(final JsonElement tree, final TypeAdapter<A> adapter){
+        try {
+            return adapter.fromJsonTree(tree);
+        } catch (IllegalStateException | NumberFormatException e) {
+            throw new JsonSyntaxException(e);
         }
-        return (T) gson.fromJson(sb.toString(), clazz);
     }
 
     public String getJsonOf(final Object object){
-        return gson.toJson(object);
+        final StringWriter writer = new StringWriter();
+        try {
+            writeJsonOf(object, writer);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+        return writer.toString();
+    }
+
+    /* streams the json straight into the writer, without building an intermediate String */
+    public void writeJsonOf(final Object object, final Writer writer) throws IOException {
+        final JsonWriter json = gson.newJsonWriter(writer);
+        write(object, json);
+        json.flush();
+    }
+
+    /* json writer honouring the Gson settings, to encode a stream element by element */
+    public JsonWriter newJsonWriter(final Writer writer) throws IOException {
+        return gson.newJsonWriter(writer);
+    }
+
+    /* appends one element to a json writer opened with newJsonWriter */
+    public void writeJsonOf(final Object object, final JsonWriter writer){
+        try {
+            write(object, writer);
+        } catch (IOException e) {
+            throw new JsonIOException(e);
+        }
+    }
+
+    boolean serializeNulls(){
+        return gson.serializeNulls();
+    }
+
+    private void write(final Object object, final JsonWriter writer) throws IOException {
+        if(object == null){
+            writer.nullValue();
+        } else {
+            ((TypeAdapter<Object>) getAdapter(object.getClass())).write(writer, object);
+        }
     }
 
 
@@ -0,0 +1,306 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.stream.JsonWriter;
+import org.eclipse.jetty.server.HttpChannel;
+import org.eclipse.jetty.server.Request;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.time.LocalTime;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Non-Blocking writer of a json array whose elements come from an Iterator or a reactive Publisher.
+ * The elements are encoded one at a time with a Gson JsonWriter into a single PooledBuffer, which is written out
+ * through the WriteListener whenever it holds a chunk, so the heap used does not depend on the number of elements.
+ * The Iterator is pulled and the Publisher is asked for more elements only while the output stream is ready.
+ * The container and the Publisher may call back concurrently: all the work is serialized by a drain loop
+ */
+final class JsonStreamWriter implements WriteListener {
+
+    private final static Logger log = Logger.getLogger(JsonStreamWriter.class.getName());
+
+    /* elements asked to the Publisher at a time */
+    static final int PUBLISHER_BATCH = 64;
+
+    private final RestHandler handler;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final ServletOutputStream out;
+    private final AsyncContext async;
+    private final int chunkSize;
+    private final Source source;
+    private final PooledBuffer buffer = PooledBuffer.acquire();
+    private final JsonWriter json;
+    private final AtomicInteger wip = new AtomicInteger();
+    private ByteBuffer pending = ByteBuffer.allocate(0);
+    private boolean finished;
+    private boolean closed;
+    private long written;
+    private long stalledAt;
+    private volatile Throwable failure;
+
+    private JsonStreamWriter(RestHandler handler, HttpServletRequest request, HttpServletResponse response, int chunkSize, Source source) throws IOException {
+        this.handler = handler;
+        this.request = request;
+        this.response = response;
+        this.out = response.getOutputStream();
+        this.async = request.getAsyncContext();
+        this.chunkSize = chunkSize;
+        this.source = source;
+        this.json = handler.getJsonConverter().newJsonWriter(buffer.writer());
+        this.json.beginArray();
+    }
+
+    static void stream(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response, final int chunkSize, final Iterator<?> elements) throws IOException {
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        JsonStreamWriter writer = new JsonStreamWriter(handler, request, response, chunkSize, new IteratorSource(elements));
+        writer.out.setWriteListener(writer);
+    }
+
+    /* the publisher is subscribed once the write listener is set: its first demand waits for the output stream to be ready */
+    static void stream(final RestHandler handler, final HttpServletRequest request, final HttpServletResponse response, final int chunkSize, final Object publisher) throws IOException {
+        response.addHeader("Access-Control-Allow-Origin", "*");
+        PublisherSource source = new PublisherSource();
+        JsonStreamWriter writer = new JsonStreamWriter(handler, request, response, chunkSize, source);
+        source.writer = writer;
+        writer.out.setWriteListener(writer);
+        Publishers.subscribe(publisher, source);
+    }
+
+    @Override
+    public void onWritePossible() {
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        log.warning(LocalTime.now() + ": json stream to " + request.getRequestURI() + " failed: " + t);
+        failure = t;
+        drain();
+    }
+
+    /* runs the loop on a single thread at a time, the other callers just ask it to go round once more */
+    private void drain(){
+        if(wip.getAndIncrement() != 0) return;
+        int missed = 1;
+        do {
+            if(!closed){
+                try {
+                    if(failure != null){
+                        close(false);
+                    } else {
+                        writeWhileReady();
+                    }
+                } catch (Throwable t) {
+                    log.warning(LocalTime.now() + ": json stream to " + request.getRequestURI() + " aborted: " + t);
+                    close(true);
+                }
+            }
+            missed = wip.addAndGet(-missed);
+        } while(missed != 0);
+    }
+
+    private void writeWhileReady() throws IOException {
+        if(stalledAt != 0 && out.isReady()) stalledAt = handler.resumed(stalledAt);
+        while(out.isReady()){
+            if(pending.hasRemaining()){
+                int before = pending.remaining();
+                RestHandler.writeChunk(out, pending, chunkSize);
+                written += before - pending.remaining();
+            } else if(finished){
+                close(false);
+                return;
+            } else if(!encode()){
+                source.request();
+                return;
+            }
+        }
+        if(stalledAt == 0) stalledAt = handler.stalled();
+    }
+
+    /* encodes the available elements until the buffer holds a chunk; false if none is available yet */
+    private boolean encode() throws IOException {
+        buffer.reset();
+        while(buffer.size() < chunkSize){
+            if(source.hasNext()){
+                handler.getJsonConverter().writeJsonOf(source.next(), json);
+            } else if(source.isComplete()){
+                Throwable error = source.getError();
+                if(error != null) throw new IOException("json stream source failed", error);
+                json.endArray();
+                finished = true;
+                break;
+            } else {
+                break;
+            }
+        }
+        json.flush();
+        pending = buffer.toByteBuffer();
+        return pending.hasRemaining();
+    }
+
+    /* a failed stream aborts the connection, so that the client can't take the truncated array for a complete one */
+    private void close(final boolean abort){
+        closed = true;
+        source.cancel();
+        if(abort){
+            Request baseRequest = Request.getBaseRequest(request);
+            HttpChannel channel = (baseRequest != null) ? baseRequest.getHttpChannel() : null;
+            if(channel != null) channel.abort(new IOException("json stream aborted"));
+        }
+        handler.completed(request, response, written);
+        async.complete();
+        buffer.release();
+    }
+
+    /* where the elements come from: hasNext tells whether one is available right now */
+    private interface Source {
+        boolean hasNext();
+        Object next();
+        boolean isComplete();
+        Throwable getError();
+        void request();
+        void cancel();
+    }
+
+    private static final class IteratorSource implements Source {
+        private final Iterator<?> elements;
+        private boolean complete;
+
+        private IteratorSource(Iterator<?> elements) {
+            this.elements = elements;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(complete) return false;
+            complete = !elements.hasNext();
+            return !complete;
+        }
+
+        @Override
+        public Object next() {
+            return elements.next();
+        }
+
+        @Override
+        public boolean isComplete() {
+            return complete;
+        }
+
+        @Override
+        public Throwable getError() {
+            return null;
+        }
+
+        @Override
+        public void request() {
+            //the iterator is pulled: nothing to ask
+        }
+
+        /* iterators over a cursor or a file can be closed */
+        @Override
+        public void cancel() {
+            if(elements instanceof AutoCloseable){
+                try {
+                    ((AutoCloseable) elements).close();
+                } catch (Exception e) {
+                    log.warning(LocalTime.now() + ": unable to close the iterator of a json stream: " + e);
+                }
+            }
+        }
+    }
+
+    /* receives the signals of the Publisher; the queue never holds more elements than requested */
+    static final class PublisherSource implements Source, Publishers.Subscriber {
+        private final Queue<Object> elements = new ConcurrentLinkedQueue<>();
+        private final AtomicLong outstanding = new AtomicLong();
+        private JsonStreamWriter writer;
+        private volatile Publishers.Subscription subscription;
+        private volatile boolean complete;
+        private volatile boolean cancelled;
+        private volatile Throwable error;
+
+        @Override
+        public void onSubscribe(Publishers.Subscription subscription) {
+            if(this.subscription != null || cancelled){
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+            writer.drain();
+        }
+
+        @Override
+        public void onNext(Object element) {
+            elements.offer(element);
+            outstanding.decrementAndGet();
+            writer.drain();
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            error = t;
+            complete = true;
+            writer.drain();
+        }
+
+        @Override
+        public void onComplete() {
+            complete = true;
+            writer.drain();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return !elements.isEmpty();
+        }
+
+        @Override
+        public Object next() {
+            return elements.poll();
+        }
+
+        /* the Publisher signals serially, so once complete is seen every element is already in the queue */
+        @Override
+        public boolean isComplete() {
+            return complete && elements.isEmpty();
+        }
+
+        @Override
+        public Throwable getError() {
+            return error;
+        }
+
+        /* called only when the output stream is ready and the previous batch has been written */
+        @Override
+        public void request() {
+            Publishers.Subscription s = subscription;
+            if(s != null && !complete && outstanding.get() <= 0){
+                outstanding.addAndGet(PUBLISHER_BATCH);
+                s.request(PUBLISHER_BATCH);
+            }
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            Publishers.Subscription s = subscription;
+            if(s != null && !complete) s.cancel();
+            elements.clear();
+        }
+    }
+}
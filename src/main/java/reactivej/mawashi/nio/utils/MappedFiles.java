@@ -0,0 +1,83 @@
+package reactivej.mawashi.nio.utils;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author alessandroargentieri
+ *
+ * The memory-mapped content of the files served most recently through toFileResponse, at most maxFiles files of
+ * at most maxFileSize bytes each: a hot file is mapped once and every response sends a view of the same pages,
+ * off-heap, straight from the page cache. A file whose size or last modified time changed is mapped again;
+ * past maxFiles the least recently served file is dropped, its pages are unmapped once no response uses them
+ */
+final class MappedFiles {
+
+    static final int DEFAULT_MAX_FILES = 256;
+    static final long DEFAULT_MAX_FILE_SIZE = 64 * 1024 * 1024;
+
+    private volatile int maxFiles = DEFAULT_MAX_FILES;
+    private volatile long maxFileSize = DEFAULT_MAX_FILE_SIZE;
+    private final ConcurrentMap<Path, Mapping> mappings = new ConcurrentHashMap<>();
+
+    static final class Mapping {
+        final MappedByteBuffer content;
+        final long size;
+        final long lastModified;
+        volatile long lastAccess;
+
+        private Mapping(MappedByteBuffer content, long size, long lastModified) {
+            this.content = content;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.lastAccess = System.nanoTime();
+        }
+    }
+
+    void configure(final int maxFiles, final long maxFileSize){
+        this.maxFiles = maxFiles;
+        this.maxFileSize = maxFileSize;
+        if(maxFiles == 0) mappings.clear();
+    }
+
+    /* the mapping of the file as it is now, null when it is too big to be cached (or the cache is disabled) */
+    Mapping get(final Path file, final BasicFileAttributes attributes) throws IOException {
+        final long size = attributes.size();
+        final long lastModified = attributes.lastModifiedTime().toMillis();
+        if(maxFiles == 0 || size > maxFileSize) return null;
+        Mapping mapping = mappings.get(file);
+        if(mapping == null || mapping.size != size || mapping.lastModified != lastModified){
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                mapping = new Mapping(channel.map(FileChannel.MapMode.READ_ONLY, 0, size), size, lastModified);
+            }
+            mappings.put(file, mapping);
+            evict();
+            return mapping;
+        }
+        mapping.lastAccess = System.nanoTime();
+        return mapping;
+    }
+
+    /* a scan of at most maxFiles entries, only when a file is mapped */
+    private void evict(){
+        while(mappings.size() > maxFiles){
+            Map.Entry<Path, Mapping> eldest = null;
+            for(Map.Entry<Path, Mapping> entry : mappings.entrySet()){
+                if(eldest == null || entry.getValue().lastAccess - eldest.getValue().lastAccess < 0) eldest = entry;
+            }
+            if(eldest == null) return;
+            mappings.remove(eldest.getKey(), eldest.getValue());
+        }
+    }
+
+    int size(){
+        return mappings.size();
+    }
+}
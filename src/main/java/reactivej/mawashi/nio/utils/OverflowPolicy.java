@@ -0,0 +1,12 @@
+package reactivej.mawashi.nio.utils;
+
+/**
+ * @author alessandroargentieri
+ *
+ * What an EventStream does with a new event when its queue is full because the client reads slower than the events come:
+ * DROP_NEWEST discards the new event (the default), DROP_OLDEST discards the oldest queued one to make room
+ * and CLOSE disconnects the slow client
+ */
+public enum OverflowPolicy {
+    DROP_NEWEST, DROP_OLDEST, CLOSE
+}
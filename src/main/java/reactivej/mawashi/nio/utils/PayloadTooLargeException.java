@@ -0,0 +1,15 @@
+package reactivej.mawashi.nio.utils;
+
+import java.io.IOException;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Raised when the request body is bigger than the max body size set on ReactiveJ
+ */
+public class PayloadTooLargeException extends IOException {
+
+    public PayloadTooLargeException(long maxBodySize) {
+        super("request body exceeds the max size of " + maxBodySize + " bytes");
+    }
+}
@@ -0,0 +1,117 @@
+package reactivej.mawashi.nio.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Growable byte buffer, with its own UTF-8 Writer, borrowed from a lock-free pool.
+ * Converters encode into it and the non-blocking write path gives it back once the response is sent,
+ * so the same arrays and encoders are reused request after request
+ */
+public final class PooledBuffer extends OutputStream {
+
+    private static final int INITIAL_CAPACITY = 4 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 1024 * 1024;
+    private static final int MAX_POOLED = 64;
+
+    private static final Queue<PooledBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    private byte[] bytes = new byte[INITIAL_CAPACITY];
+    private int count;
+    private final Writer writer = new OutputStreamWriter(this, StandardCharsets.UTF_8);
+
+    private PooledBuffer() {}
+
+    public static PooledBuffer acquire(){
+        PooledBuffer buffer = pool.poll();
+        if(buffer == null) return new PooledBuffer();
+        pooled.decrementAndGet();
+        return buffer;
+    }
+
+    /*
+     * gives the buffer back to the pool: it must not be used anymore by the caller.
+     * The chars an aborted encoding left in the writer are flushed and dropped, so that the next user doesn't send them
+     */
+    public void release(){
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            return;
+        }
+        count = 0;
+        if(bytes.length > MAX_RETAINED_CAPACITY) return;
+        if(pooled.incrementAndGet() <= MAX_POOLED){
+            pool.offer(this);
+        } else {
+            pooled.decrementAndGet();
+        }
+    }
+
+    /* UTF-8 writer appending to this buffer: flush it before reading the content */
+    public Writer writer(){
+        return writer;
+    }
+
+    public int size(){
+        return count;
+    }
+
+    /* discards the content but keeps the array, to encode the next chunk of a stream in the same buffer */
+    public void reset(){
+        count = 0;
+    }
+
+    /* view over the written bytes, valid until the buffer is released */
+    public ByteBuffer toByteBuffer(){
+        return ByteBuffer.wrap(bytes, 0, count);
+    }
+
+    public byte[] toByteArray(){
+        return Arrays.copyOf(bytes, count);
+    }
+
+    /* reads straight into the backing array, returns the number of bytes read or -1 at the end of the stream */
+    public int readFrom(final InputStream in, final int maxLength) throws IOException {
+        ensureCapacity(count + Math.min(maxLength, INITIAL_CAPACITY));
+        int read = in.read(bytes, count, Math.min(maxLength, bytes.length - count));
+        if(read > 0) count += read;
+        return read;
+    }
+
+    public InputStream toInputStream(){
+        return new ByteArrayInputStream(bytes, 0, count);
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(count + 1);
+        bytes[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(count + len);
+        System.arraycopy(b, off, bytes, count, len);
+        count += len;
+    }
+
+    private void ensureCapacity(int capacity){
+        if(capacity > bytes.length){
+            bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length << 1));
+        }
+    }
+}
@@ -0,0 +1,12 @@
+package reactivej.mawashi.nio.utils;
+
+/**
+ * @author alessandroargentieri
+ *
+ * How an endpoint is treated by the admission control when the server is overloaded:
+ * CRITICAL requests (e.g. /status and /metrics) are never shed, NORMAL ones (the default) are shed past the limit
+ * and LOW ones are shed first, once the in-flight requests reach a share of the limit
+ */
+public enum Priority {
+    CRITICAL, NORMAL, LOW
+}
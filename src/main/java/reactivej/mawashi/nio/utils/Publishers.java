@@ -0,0 +1,143 @@
+package reactivej.mawashi.nio.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Bridge to the reactive Publishers: java.util.concurrent.Flow (JDK 9+) and org.reactivestreams (RxJava, Reactor...).
+ * Both interfaces are looked up reflectively on the Publisher itself, so that the library keeps running on JDK 8
+ * and doesn't depend on any reactive library
+ */
+final class Publishers {
+
+    private static final String[][] FLAVOURS = {
+            {"java.util.concurrent.Flow$Publisher", "java.util.concurrent.Flow$Subscriber", "java.util.concurrent.Flow$Subscription"},
+            {"org.reactivestreams.Publisher", "org.reactivestreams.Subscriber", "org.reactivestreams.Subscription"}
+    };
+
+    private static final ConcurrentMap<Class<?>, Flavour> flavours = new ConcurrentHashMap<>();
+
+    private Publishers() {}
+
+    /* the subscriber side of the Reactive Streams contract */
+    interface Subscriber {
+        void onSubscribe(Subscription subscription);
+        void onNext(Object element);
+        void onError(Throwable t);
+        void onComplete();
+    }
+
+    interface Subscription {
+        void request(long n);
+        void cancel();
+    }
+
+    static boolean isPublisher(final Object publisher){
+        return publisher != null && flavourOf(publisher.getClass()) != null;
+    }
+
+    /* subscribes the subscriber to a Flow.Publisher or to an org.reactivestreams.Publisher */
+    static void subscribe(final Object publisher, final Subscriber subscriber){
+        final Flavour flavour = (publisher == null) ? null : flavourOf(publisher.getClass());
+        if(flavour == null) throw new IllegalArgumentException("not a Flow.Publisher nor an org.reactivestreams.Publisher: " + publisher);
+        final Object proxy = Proxy.newProxyInstance(flavour.subscriber.getClassLoader(), new Class<?>[]{flavour.subscriber}, (self, method, args) -> {
+            switch (method.getName()) {
+                case "onSubscribe":
+                    subscriber.onSubscribe(flavour.subscriptionOf(args[0]));
+                    return null;
+                case "onNext":
+                    subscriber.onNext(args[0]);
+                    return null;
+                case "onError":
+                    subscriber.onError((Throwable) args[0]);
+                    return null;
+                case "onComplete":
+                    subscriber.onComplete();
+                    return null;
+                case "hashCode":
+                    return System.identityHashCode(self);
+                case "equals":
+                    return self == args[0];
+                default:
+                    return "json stream subscriber";
+            }
+        });
+        invoke(flavour.subscribe, publisher, proxy);
+    }
+
+    private static Flavour flavourOf(final Class<?> type){
+        Flavour flavour = flavours.get(type);
+        if(flavour != null) return flavour;
+        for(String[] names : FLAVOURS){
+            Class<?> publisher = interfaceNamed(type, names[0]);
+            if(publisher == null) continue;
+            try {
+                ClassLoader loader = publisher.getClassLoader();
+                flavour = new Flavour(publisher, Class.forName(names[1], false, loader), Class.forName(names[2], false, loader));
+            } catch (ReflectiveOperationException e) {
+                throw new IllegalStateException("unable to bridge " + names[0], e);
+            }
+            flavours.putIfAbsent(type, flavour);
+            return flavour;
+        }
+        return null;
+    }
+
+    private static Class<?> interfaceNamed(final Class<?> type, final String name){
+        for(Class<?> c = type; c != null; c = c.getSuperclass()){
+            for(Class<?> i : c.getInterfaces()){
+                if(i.getName().equals(name)) return i;
+                Class<?> inherited = interfaceNamed(i, name);
+                if(inherited != null) return inherited;
+            }
+        }
+        return null;
+    }
+
+    private static Object invoke(final Method method, final Object target, final Object... args){
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if(cause instanceof java.lang.Error) throw (java.lang.Error) cause;
+            throw new IllegalStateException(cause);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /* the reflected methods of one of the two interface families */
+    private static final class Flavour {
+        private final Class<?> subscriber;
+        private final Method   subscribe;
+        private final Method   request;
+        private final Method   cancel;
+
+        private Flavour(Class<?> publisher, Class<?> subscriber, Class<?> subscription) throws NoSuchMethodException {
+            this.subscriber = subscriber;
+            this.subscribe = publisher.getMethod("subscribe", subscriber);
+            this.request = subscription.getMethod("request", long.class);
+            this.cancel = subscription.getMethod("cancel");
+        }
+
+        private Subscription subscriptionOf(final Object subscription){
+            return new Subscription() {
+                @Override
+                public void request(long n) {
+                    invoke(request, subscription, n);
+                }
+
+                @Override
+                public void cancel() {
+                    invoke(cancel, subscription);
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Cache of the encoded responses of a GET endpoint, e.g. setEndpoint(path, action).cache(5000, 1000).
+ * Entries are keyed on the path template, the path variables, the selected query params and the media type negotiated
+ * for the Accept of the request, live for ttl milliseconds
+ * and are evicted least recently used first when there are more than maxEntries or they take more than maxBytes.
+ * A hit is answered without calling the Action, with a 304 when the If-None-Match of the client matches the ETag;
+ * concurrent misses of the same key wait for the single Action which runs, without holding any thread,
+ * until their own exchange ends: a waiter timed out or gone is left out of the response
+ */
+public final class ResponseCache {
+
+    public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+    private static final int ENTRY_OVERHEAD = 128;
+    private static final long ACCESS_RESOLUTION = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final long ttlNanos;
+    private final int maxEntries;
+    private volatile long maxBytes = DEFAULT_MAX_BYTES;
+    private volatile String[] keyParams = new String[0];
+
+    private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    public ResponseCache(long ttlMillis, int maxEntries) {
+        if(ttlMillis <= 0) throw new IllegalArgumentException("ttl must be positive: " + ttlMillis);
+        if(maxEntries <= 0) throw new IllegalArgumentException("max entries must be positive: " + maxEntries);
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.maxEntries = maxEntries;
+    }
+
+    /* query params which are part of the key, the others are ignored */
+    public ResponseCache keyParams(String... keyParams){
+        this.keyParams = keyParams.clone();
+        return this;
+    }
+
+    /* max size of the cached bodies, keys and bookkeeping included */
+    public ResponseCache maxBytes(long maxBytes){
+        if(maxBytes <= 0) throw new IllegalArgumentException("max bytes must be positive: " + maxBytes);
+        this.maxBytes = maxBytes;
+        return this;
+    }
+
+    public long getHits(){
+        return hits.sum();
+    }
+
+    public long getMisses(){
+        return misses.sum();
+    }
+
+    public int size(){
+        return entries.size();
+    }
+
+    public long getBytes(){
+        return bytes.get();
+    }
+
+    /* requests waiting for the Action running for their key */
+    int waiting(){
+        int waiting = 0;
+        for(Flight flight : flights.values()) waiting += flight.size();
+        return waiting;
+    }
+
+    /*
+     * true when the request is answered from the cache or waits for the Action already running for its key;
+     * false when the caller must run the Action, whose response is then kept for the next requests
+     */
+    boolean serve(final RestHandler handler, final Router.RouteMatch match, final HttpServletRequest request, final HttpServletResponse response, final Runnable runAction) throws IOException {
+        if(!"GET".equals(request.getMethod()) && !"HEAD".equals(request.getMethod())) return false;
+        final String key = keyOf(handler, match, request);
+        while(true){
+            final Entry entry = entries.get(key);
+            final long now = System.nanoTime();
+            if(entry != null && entry.expiresAt - now > 0){
+                hits.increment();
+                /* a hot entry is touched once per millisecond, not on every hit */
+                if(now - entry.lastAccess > ACCESS_RESOLUTION) entry.lastAccess = now;
+                handler.sendCached(request, response, entry);
+                return true;
+            }
+            final Flight flight = new Flight();
+            final Flight running = flights.putIfAbsent(key, flight);
+            if(running == null){
+                misses.increment();
+                final Object next = request.getAttribute(RestHandler.RESPONSE_SINK_ATTRIBUTE);
+                request.setAttribute(RestHandler.RESPONSE_SINK_ATTRIBUTE, new Capture(handler, key, flight, (next instanceof ResponseSink) ? (ResponseSink) next : null));
+                return false;
+            }
+            final Waiter waiter = new Waiter(request, response, runAction, running);
+            request.getAsyncContext().addListener(waiter);
+            if(running.join(waiter)) return true;
+            /* the flight landed in the meantime: look the entry up again */
+        }
+    }
+
+    /* a negotiated response varies by Accept: the media type the codecs pick for the route, none for a 406, is part of the key */
+    private String keyOf(final RestHandler handler, final Router.RouteMatch match, final HttpServletRequest request){
+        final StringBuilder key = new StringBuilder(match.getTemplate());
+        final Map<String, String> pathVariables = match.getPathVariables();
+        for(String name : match.getRoute().paramNames()){
+            key.append('\u0000').append(pathVariables.get(name));
+        }
+        for(String param : keyParams){
+            key.append('\u0000').append(param).append('=').append(request.getParameter(param));
+        }
+        final Codec codec = handler.getCodecs().negotiate(request.getHeader("Accept"), match.getRoute().producedMediaTypes());
+        key.append('\u0000').append((codec != null) ? codec.getMediaType() : "");
+        return key.toString();
+    }
+
+    private void put(final String key, final Entry entry){
+        final Entry previous = entries.put(key, entry);
+        bytes.addAndGet(entry.weight - ((previous != null) ? previous.weight : 0));
+        if(entries.size() > maxEntries || bytes.get() > maxBytes) evict();
+    }
+
+    /* drops the expired entries, then the least recently used ones down to 90% of the limits, to amortize the scan */
+    private synchronized void evict(){
+        final long now = System.nanoTime();
+        for(Map.Entry<String, Entry> e : entries.entrySet()){
+            if(e.getValue().expiresAt - now <= 0) remove(e.getKey(), e.getValue());
+        }
+        if(entries.size() <= maxEntries && bytes.get() <= maxBytes) return;
+        final List<Map.Entry<String, Entry>> candidates = new ArrayList<>(entries.entrySet());
+        candidates.sort(Comparator.comparingLong(e -> e.getValue().lastAccess));
+        final int targetEntries = Math.max(1, maxEntries - maxEntries / 10);
+        final long targetBytes = maxBytes - maxBytes / 10;
+        for(Map.Entry<String, Entry> e : candidates){
+            if(entries.size() <= targetEntries && bytes.get() <= targetBytes) break;
+            remove(e.getKey(), e.getValue());
+        }
+    }
+
+    private void remove(final String key, final Entry entry){
+        if(entries.remove(key, entry)) bytes.addAndGet(-entry.weight);
+    }
+
+    /* a cached response: the encoded body with its status, content type and Vary */
+    static final class Entry {
+        final int    status;
+        final String contentType;
+        final String vary;
+        final byte[] body;
+        final String etag;
+        final long   expiresAt;
+        final long   weight;
+        volatile long lastAccess;
+
+        private Entry(int status, String contentType, String vary, byte[] body, long expiresAt, int keyLength) {
+            this.status = status;
+            this.contentType = contentType;
+            this.vary = vary;
+            this.body = body;
+            this.etag = etagOf(body);
+            this.expiresAt = expiresAt;
+            this.weight = body.length + 2L * keyLength + ENTRY_OVERHEAD;
+        }
+
+        /* seconds the client can keep the response */
+        long maxAge(){
+            return Math.max(0, TimeUnit.NANOSECONDS.toSeconds(expiresAt - System.nanoTime()));
+        }
+
+        /* weak: the same entry is sent compressed or not */
+        private static String etagOf(byte[] body){
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, body.length);
+            Adler32 adler = new Adler32();
+            adler.update(body, 0, body.length);
+            return "W/\"" + Integer.toHexString(body.length) + '-' + Long.toHexString(crc.getValue()) + Long.toHexString(adler.getValue()) + '"';
+        }
+
+        boolean matches(final String ifNoneMatch){
+            if(ifNoneMatch == null) return false;
+            final String strong = etag.substring(2);
+            for(String tag : ifNoneMatch.split(",")){
+                String t = tag.trim();
+                if(t.equals("*") || t.equals(etag) || t.equals(strong) || (t.startsWith("W/") && t.substring(2).equals(strong))) return true;
+            }
+            return false;
+        }
+    }
+
+    /* a request waiting for a flight, which leaves it when its exchange ends first: deadline, container timeout or client gone */
+    private static final class Waiter implements AsyncListener {
+        private final HttpServletRequest  request;
+        private final HttpServletResponse response;
+        private final Runnable            runAction;
+        private final Flight              flight;
+        private final AtomicBoolean       settled = new AtomicBoolean();
+
+        private Waiter(HttpServletRequest request, HttpServletResponse response, Runnable runAction, Flight flight) {
+            this.request = request;
+            this.response = response;
+            this.runAction = runAction;
+            this.flight = flight;
+        }
+
+        /* true only once: for the landing flight, which may answer the request, or for the end of the exchange */
+        private boolean settle(){
+            return settled.compareAndSet(false, true);
+        }
+
+        private void leave(){
+            if(settle()) flight.leave(this);
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            leave();
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            leave();
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            leave();
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            //the listener belongs to this exchange only
+        }
+    }
+
+    /* the Action running for a key, with the requests waiting for its response */
+    private static final class Flight {
+        private final List<Waiter> waiters = new ArrayList<>();
+        private boolean landed;
+
+        private synchronized boolean join(Waiter waiter){
+            if(landed) return false;
+            waiters.add(waiter);
+            return true;
+        }
+
+        private synchronized void leave(Waiter waiter){
+            if(!landed) waiters.remove(waiter);
+        }
+
+        private synchronized int size(){
+            return landed ? 0 : waiters.size();
+        }
+
+        private synchronized List<Waiter> land(){
+            landed = true;
+            return waiters;
+        }
+    }
+
+    /* the sink set on the request which runs the Action of a missing key, in front of the sink already there (a batched sub-request) if any */
+    private final class Capture implements ResponseSink {
+        private final RestHandler handler;
+        private final String key;
+        private final Flight flight;
+        private final ResponseSink next;
+        private boolean captured;
+
+        private Capture(RestHandler handler, String key, Flight flight, ResponseSink next) {
+            this.handler = handler;
+            this.key = key;
+            this.flight = flight;
+            this.next = next;
+        }
+
+        /* the waiting requests get the same response, only a 200 is cached */
+        @Override
+        public ByteBuffer onResponse(final HttpServletRequest request, final HttpServletResponse response, final ByteBuffer content) {
+            captured = true;
+            final byte[] body = new byte[content.remaining()];
+            content.duplicate().get(body);
+            final Entry entry = new Entry(response.getStatus(), response.getContentType(), response.getHeader("Vary"), body, System.nanoTime() + ttlNanos, key.length());
+            entry.lastAccess = System.nanoTime();
+            if(entry.status == 200) put(key, entry);
+            flights.remove(key, flight);
+            for(Waiter waiter : flight.land()){
+                if(!waiter.settle()) continue;
+                try {
+                    handler.sendCached(waiter.request, waiter.response, entry);
+                } catch (IOException | RuntimeException e) {
+                    waiter.request.getAsyncContext().complete();
+                }
+            }
+            if(entry.status != 200) return forward(request, response, content);
+            response.setHeader("ETag", entry.etag);
+            response.setHeader("Cache-Control", "max-age=" + entry.maxAge());
+            if(entry.matches(request.getHeader("If-None-Match"))){
+                response.setStatus(304);
+                return forward(request, response, ByteBuffer.allocate(0));
+            }
+            return forward(request, response, content);
+        }
+
+        private ByteBuffer forward(final HttpServletRequest request, final HttpServletResponse response, final ByteBuffer content) {
+            return (next != null) ? next.onResponse(request, response, content) : content;
+        }
+
+        /* the Action answered without going through the cache (a stream, an error): the waiting requests run it themselves */
+        @Override
+        public void onCompleted(final HttpServletRequest request, final HttpServletResponse response) {
+            if(next != null) next.onCompleted(request, response);
+            if(captured) return;
+            captured = true;
+            flights.remove(key, flight);
+            for(Waiter waiter : flight.land()){
+                if(waiter.settle()) waiter.runAction.run();
+            }
+        }
+    }
+}
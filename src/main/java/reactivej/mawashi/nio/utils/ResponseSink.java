@@ -0,0 +1,21 @@
+package reactivej.mawashi.nio.utils;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.ByteBuffer;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Hook set as the RestHandler.RESPONSE_SINK_ATTRIBUTE of a request to see its response before it is written:
+ * the response cache keeps a copy of the encoded bytes of the responses it is waiting for.
+ * A sink set over another one passes the response on to it, as the cache does on a batched sub-request
+ */
+interface ResponseSink {
+
+    /* called before the content is written: returns the content to write, or null when the sink took the response over */
+    ByteBuffer onResponse(HttpServletRequest request, HttpServletResponse response, ByteBuffer content);
+
+    /* called at the end of every exchange, even when the response didn't go through onResponse (e.g. a stream) */
+    void onCompleted(HttpServletRequest request, HttpServletResponse response);
+}
@@ -1,192 +1,1107 @@
 package reactivej.mawashi.nio.utils;
 
+import com.google.gson.TypeAdapter;
+import org.eclipse.jetty.server.HttpOutput;
 import reactivej.mawashi.nio.annotations.Api;
+import reactivej.mawashi.nio.logging.AccessLog;
+import reactivej.mawashi.nio.metrics.Metrics;
 
 import javax.servlet.AsyncContext;
+import javax.servlet.AsyncListener;
 import javax.servlet.ServletOutputStream;
 import javax.servlet.WriteListener;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.nio.Buffer;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.time.LocalDateTime;
 import java.time.LocalTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.stream.Collectors;
 
 /**
  * @author alessandroargentieri
  *
- * Singleton class which contains all methods and data regarding Endpoints, Paths,
- * Non-Blocking Output conversion and representation
+ * Class which contains all methods and data regarding Endpoints, Paths,
+ * Non-Blocking Output conversion and representation.
+ * Each ReactiveJ owns one, with its routes, converters and executors, and publishes it in the servlet context
+ * under CONTEXT_ATTRIBUTE; getInstance() is the default one, served by a GenericNioServlet deployed without a ReactiveJ
  */
 public class RestHandler {
 
     private final static Logger log = Logger.getLogger(RestHandler.class.getName());
 
-    /* Singleton Design pattern implementation */
-    private static RestHandler instance = null;
+    /* default instance: the holder class is initialized, once and thread-safely, on the first call */
+    private static final class Holder {
+        private static final RestHandler INSTANCE = new RestHandler(JsonConverter.getInstance(), XmlConverter.getInstance());
+    }
     public static RestHandler getInstance(){
-        if(instance == null){
-            log.info(LocalTime.now() + ": creation of RestHandler");
-            instance = new RestHandler();
-        }
-        return instance;
+        return Holder.INSTANCE;
     }
 
+    public static final String CONTEXT_ATTRIBUTE = "reactivej.rest-handler";
+    public static final String ROUTE_MATCH_ATTRIBUTE = "reactivej.route-match";
+    public static final String START_NANOS_ATTRIBUTE = "reactivej.start-nanos";
+    public static final String ALLOWED_METHODS_ATTRIBUTE = "reactivej.allowed-methods";
+    public static final String RESPONSE_SINK_ATTRIBUTE = "reactivej.response-sink";
+    public static final long DEFAULT_TIMEOUT = 30_000;
+    public static final String DEFAULT_DEADLINE_HEADER = "X-Request-Timeout";
+    public static final int DEFAULT_WRITE_CHUNK_SIZE = 32 * 1024;
+    public static final long DEFAULT_MAX_BODY_SIZE = 10 * 1024 * 1024;
+    public static final int DEFAULT_DISPATCH_QUEUE_SIZE = 1024;
+    public static final String PROMETHEUS_MIMETYPE = "text/plain; version=0.0.4; charset=utf-8";
+    public static final String DEFAULT_METRICS_PATH = "/metrics";
+
+    /* the registered endpoints, guarded by this; requests only read the immutable Router compiled from them */
     private final List<Endpoint> endpointList = new ArrayList<>();
+    private final JsonConverter jsonConverter;
+    private final XmlConverter xmlConverter;
+    private final Codecs codecs;
+    private volatile Router router;
+    private boolean frozen;
+    private volatile int writeChunkSize = DEFAULT_WRITE_CHUNK_SIZE;
+    private volatile long maxBodySize = DEFAULT_MAX_BODY_SIZE;
+    private volatile AccessLog accessLog;
+    private final Metrics metrics = new Metrics();
+    private volatile boolean metricsEnabled;
+    private Endpoint metricsEndpoint;
+    private volatile Compression compression;
+    private volatile AdmissionControl admissionControl;
+    private volatile long timeout = DEFAULT_TIMEOUT;
+    private volatile String deadlineHeader = DEFAULT_DEADLINE_HEADER;
+    private volatile long heartbeatInterval = EventStream.DEFAULT_HEARTBEAT_INTERVAL;
+    private volatile DispatchMode dispatchMode = DispatchMode.INLINE;
+    private volatile ExecutorService boundedExecutor;
+    private volatile ExecutorService virtualThreadExecutor;
+    private boolean ownsBoundedExecutor;
+    private volatile Batch batch;
+    private final MappedFiles mappedFiles = new MappedFiles();
+    /* the RouteMatch of the fallback responses, kept out of the route table so that no request path reaches them */
+    private final Router fallbacks;
 
     @Api(path = "/not-found", method = "", consumes = "", produces = "", description = "Error action")
     private final Action notFoundError = (HttpServletRequest request, HttpServletResponse response) -> {
+        response.setStatus(404);
         toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(404, request.getRequestURI(), "Page not found"));
     };
-    @Api(path = "/internal-server-error", method = "", consumes = "", produces = "", description = "Internal server error")
+    /* the 500 of an Action which throws */
     private final Action internalServerError = (HttpServletRequest request, HttpServletResponse response) -> {
+        response.setStatus(500);
         toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(500, request.getRequestURI(), request.getAttribute("internal-server-error").toString()));
     };
+    /* the 503 of a request the dispatch executor rejects */
+    private final Action serviceUnavailable = (HttpServletRequest request, HttpServletResponse response) -> {
+        response.setStatus(503);
+        response.setHeader("Retry-After", "1");
+        toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(503, request.getRequestURI(), "Service unavailable"));
+    };
+    /* the 405 of a path which exists for other methods */
+    private final Action methodNotAllowed = (HttpServletRequest request, HttpServletResponse response) -> {
+        response.setStatus(405);
+        response.setHeader("Allow", String.valueOf(request.getAttribute(ALLOWED_METHODS_ATTRIBUTE)));
+        toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(405, request.getRequestURI(), "Method " + request.getMethod() + " not allowed"));
+    };
+    /* the 415 of a body the route doesn't consume */
+    private final Action unsupportedMediaType = (HttpServletRequest request, HttpServletResponse response) -> {
+        response.setStatus(415);
+        toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(415, request.getRequestURI(), "Unsupported media type " + request.getContentType()));
+    };
+    /* the 204 to OPTIONS and CORS preflight requests, when no endpoint declares OPTIONS */
+    private final Action preflight = (HttpServletRequest request, HttpServletResponse response) -> {
+        final String allowed = String.valueOf(request.getAttribute(ALLOWED_METHODS_ATTRIBUTE));
+        response.setStatus(204);
+        response.setHeader("Allow", allowed);
+        response.setHeader("Access-Control-Allow-Methods", allowed);
+        final String requestHeaders = request.getHeader("Access-Control-Request-Headers");
+        if(requestHeaders != null) response.setHeader("Access-Control-Allow-Headers", requestHeaders);
+        response.setHeader("Access-Control-Max-Age", "600");
+        nioResponse(request, response, ByteBuffer.allocate(0), null);
+    };
     @Api(path = "/status", method = "", consumes = "", produces = "", description = "Check health")
     private final Action checkHealth = (HttpServletRequest request, HttpServletResponse response) -> {
         toJsonResponse(request, response, "{ \"status\": \"ok\"}");
     };
+    @Api(path = "/metrics", method = "", consumes = "", produces = "", description = "Request metrics in the Prometheus text format, once enabled")
+    private final Action exportMetrics = (HttpServletRequest request, HttpServletResponse response) -> {
+        toResponse(request, response, metrics.toPrometheus(), PROMETHEUS_MIMETYPE);
+    };
+    @Api(path = "/batch", method = "POST", consumes = "application/json", produces = "application/json", description = "Several requests in one, once enabled")
+    private final Action runBatch = (HttpServletRequest request, HttpServletResponse response) -> {
+        final Batch batch = this.batch;
+        if(batch == null){
+            notFoundError.act(request, response);
+            return;
+        }
+        batch.run(this, request, response);
+    };
+
+    /* a handler of its own, isolated from the default one: its own routes, converters, executors and metrics */
+    public RestHandler(){
+        this(new JsonConverter(), new XmlConverter());
+    }
 
-    private RestHandler(){
+    private RestHandler(JsonConverter jsonConverter, XmlConverter xmlConverter){
+        log.info(LocalTime.now() + ": creation of RestHandler");
+        this.jsonConverter = jsonConverter;
+        this.xmlConverter = xmlConverter;
+        this.codecs = new Codecs(new JsonCodec(jsonConverter), new XmlCodec(xmlConverter), new CborCodec(jsonConverter));
         endpointList.add(new Endpoint("/not-found", notFoundError));
-        endpointList.add(new Endpoint("/internal-server-error", internalServerError));
-        endpointList.add(new Endpoint("/status", checkHealth));
+        endpointList.add(new Endpoint("/status", checkHealth).priority(Priority.CRITICAL));
+        this.fallbacks = Router.compile(Arrays.asList(
+                new Endpoint("/method-not-allowed", methodNotAllowed),
+                new Endpoint("/unsupported-media-type", unsupportedMediaType),
+                new Endpoint("/preflight", preflight)), jsonConverter);
     }
 
 
     public final synchronized RestHandler setEndpoint(final String path, final Action action){
-        final Endpoint endpoint = new Endpoint(path, action);
+        addEndpoint(path, action);
+        return this;
+    }
+
+    /* same as setEndpoint but returns the new Endpoint, to tune it */
+    public final synchronized Endpoint addEndpoint(final String path, final Action action){
+        return addEndpoint(null, path, action);
+    }
+
+    /* binds the action to a single method of the path; a null method binds it to every method */
+    public final synchronized Endpoint addEndpoint(final HttpMethod method, final String path, final Action action){
+        final Endpoint endpoint = new Endpoint(method, path, action);
+        adopt(endpoint);
+        return endpoint;
+    }
+
+    /*
+     * binds the endpoints to this handler: what they declared in their constructor is registered here
+     * (and removed from the handler given to their constructor, if any), then their @Api annotated fields are registered
+     */
+    public final void register(final Endpoints endpoints){
+        final RestHandler previous = endpoints.bind(this);
+        if(previous != this){
+            for(Endpoint endpoint : endpoints.declared()){
+                if(previous != null) previous.unregister(endpoint);
+                adopt(endpoint);
+            }
+        }
+        registerApiFields(endpoints);
+    }
+
+    private synchronized void adopt(final Endpoint endpoint){
+        if(metricsEndpoint != null && metricsEndpoint.getPath().equals(endpoint.getPath())){
+            throw new IllegalStateException("path " + endpoint.getPath() + " is already mapped to the metrics");
+        }
+        endpoint.registry = this;
         endpointList.add(endpoint);
-        log.info(LocalTime.now() + ": added action to path " + path);
+        log.info(LocalTime.now() + ": added action to " + ((endpoint.getMethod() == null) ? "" : endpoint.getMethod() + " ") + "path " + endpoint.getPath());
+        republish();
+    }
+
+    private synchronized void unregister(final Endpoint endpoint){
+        if(endpointList.remove(endpoint)) republish();
+    }
+
+    /* unbinds the action of the method from the path, or every action of the path when the method is null; the built-in endpoints stay */
+    public final synchronized boolean removeEndpoint(final HttpMethod method, final String path){
+        final boolean removed = endpointList.removeIf(e -> e.registry == this && e.getPath().equals(path) && (method == null || e.getMethod() == method));
+        if(removed){
+            log.info(LocalTime.now() + ": removed action from " + ((method == null) ? "" : method + " ") + "path " + path);
+            republish();
+        }
+        return removed;
+    }
+
+    /*
+     * before ReactiveJ#start the routes are compiled on the first lookup; afterwards every change compiles a new Router
+     * which replaces the old one in a single write, so that requests never see a half-updated registry nor take a lock
+     */
+    synchronized void republish(){
+        if(frozen){
+            router = Router.compile(endpointList, jsonConverter);
+            log.info(LocalTime.now() + ": republished " + endpointList.size() + " routes");
+        } else {
+            router = null;
+        }
+    }
+
+    /*
+     * registers the @Api annotated Action fields of the endpoints, once at startup, with their method, consumes and produces;
+     * the actions already registered through setEndpoint in the constructor are left as they are.
+     * The fields of a class indexed at compile time by the RouteIndexProcessor are read by its index, the other ones by reflection
+     */
+    public final synchronized void registerApiFields(final Endpoints endpoints){
+        for(Class<?> type = endpoints.getClass(); type != null && type != Endpoints.class; type = type.getSuperclass()){
+            final RouteIndex index = RouteIndexes.of(type);
+            if(index != null){
+                index.register(endpoints, this::registerApi);
+                continue;
+            }
+            for(Field field : type.getDeclaredFields()){
+                final Api api = field.getAnnotation(Api.class);
+                if(api == null || !Action.class.isAssignableFrom(field.getType()) || Modifier.isStatic(field.getModifiers())) continue;
+                final Action action;
+                try {
+                    field.setAccessible(true);
+                    action = (Action) field.get(endpoints);
+                } catch (IllegalAccessException | RuntimeException e) {
+                    log.warning(LocalTime.now() + ": unable to read the @Api field " + type.getSimpleName() + "." + field.getName() + ": " + e);
+                    continue;
+                }
+                registerApi(action, HttpMethod.of(api.method().trim().toUpperCase(Locale.ROOT)), api.path(), api.consumes(), api.produces(),
+                        api.requestType(), api.responseType());
+            }
+        }
+    }
+
+    private void registerApi(final Action action, final HttpMethod method, final String path, final String consumes, final String produces,
+                             final Class<?> requestType, final Class<?> responseType){
+        prewarm(consumes, produces, requestType, responseType);
+        if(action == null || isRegistered(action)) return;
+        addEndpoint(method, path, action)
+                .consumes(consumes)
+                .produces(produces)
+                .body(consumesJson(consumes, requestType) ? requestType : null);
+    }
+
+    /* the JAXBContext or the Gson adapter of the request and response types is created now rather than on the first request */
+    private void prewarm(final String consumes, final String produces, final Class<?> requestType, final Class<?> responseType){
+        if(consumesJson(consumes, requestType)) jsonConverter.getAdapter(requestType);
+        if(responseType != Void.class && produces.toLowerCase(Locale.ROOT).contains("json")){
+            jsonConverter.getAdapter(responseType);
+        }
+        if(requestType != Void.class && consumes.toLowerCase(Locale.ROOT).contains("xml")){
+            xmlConverter.prewarm(requestType);
+        }
+        if(responseType != Void.class && produces.toLowerCase(Locale.ROOT).contains("xml")){
+            xmlConverter.prewarm(responseType);
+        }
+    }
+
+    private static boolean consumesJson(final String consumes, final Class<?> requestType){
+        return requestType != Void.class && consumes.toLowerCase(Locale.ROOT).contains("json");
+    }
+
+    private boolean isRegistered(final Action action){
+        for(Endpoint endpoint : endpointList){
+            if(endpoint.getAction() == action) return true;
+        }
+        return false;
+    }
+
+    /* dispatch mode of the endpoints which don't set their own */
+    public final RestHandler setDispatchMode(final DispatchMode dispatchMode){
+        this.dispatchMode = dispatchMode;
         return this;
     }
 
-    public final Action getEndpointIfMatches(final String path){
-        List<Endpoint> endpoints = endpointList.stream().filter(end -> urlMatch(path, end.getPath())).limit(1).collect(Collectors.toList());
-        return (endpoints.size()==1) ? endpoints.get(0).getAction(): getEndpointIfMatches("/not-found") ;
+    /* executor used by the EXECUTOR dispatch mode instead of the default bounded pool */
+    public final synchronized RestHandler setDispatchExecutor(final ExecutorService executor){
+        /* before JDK 21 the virtual threads fall back to the bounded executor: they follow it to the new one */
+        if(virtualThreadExecutor == boundedExecutor) virtualThreadExecutor = null;
+        if(ownsBoundedExecutor) boundedExecutor.shutdown();
+        this.boundedExecutor = executor;
+        this.ownsBoundedExecutor = false;
+        return this;
     }
 
-    private boolean urlMatch(String requestUrl, String endpointUrl){
+    /* null means the action runs inline on the Jetty thread */
+    public final Executor executorFor(final Router.Route route){
+        DispatchMode mode = (route.getDispatchMode() != null) ? route.getDispatchMode() : dispatchMode;
+        switch (mode) {
+            case EXECUTOR:
+                return boundedExecutor();
+            case VIRTUAL_THREAD:
+                return virtualThreadExecutor();
+            default:
+                return null;
+        }
+    }
 
-        if(!requestUrl.startsWith("/")) requestUrl = "/"+requestUrl;
-        if(!endpointUrl.startsWith("/")) endpointUrl = "/"+endpointUrl;
+    private Executor boundedExecutor(){
+        ExecutorService executor = boundedExecutor;
+        if(executor == null){
+            synchronized (this){
+                if(boundedExecutor == null){
+                    int threads = Math.max(16, Runtime.getRuntime().availableProcessors() * 8);
+                    ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                            new ArrayBlockingQueue<>(DEFAULT_DISPATCH_QUEUE_SIZE), daemonThreads("reactivej-dispatch-"));
+                    pool.allowCoreThreadTimeOut(true);
+                    boundedExecutor = pool;
+                    ownsBoundedExecutor = true;
+                }
+                executor = boundedExecutor;
+            }
+        }
+        return executor;
+    }
 
-        if(requestUrl.endsWith("/")) requestUrl = requestUrl.substring(0, requestUrl.length()-1);
-        if(endpointUrl.endsWith("/")) endpointUrl = endpointUrl.substring(0, endpointUrl.length()-1);
+    /* Executors#newVirtualThreadPerTaskExecutor is looked up reflectively so that the library still runs on JDK 8 */
+    private Executor virtualThreadExecutor(){
+        ExecutorService executor = virtualThreadExecutor;
+        if(executor == null){
+            synchronized (this){
+                if(virtualThreadExecutor == null){
+                    try {
+                        virtualThreadExecutor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    } catch (ReflectiveOperationException e) {
+                        log.warning(LocalTime.now() + ": virtual threads are not available on this JDK, falling back to the bounded executor");
+                        virtualThreadExecutor = (ExecutorService) boundedExecutor();
+                    }
+                }
+                executor = virtualThreadExecutor;
+            }
+        }
+        return executor;
+    }
+
+    /*
+     * stops the dispatch executors created by the handler once their pending actions have run, and they are created anew
+     * if the handler serves again; an executor given to setDispatchExecutor belongs to the caller and is left running
+     */
+    public final synchronized void shutdown(){
+        if(virtualThreadExecutor != null && virtualThreadExecutor != boundedExecutor) virtualThreadExecutor.shutdown();
+        virtualThreadExecutor = null;
+        if(ownsBoundedExecutor){
+            boundedExecutor.shutdown();
+            boundedExecutor = null;
+            ownsBoundedExecutor = false;
+        }
+    }
+
+    private static ThreadFactory daemonThreads(final String prefix){
+        final AtomicInteger counter = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, prefix + counter.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    /* max number of bytes handed to the servlet output stream in a single non-blocking write */
+    public final RestHandler setWriteChunkSize(final int writeChunkSize){
+        if(writeChunkSize <= 0) throw new IllegalArgumentException("write chunk size must be positive: " + writeChunkSize);
+        this.writeChunkSize = writeChunkSize;
+        return this;
+    }
+
+    /* bodies read through readBody bigger than this are rejected with a PayloadTooLargeException */
+    public final RestHandler setMaxBodySize(final long maxBodySize){
+        if(maxBodySize <= 0) throw new IllegalArgumentException("max body size must be positive: " + maxBodySize);
+        this.maxBodySize = maxBodySize;
+        return this;
+    }
+
+    /* milliseconds between two heartbeats of an idle event stream, 0 disables them */
+    public final RestHandler setHeartbeatInterval(final long heartbeatInterval){
+        if(heartbeatInterval < 0) throw new IllegalArgumentException("heartbeat interval must not be negative: " + heartbeatInterval);
+        this.heartbeatInterval = heartbeatInterval;
+        return this;
+    }
+
+    /* milliseconds a request has to start its response, unless its endpoint has a timeout of its own; 0 leaves the container timeout */
+    public final RestHandler setTimeout(final long timeout){
+        if(timeout < 0) throw new IllegalArgumentException("timeout must not be negative: " + timeout);
+        this.timeout = timeout;
+        return this;
+    }
+
+    /* request header whose milliseconds can shorten the timeout, X-Request-Timeout by default; null ignores it */
+    public final RestHandler setDeadlineHeader(final String deadlineHeader){
+        this.deadlineHeader = deadlineHeader;
+        return this;
+    }
+
+    /* null disables the shedding, except for the endpoints with a max in-flight of their own */
+    public final RestHandler setAdmissionControl(final AdmissionControl admissionControl){
+        this.admissionControl = admissionControl;
+        return this;
+    }
 
-        String[] split1 = requestUrl.split("/");
-        String[] split2 = endpointUrl.split("/");
-        if(split1.length != split2.length) return false;
+    public final AdmissionControl getAdmissionControl(){
+        return admissionControl;
+    }
+
+    /* the batch endpoint is registered on its path, POST /batch by default; null unregisters it */
+    public final synchronized RestHandler setBatch(final Batch batch){
+        endpointList.removeIf(e -> e.getAction() == runBatch);
+        this.batch = batch;
+        if(batch != null){
+            endpointList.add(new Endpoint(HttpMethod.POST, batch.getPath(), runBatch).consumes(JsonCodec.MEDIA_TYPE));
+            log.info(LocalTime.now() + ": added batch endpoint to path " + batch.getPath());
+        }
+        republish();
+        return this;
+    }
 
-        for(int i=0; i<split1.length; i++){
-            String chunck1 = split1[i];
-            String chunck2 = split2[i];
+    public final Batch getBatch(){
+        return batch;
+    }
 
-            if(!chunck1.equals(chunck2)){
-                if(!chunck2.startsWith("{") && !chunck2.endsWith("}")) return false;
+    /* files served by toFileResponse kept memory-mapped: at most maxFiles of at most maxFileSize bytes each, 0 files disables it */
+    public final RestHandler setFileCache(final int maxFiles, final long maxFileSize){
+        if(maxFiles < 0) throw new IllegalArgumentException("max files must not be negative: " + maxFiles);
+        if(maxFileSize < 0 || maxFileSize > Integer.MAX_VALUE) throw new IllegalArgumentException("max file size must be between 0 and 2 GB: " + maxFileSize);
+        mappedFiles.configure(maxFiles, maxFileSize);
+        return this;
+    }
+
+    /* null disables the compression */
+    public final RestHandler setCompression(final Compression compression){
+        this.compression = compression;
+        return this;
+    }
+
+    /* null disables the access log */
+    public final RestHandler setAccessLog(final AccessLog accessLog){
+        this.accessLog = accessLog;
+        return this;
+    }
+
+    public final AccessLog getAccessLog(){
+        return accessLog;
+    }
+
+    /* metrics are off by default: once enabled they are recorded and exported on /metrics, unless another path is set */
+    public final synchronized RestHandler setMetricsEnabled(final boolean metricsEnabled){
+        if(metricsEnabled) return setMetricsPath((metricsEndpoint != null) ? metricsEndpoint.getPath() : DEFAULT_METRICS_PATH);
+        this.metricsEnabled = false;
+        if(metricsEndpoint != null){
+            endpointList.remove(metricsEndpoint);
+            metricsEndpoint = null;
+            republish();
+        }
+        return this;
+    }
+
+    /* enables the metrics and exports them on the path, which no other endpoint may map */
+    public final synchronized RestHandler setMetricsPath(final String path){
+        for(Endpoint endpoint : endpointList){
+            if(endpoint != metricsEndpoint && endpoint.getPath().equals(path)){
+                throw new IllegalStateException("path " + path + " is already mapped: the metrics cannot be exported there");
             }
         }
+        if(metricsEndpoint != null) endpointList.remove(metricsEndpoint);
+        metricsEndpoint = new Endpoint(path, exportMetrics).priority(Priority.CRITICAL);
+        endpointList.add(metricsEndpoint);
+        this.metricsEnabled = true;
+        republish();
+        return this;
+    }
+
+    /* the path the metrics are exported on, null when they are disabled */
+    public final synchronized String getMetricsPath(){
+        return (metricsEndpoint != null) ? metricsEndpoint.getPath() : null;
+    }
+
+    public final boolean isMetricsEnabled(){
+        return metricsEnabled;
+    }
+
+    public final Metrics getMetrics(){
+        return metrics;
+    }
+
+    public final JsonConverter getJsonConverter(){
+        return jsonConverter;
+    }
+
+    public final XmlConverter getXmlConverter(){
+        return xmlConverter;
+    }
+
+    public final Codecs getCodecs(){
+        return codecs;
+    }
+
+    /* json, xml and cbor are registered by default: a codec with the media type of one of them replaces it */
+    public final RestHandler registerCodec(final Codec codec){
+        if(codec == null || codec.getMediaType() == null) throw new IllegalArgumentException("a codec needs a media type");
+        codecs.register(codec);
+        return this;
+    }
+
+    /* compiles the registered endpoints into the routing trie */
+    public final synchronized Router compileRoutes(){
+        if(router == null){
+            router = Router.compile(endpointList, jsonConverter);
+            log.info(LocalTime.now() + ": compiled " + endpointList.size() + " routes");
+        }
+        return router;
+    }
+
+    /* called by ReactiveJ#start: from now on the routes are always compiled, changes of the endpoints are republished at once */
+    public final synchronized Router freeze(){
+        frozen = true;
+        return compileRoutes();
+    }
+
+    private Router router(){
+        Router r = router;
+        return (r != null) ? r : compileRoutes();
+    }
+
+    /* single lookup returning the action and the path variables; falls back to /not-found */
+    public final Router.RouteMatch match(final String path){
+        Router.RouteMatch match = router().match(path);
+        return (match != null) ? match : router().match("/not-found");
+    }
+
+    /*
+     * routes the request on its method and path: falls back to /not-found, or to the private 405, 415
+     * and OPTIONS (without a dedicated endpoint) responses, without calling the endpoint action
+     */
+    public final Router.RouteMatch route(final HttpServletRequest request){
+        final HttpMethod method = HttpMethod.of(request.getMethod());
+        final Router.RouteMatch match = router().match(method, request.getRequestURI());
+        if(match == null) return match("/not-found");
+        final Router.Route route = match.getRoute();
+        if(route == null){
+            request.setAttribute(ALLOWED_METHODS_ATTRIBUTE, match.getAllowedMethods());
+            return fallbacks.match((method == HttpMethod.OPTIONS) ? "/preflight" : "/method-not-allowed");
+        }
+        if(hasBody(request) && !route.accepts(request.getContentType())) return fallbacks.match("/unsupported-media-type");
+        return match;
+    }
+
+    /* false when the request must be shed: the slots it takes are given back once its AsyncContext completes */
+    public final boolean admit(final Router.RouteMatch match, final HttpServletRequest request){
+        final Router.Route route = match.getRoute();
+        final AdmissionControl control = this.admissionControl;
+        if(route == null || (control == null && route.getMaxInFlight() == 0)) return true;
+        final AsyncListener permit = AdmissionControl.acquire(control, route);
+        if(permit == null) return false;
+        request.getAsyncContext().addListener(permit);
         return true;
     }
 
-    public Map<String, String> getPathVariables(final String path){
-        List<Map<String,String>> pathVariablesListMap = endpointList.stream()
-                    .filter(end -> urlMatch(path, end.getPath()))
-                    .limit(1)
-                    .map(end -> end.getPath())
-                    .map(p -> extractPathVariables(p, path)).collect(Collectors.toList());
-        return (!pathVariablesListMap.isEmpty()) ? pathVariablesListMap.get(0) : new HashMap<String, String>();
+    /* the 503 of a shed request, written at once from a preallocated body */
+    public final void shed(final HttpServletRequest request, final HttpServletResponse response) throws IOException {
+        final AdmissionControl control = this.admissionControl;
+        response.setStatus(503);
+        response.setHeader("Retry-After", (control != null) ? control.getRetryAfter() : String.valueOf(AdmissionControl.DEFAULT_RETRY_AFTER));
+        response.setContentType("application/json");
+        nioResponse(request, response, ByteBuffer.wrap(AdmissionControl.OVERLOADED), null);
+    }
+
+    /*
+     * starts the deadline of the request, which replaces the timeout of the container: the timeout of the route or of the server,
+     * shortened by the deadline header of the client if any; on expiry the cancellation hooks run and the client gets a 504.
+     * The returned request, bound to the deadline, is the one to hand to the Action
+     */
+    public final HttpServletRequest arm(final Router.RouteMatch match, final HttpServletRequest request, final HttpServletResponse response){
+        return arm(match, request, response, 0);
     }
 
-    private Map<String, String> extractPathVariables(String endpointPath, String requestPath){
+    /* same as above, with a timeout of at most limit milliseconds when positive: a sub-request never outlasts its batch */
+    final HttpServletRequest arm(final Router.RouteMatch match, final HttpServletRequest request, final HttpServletResponse response, final long limit){
+        final Router.Route route = match.getRoute();
+        long timeout = (route != null && route.getTimeout() > 0) ? route.getTimeout() : this.timeout;
+        final String header = this.deadlineHeader;
+        final String requested = (header != null) ? request.getHeader(header) : null;
+        if(requested != null){
+            try {
+                final long millis = Long.parseLong(requested.trim());
+                if(millis > 0 && (timeout == 0 || millis < timeout)) timeout = millis;
+            } catch (NumberFormatException e) {
+                log.fine(LocalTime.now() + ": ignored the invalid " + header + " header: " + requested);
+            }
+        }
+        if(limit > 0 && (timeout == 0 || limit < timeout)) timeout = limit;
+        if(timeout == 0) return request;
+        request.getAsyncContext().setTimeout(0);
+        final long timeoutMillis = timeout;
+        return new Deadline.BoundRequest(request, Deadline.start(timeout, () -> timedOut(request, response, timeoutMillis)));
+    }
+
+    /* the deadline of a request returned by arm, null when it has none */
+    public final Deadline getDeadline(final HttpServletRequest request){
+        return (request instanceof Deadline.BoundRequest) ? ((Deadline.BoundRequest) request).deadline : null;
+    }
 
-        Map<String, String> pathVariables = new HashMap<>();
+    /*
+     * false when the deadline of the request is expired: its 504 is on the way, or already sent and the request recycled,
+     * so the caller must not touch the request nor the response any more
+     */
+    final boolean claim(final HttpServletRequest request){
+        final Deadline deadline = getDeadline(request);
+        return deadline == null || deadline.respond();
+    }
 
-        if(!requestPath.startsWith("/")) requestPath = "/"+requestPath;
-        if(!endpointPath.startsWith("/")) endpointPath = "/"+endpointPath;
+    private void timedOut(final HttpServletRequest request, final HttpServletResponse response, final long timeout){
+        log.info(LocalTime.now() + ": Gateway Timeout (code 504) after " + timeout + " ms for " + request.getRequestURI());
+        try {
+            response.setStatus(504);
+            response.setContentType("application/json");
+            final PooledBuffer buffer = PooledBuffer.acquire();
+            jsonConverter.writeJsonOf(new reactivej.mawashi.nio.utils.Error(504, request.getRequestURI(), "Gateway timeout after " + timeout + " ms"), buffer.writer());
+            respond(request, response, buffer.toByteBuffer(), buffer::release);
+        } catch (IOException | RuntimeException e) {
+            log.warning(LocalTime.now() + ": unable to send the timeout response " + e.toString());
+            request.getAsyncContext().complete();
+        }
+    }
 
-        if(requestPath.endsWith("/")) requestPath = requestPath.substring(0, requestPath.length()-1);
-        if(endpointPath.endsWith("/")) endpointPath = endpointPath.substring(0, endpointPath.length()-1);
+    /* runs the action inline or on the executor of its dispatch mode */
+    public final void dispatch(final Router.RouteMatch match, final HttpServletRequest request, final HttpServletResponse response){
+        final Executor executor = executorFor(match.getRoute());
+        if(executor == null){
+            act(match.getAction(), request, response);
+            return;
+        }
+        try{
+            executor.execute(() -> act(match.getAction(), request, response));
+        } catch (RejectedExecutionException e){
+            log.warning(LocalTime.now() + ": Service Unavailable (code 503) dispatch queue full for " + request.getRequestURI());
+            act(serviceUnavailable, request, response);
+        }
+    }
 
-        String[] split1 = requestPath.split("/");
-        String[] split2 = endpointPath.split("/");
+    /* runs on the Jetty thread or on the dispatch executor: nothing can be thrown back to the container */
+    private void act(final Action action, final HttpServletRequest request, final HttpServletResponse response){
+        try{
+            action.act(request, response);
+        } catch (Exception e){
+            log.info(LocalTime.now() + ": Internal Server Error (code 500) " + e.toString());
+            request.setAttribute("internal-server-error", e.toString());
+            try{
+                internalServerError.act(request, response);
+            } catch (Exception unrecoverable){
+                log.warning(LocalTime.now() + ": unable to send the error response " + unrecoverable.toString());
+                request.getAsyncContext().complete();
+            }
+        }
+    }
 
-        for(int i=0; i<split1.length; i++){
-            String chunck1 = split1[i];
-            String chunck2 = split2[i];
+    private static boolean hasBody(final HttpServletRequest request){
+        return request.getContentLengthLong() > 0 || request.getContentType() != null || request.getHeader("Transfer-Encoding") != null;
+    }
 
-            if(!chunck1.equals(chunck2)){
-                if(chunck2.startsWith("{") && chunck2.endsWith("}")) {
-                    String paramName = chunck2.replaceAll("\\{","")
-                           .replaceAll("\\}","")
-                           .replaceAll(" ", "");
-                    pathVariables.put(paramName, chunck1);
-                }
+    public final Action getEndpointIfMatches(final String path){
+        return match(path).getAction();
+    }
+
+    public Map<String, String> getPathVariables(final String path){
+        Router.RouteMatch match = router().match(path);
+        return (match != null) ? match.getPathVariables() : new HashMap<String, String>();
+    }
+
+    /* reuses the match stored by the GenericNioServlet, if any */
+    public Map<String, String> getPathVariables(final HttpServletRequest request){
+        Object match = request.getAttribute(ROUTE_MATCH_ATTRIBUTE);
+        return (match instanceof Router.RouteMatch) ? ((Router.RouteMatch) match).getPathVariables() : getPathVariables(request.getRequestURI());
+    }
+
+
+    /*
+     * answers the request from the cache of its route, if any: true when it is answered (or waits for the Action already running for the same key),
+     * false when the caller must run the Action; runAction runs it for a waiting request whose key could not be cached
+     */
+    public final boolean serveCached(final Router.RouteMatch match, final HttpServletRequest request, final HttpServletResponse response, final Runnable runAction) throws IOException {
+        final Router.Route route = match.getRoute();
+        final ResponseCache cache = (route != null) ? route.getCache() : null;
+        return cache != null && cache.serve(this, match, request, response, runAction);
+    }
+
+    void sendCached(final HttpServletRequest request, final HttpServletResponse response, final ResponseCache.Entry entry) throws IOException {
+        if(!claim(request)) return;
+        response.setStatus(entry.status);
+        if(entry.contentType != null) response.setContentType(entry.contentType);
+        if(entry.vary != null) response.setHeader("Vary", entry.vary);
+        if(entry.status == 200){
+            response.setHeader("ETag", entry.etag);
+            response.setHeader("Cache-Control", "max-age=" + entry.maxAge());
+            if(entry.matches(request.getHeader("If-None-Match"))){
+                response.setStatus(304);
+                nioResponse(request, response, ByteBuffer.allocate(0), null);
+                return;
+            }
+        }
+        nioResponse(request, response, ByteBuffer.wrap(entry.body), null);
+    }
+
+    /*
+     * reads the body without blocking and parses it once it is complete;
+     * a body bigger than maxBodySize is answered with a 413 before the stage fails, the Action has nothing left to send
+     */
+    protected <T> CompletionStage<T> readBody(final HttpServletRequest request, final BodyParser<T> parser){
+        return BodyReader.read(request, maxBodySize).whenComplete((buffer, failure) -> {
+            if(failure instanceof PayloadTooLargeException) payloadTooLarge(request, failure.getMessage());
+        }).thenApply(buffer -> {
+            try {
+                return parser.parse(buffer.toInputStream());
+            } catch (IOException e) {
+                throw new CompletionException(e);
+            } finally {
+                buffer.release();
             }
+        });
+    }
+
+    private void payloadTooLarge(final HttpServletRequest request, final String message){
+        log.info(LocalTime.now() + ": Payload Too Large (code 413) for " + request.getRequestURI());
+        if(!claim(request)) return;
+        final HttpServletResponse response = (HttpServletResponse) request.getAsyncContext().getResponse();
+        try {
+            response.setStatus(413);
+            toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(413, request.getRequestURI(), message));
+        } catch (IOException | RuntimeException e) {
+            log.warning(LocalTime.now() + ": unable to send the error response " + e.toString());
+            request.getAsyncContext().complete();
+        }
+    }
+
+    /* reads the json body with the adapter of the type declared by the route, see Endpoint#body */
+    protected <T> CompletionStage<T> readJsonBody(final HttpServletRequest request){
+        final Object match = request.getAttribute(ROUTE_MATCH_ATTRIBUTE);
+        final Router.Route route = (match instanceof Router.RouteMatch) ? ((Router.RouteMatch) match).getRoute() : null;
+        final TypeAdapter<T> adapter = (route != null) ? (TypeAdapter<T>) route.getBodyAdapter() : null;
+        if(adapter == null){
+            final CompletableFuture<T> undeclared = new CompletableFuture<>();
+            undeclared.completeExceptionally(new IllegalStateException("no body type declared for " + request.getRequestURI() + ": see Endpoint#body"));
+            return undeclared;
+        }
+        return readBody(request, body -> (T) jsonConverter.read(body, adapter));
+    }
+
+    /* reads the body with the codec of its Content-Type, json when it has none */
+    protected <T> CompletionStage<T> readNegotiatedBody(final HttpServletRequest request, final Type type){
+        final Codec codec = (request.getContentType() == null) ? codecs.forContentType(JsonCodec.MEDIA_TYPE) : codecs.forContentType(request.getContentType());
+        if(codec == null){
+            final CompletableFuture<T> unsupported = new CompletableFuture<>();
+            unsupported.completeExceptionally(new IllegalArgumentException("no codec for the content type " + request.getContentType()));
+            return unsupported;
         }
-        return pathVariables;
+        return readBody(request, body -> (T) codec.decode(body, type));
     }
 
+    @FunctionalInterface
+    protected interface BodyParser<T> {
+        T parse(InputStream body) throws IOException;
+    }
 
     protected void toJsonResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
+        if(!claim(request)) return;
         response.setContentType("application/json");
-        nioResponse(request, response, JsonConverter.getInstance().getJsonOf(resp));
+        final PooledBuffer buffer = PooledBuffer.acquire();
+        jsonConverter.writeJsonOf(resp, buffer.writer());
+        nioResponse(request, response, buffer.toByteBuffer(), buffer::release);
     }
     protected void toXmlResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
+        if(!claim(request)) return;
         response.setContentType("application/xml");
-        nioResponse(request, response, XmlConverter.getInstance().getXmlOf(resp));
+        final PooledBuffer buffer = PooledBuffer.acquire();
+        xmlConverter.writeXmlOf(resp, buffer);
+        nioResponse(request, response, buffer.toByteBuffer(), buffer::release);
+    }
+    /* encodes the response with the codec preferred by the Accept of the client among the ones the route produces, or answers 406 */
+    protected void toNegotiatedResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
+        final Object match = request.getAttribute(ROUTE_MATCH_ATTRIBUTE);
+        final Router.Route route = (match instanceof Router.RouteMatch) ? ((Router.RouteMatch) match).getRoute() : null;
+        final Codec codec = codecs.negotiate(request.getHeader("Accept"), (route != null) ? route.producedMediaTypes() : new String[0]);
+        if(codec == null){
+            response.setStatus(406);
+            toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(406, request.getRequestURI(), "Not acceptable: " + request.getHeader("Accept")));
+            return;
+        }
+        if(!claim(request)) return;
+        response.setContentType(codec.getMediaType());
+        response.addHeader("Vary", "Accept");
+        final PooledBuffer buffer = PooledBuffer.acquire();
+        codec.encode(resp, buffer);
+        nioResponse(request, response, buffer.toByteBuffer(), buffer::release);
     }
     protected void toTextResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
-        response.setContentType("text/plain");
-        nioResponse(request, response, resp.toString());
+        if(!claim(request)) return;
+        response.setContentType("text/plain;charset=utf-8");
+        nioResponse(request, response, encode(resp.toString()), null);
+    }
+
+    /* sends the file, or the range of it asked by the client, with the content type guessed from its name */
+    protected void toFileResponse(final HttpServletRequest request, final HttpServletResponse response, final Path file) throws IOException {
+        toFileResponse(request, response, file, null);
+    }
+
+    /* sends the file, or the range of it asked by the client, off-heap: hot files stay mapped, see setFileCache; a missing file gets a 404 */
+    protected void toFileResponse(final HttpServletRequest request, final HttpServletResponse response, final Path file, final String mimetype) throws IOException {
+        if(!claim(request)) return;
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if(attributes == null || !attributes.isRegularFile()){
+            response.setStatus(404);
+            toJsonResponse(request, response, new reactivej.mawashi.nio.utils.Error(404, request.getRequestURI(), "File not found"));
+            return;
+        }
+        final Path key = file.toAbsolutePath().normalize();
+        final String contentType = (mimetype != null) ? mimetype : Files.probeContentType(key);
+        FileResponse.of(key, attributes, mappedFiles.get(key, attributes))
+                .send(this, request, response, (contentType != null) ? contentType : "application/octet-stream", writeChunkSize);
+    }
+
+    /* sends the remaining bytes of the mapped buffer, or the range of them asked by the client, straight from its pages */
+    protected void toMappedResponse(final HttpServletRequest request, final HttpServletResponse response, final MappedByteBuffer content, final String mimetype) throws IOException {
+        if(!claim(request)) return;
+        FileResponse.of(content).send(this, request, response, mimetype, writeChunkSize);
+    }
+
+    /* streams the elements as a json array, encoding them only as fast as the client reads them */
+    protected void toJsonStream(final HttpServletRequest request, final HttpServletResponse response, final Iterator<?> elements) throws IOException {
+        claimStream(request);
+        response.setContentType("application/json");
+        JsonStreamWriter.stream(this, request, response, writeChunkSize, elements);
+    }
+
+    /* same as above for a Flow.Publisher or an org.reactivestreams.Publisher, which is asked for elements only while the client reads */
+    protected void toJsonStream(final HttpServletRequest request, final HttpServletResponse response, final Object publisher) throws IOException {
+        if(!Publishers.isPublisher(publisher)) throw new IllegalArgumentException("not a Flow.Publisher nor an org.reactivestreams.Publisher: " + publisher);
+        claimStream(request);
+        response.setContentType("application/json");
+        JsonStreamWriter.stream(this, request, response, writeChunkSize, publisher);
+    }
+
+    /* opens a Server-Sent Events stream which stays open until it is completed or the client goes away */
+    protected EventStream toEventStream(final HttpServletRequest request, final HttpServletResponse response, final int queueSize, final OverflowPolicy overflowPolicy) throws IOException {
+        claimStream(request);
+        return EventStream.open(this, request, response, EventStream.Format.SSE, queueSize, overflowPolicy, writeChunkSize, heartbeatInterval);
+    }
+
+    /* same as above with one json document per line */
+    protected EventStream toNdjsonStream(final HttpServletRequest request, final HttpServletResponse response, final int queueSize, final OverflowPolicy overflowPolicy) throws IOException {
+        claimStream(request);
+        return EventStream.open(this, request, response, EventStream.Format.NDJSON, queueSize, overflowPolicy, writeChunkSize, heartbeatInterval);
+    }
+
+    /* a stream disarms the deadline once it is open: it lasts as long as its source */
+    private void claimStream(final HttpServletRequest request){
+        if(!claim(request)) throw new CancellationException("the deadline of the request is expired");
     }
 
     protected void toResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp, final String mimetype) throws IOException {
+        if(!claim(request)) return;
+        response.setContentType(mimetype);
+        nioResponse(request, response, encode(resp), null);
+    }
+
+    /* byte[] and ByteBuffer go out as they are, everything else as its UTF-8 text */
+    static ByteBuffer encode(final Object resp){
+        if(resp instanceof ByteBuffer) return ((ByteBuffer) resp).slice();
+        if(resp instanceof byte[])     return ByteBuffer.wrap((byte[]) resp);
+        return ByteBuffer.wrap(String.valueOf(resp).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /* sends the content of a buffer filled by the caller, which goes back to its pool once written */
+    void sendPooled(final HttpServletRequest request, final HttpServletResponse response, final PooledBuffer buffer, final String mimetype) throws IOException {
+        if(!claim(request)){
+            buffer.release();
+            return;
+        }
         response.setContentType(mimetype);
-        nioResponse(request, response, resp);
+        nioResponse(request, response, buffer.toByteBuffer(), buffer::release);
     }
 
-    private byte[] serialize(Object obj) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        ObjectOutputStream os = new ObjectOutputStream(out);
-        os.writeObject(obj);
-        return out.toByteArray();
+    /* the release callback, if any, gives back the pooled buffer behind finalContent once the exchange is over */
+    private void nioResponse(final HttpServletRequest request, final HttpServletResponse response, final ByteBuffer finalContent, final Runnable release) throws IOException {
+        if(!claim(request)){
+            log.fine(LocalTime.now() + ": dropped a response whose deadline is expired");
+            if(release != null) release.run();
+            return;
+        }
+        respond(request, response, finalContent, release);
     }
 
-    private void nioResponse(final HttpServletRequest request, final HttpServletResponse response, final Object resp) throws IOException {
+    private void respond(final HttpServletRequest request, final HttpServletResponse response, ByteBuffer finalContent, Runnable release) throws IOException {
+        final Object sink = request.getAttribute(RESPONSE_SINK_ATTRIBUTE);
+        if(sink instanceof ResponseSink){
+            final ByteBuffer content = ((ResponseSink) sink).onResponse(request, response, finalContent);
+            if(content != finalContent){
+                if(release != null) release.run();
+                if(content == null) return;
+                finalContent = content;
+                release = null;
+            }
+        }
         response.addHeader("Access-Control-Allow-Origin", "*");
-        final ByteBuffer finalContent = ByteBuffer.wrap(serialize(resp));
+        final Compression compression = this.compression;
+        final String encoding = (compression != null) ? compression.negotiate(request, response, finalContent.remaining()) : null;
+        if(encoding == null){
+            writeResponse(request, response, finalContent, release);
+            return;
+        }
+        response.setHeader("Content-Encoding", encoding);
+        final Object match = request.getAttribute(ROUTE_MATCH_ATTRIBUTE);
+        final Router.Route route = (match instanceof Router.RouteMatch) ? ((Router.RouteMatch) match).getRoute() : null;
+        if(route != null && route.isPrecompressed()){
+            final String query = request.getQueryString();
+            final ByteBuffer compressed = compression.precompressed((query == null) ? request.getRequestURI() : request.getRequestURI() + '?' + query, encoding, finalContent, writeChunkSize);
+            if(release != null) release.run();
+            writeResponse(request, response, compressed, null);
+            return;
+        }
+        writeCompressed(request, response, finalContent, release, compression, compression.acquire(encoding, writeChunkSize));
+    }
+
+    private void writeResponse(final HttpServletRequest request, final HttpServletResponse response, final ByteBuffer finalContent, final Runnable release) throws IOException {
+        final long length = finalContent.remaining();
+        response.setContentLengthLong(length);
         final AsyncContext async = request.getAsyncContext();
         final ServletOutputStream out = response.getOutputStream();
+        final int chunkSize = writeChunkSize;
         out.setWriteListener(new WriteListener() {
+            private long stalledAt;
 
             @Override
             public void onWritePossible() throws IOException {
+                stalledAt = resumed(stalledAt);
                 while (out.isReady()) {
                     if (!finalContent.hasRemaining()) {
-                        response.setStatus(200);
+                        completed(request, response, length);
                         async.complete();
-                        log.info(LocalDateTime.now()+" - " + this.getClass().getSimpleName() + " - close Async context from http request: " + request.getRequestURI());
+                        if (release != null) release.run();
                         return;
                     }
-                    out.write(finalContent.get());
+                    writeChunk(out, finalContent, chunkSize);
                 }
+                stalledAt = stalled();
             }
 
             @Override
             public void onError(Throwable t) {
-                log.info(LocalDateTime.now().toString()+" | "+this.getClass().getSimpleName()+":"+t.toString());
+                log.warning(LocalDateTime.now().toString()+" | "+this.getClass().getSimpleName()+":"+t.toString());
+                completed(request, response, length - finalContent.remaining());
                 async.complete();
+                if (release != null) release.run();
             }
         });
     }
 
+    /* compresses one chunk at a time, only when the output stream is ready to take it: the length is unknown, the response is chunked */
+    private void writeCompressed(final HttpServletRequest request, final HttpServletResponse response, final ByteBuffer finalContent, final Runnable release,
+                                 final Compression compression, final Compressor compressor) throws IOException {
+        final AsyncContext async = request.getAsyncContext();
+        final ServletOutputStream out = response.getOutputStream();
+        out.setWriteListener(new WriteListener() {
+            private long written;
+            private long stalledAt;
+
+            @Override
+            public void onWritePossible() throws IOException {
+                stalledAt = resumed(stalledAt);
+                while (out.isReady()) {
+                    final int length = compressor.next(finalContent);
+                    if (length < 0) {
+                        completed(request, response, written);
+                        async.complete();
+                        release();
+                        return;
+                    }
+                    out.write(compressor.buffer(), 0, length);
+                    written += length;
+                }
+                stalledAt = stalled();
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                log.warning(LocalDateTime.now().toString()+" | "+this.getClass().getSimpleName()+":"+t.toString());
+                completed(request, response, written);
+                async.complete();
+                release();
+            }
+
+            private void release(){
+                compression.release(compressor);
+                if (release != null) release.run();
+            }
+        });
+    }
+
+    /* a write listener found the output not ready: the time of the stall, 0 when metrics are disabled */
+    long stalled(){
+        return metricsEnabled ? System.nanoTime() : 0L;
+    }
+
+    /* the container called the write listener back: records how long it waited, if it was stalled */
+    long resumed(final long stalledAt){
+        if (stalledAt != 0) metrics.recordWriteStall(System.nanoTime() - stalledAt);
+        return 0L;
+    }
+
+    /* end of the exchange: to be called before AsyncContext#complete, which recycles request and response */
+    void completed(final HttpServletRequest request, final HttpServletResponse response, final long bytes){
+        final Object sink = request.getAttribute(RESPONSE_SINK_ATTRIBUTE);
+        if(sink instanceof ResponseSink){
+            ((ResponseSink) sink).onCompleted(request, response);
+        }
+        if (log.isLoggable(Level.FINE)) {
+            log.fine(LocalDateTime.now()+" - " + this.getClass().getSimpleName() + " - close Async context from http request: " + request.getRequestURI());
+        }
+        final AccessLog accessLog = this.accessLog;
+        if (accessLog == null && !metricsEnabled) return;
+        final Object start = request.getAttribute(START_NANOS_ATTRIBUTE);
+        final Object match = request.getAttribute(ROUTE_MATCH_ATTRIBUTE);
+        final String template = (match instanceof Router.RouteMatch) ? ((Router.RouteMatch) match).getTemplate() : null;
+        final long latency = (start instanceof Long) ? System.nanoTime() - (Long) start : 0L;
+        if (metricsEnabled) {
+            /* labelled by template, never by the raw uri, to keep the number of series bounded */
+            metrics.recordRequest((template != null) ? template : "unmatched", response.getStatus(), bytes, latency);
+        }
+        if (accessLog != null) {
+            accessLog.record(request.getMethod(), (template != null) ? template : request.getRequestURI(), response.getStatus(), bytes, latency);
+        }
+    }
+
+    /*
+     * hands the container at most chunkSize bytes in a single call instead of one call per byte;
+     * position and limit go through Buffer so that a build made on JDK 9+ still runs on JDK 8
+     */
+    static void writeChunk(final ServletOutputStream out, final ByteBuffer content, final int chunkSize) throws IOException {
+        int length = Math.min(content.remaining(), chunkSize);
+        if (content.hasArray()) {
+            out.write(content.array(), content.arrayOffset() + content.position(), length);
+            ((Buffer) content).position(content.position() + length);
+        } else if (out instanceof HttpOutput) {
+            ByteBuffer chunk = content.duplicate();
+            ((Buffer) chunk).limit(chunk.position() + length);
+            ((HttpOutput) out).write(chunk);
+            ((Buffer) content).position(content.position() + length);
+        } else {
+            byte[] chunk = new byte[length];
+            content.get(chunk);
+            out.write(chunk);
+        }
+    }
+
 }
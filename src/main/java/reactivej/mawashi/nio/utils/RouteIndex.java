@@ -0,0 +1,26 @@
+package reactivej.mawashi.nio.utils;
+
+/**
+ * @author alessandroargentieri
+ *
+ * The @Api annotated Action fields of an Endpoints class, indexed at compile time by the RouteIndexProcessor:
+ * templates, methods and media types are checked by javac and the generated index reads the fields directly,
+ * so the routes are registered without scanning the class by reflection (cheaper at startup, and nothing to
+ * declare for a native image). The indexes are found through the ServiceLoader; the classes without one,
+ * e.g. compiled without the processor, still have their fields read by reflection
+ */
+public interface RouteIndex {
+
+    /* the class declaring the indexed fields, its subclasses have their own index */
+    Class<? extends Endpoints> endpointsClass();
+
+    /* passes the action of each indexed field of the endpoints to the routes, in declaration order */
+    void register(Endpoints endpoints, Routes routes);
+
+    /**
+     * where the indexed routes go: the values of their @Api annotation, with the method already resolved (null for every method)
+     */
+    interface Routes {
+        void add(Action action, HttpMethod method, String path, String consumes, String produces, Class<?> requestType, Class<?> responseType);
+    }
+}
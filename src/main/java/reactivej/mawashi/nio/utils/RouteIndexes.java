@@ -0,0 +1,45 @@
+package reactivej.mawashi.nio.utils;
+
+import java.time.LocalTime;
+import java.util.Iterator;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+import java.util.logging.Logger;
+
+/**
+ * @author alessandroargentieri
+ *
+ * The RouteIndex of each Endpoints class, looked up once per class among the ones its class loader provides
+ */
+final class RouteIndexes {
+
+    private final static Logger log = Logger.getLogger(RouteIndexes.class.getName());
+
+    private static final ClassValue<RouteIndex> INDEXES = new ClassValue<RouteIndex>() {
+        @Override
+        protected RouteIndex computeValue(final Class<?> type) {
+            final ClassLoader loader = (type.getClassLoader() != null) ? type.getClassLoader() : RouteIndex.class.getClassLoader();
+            final Iterator<RouteIndex> indexes = ServiceLoader.load(RouteIndex.class, loader).iterator();
+            try {
+                while(indexes.hasNext()){
+                    try {
+                        final RouteIndex index = indexes.next();
+                        if(index.endpointsClass() == type) return index;
+                    } catch (ServiceConfigurationError e) {
+                        log.warning(LocalTime.now() + ": skipped a route index: " + e.getMessage());
+                    }
+                }
+            } catch (ServiceConfigurationError e) {
+                log.warning(LocalTime.now() + ": unable to list the route indexes: " + e.getMessage());
+            }
+            return null;
+        }
+    };
+
+    private RouteIndexes() {}
+
+    /* null when the class has no generated index: its @Api fields are then read by reflection */
+    static RouteIndex of(final Class<?> type){
+        return INDEXES.get(type);
+    }
+}
@@ -0,0 +1,401 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.TypeAdapter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Immutable segment trie compiled from the registered endpoints.
+ * Each node tries its literal children first and then its {param} wildcard, so a lookup costs
+ * O(path length) whatever the number of routes and does not allocate anything when nothing matches.
+ * The routes sharing a template are then picked by HTTP method from a table indexed by the method enum
+ */
+public final class Router {
+
+    private final static Logger log = Logger.getLogger(Router.class.getName());
+
+    private final Node root;
+
+    private Router(Node root) {
+        this.root = root;
+    }
+
+    public static Router compile(final List<Endpoint> endpoints){
+        return compile(endpoints, JsonConverter.getInstance());
+    }
+
+    /* builds the trie: when two endpoints share the same template and method the first registered one wins; the json body adapters come from the converter */
+    public static Router compile(final List<Endpoint> endpoints, final JsonConverter jsonConverter){
+        MutableNode root = new MutableNode();
+        for(Endpoint endpoint : endpoints){
+            MutableNode node = root;
+            List<String> paramNames = new ArrayList<>();
+            List<Integer> paramSegments = new ArrayList<>();
+            List<String> segments = segmentsOf(endpoint.getPath());
+            for(int i=0; i<segments.size(); i++){
+                String segment = segments.get(i);
+                if(isParam(segment)){
+                    paramNames.add(paramNameOf(segment));
+                    paramSegments.add(i);
+                    if(node.param == null) node.param = new MutableNode();
+                    node = node.param;
+                } else {
+                    node = node.literals.computeIfAbsent(segment, s -> new MutableNode());
+                }
+            }
+            if(node.routes == null) node.routes = new Routes();
+            TypeAdapter<?> bodyAdapter = (endpoint.getBodyType() != null) ? jsonConverter.getAdapter(endpoint.getBodyType()) : null;
+            Route route = new Route(endpoint, bodyAdapter, paramNames.toArray(new String[0]), paramSegments.stream().mapToInt(Integer::intValue).toArray());
+            if(!node.routes.add(route)){
+                log.warning("path " + endpoint.getPath() + " is already mapped for " + ((endpoint.getMethod() == null) ? "any method" : endpoint.getMethod()) + ": ignored");
+            }
+        }
+        return new Router(root.freeze());
+    }
+
+    /* returns the first route matching the path, whatever its method, together with its path variables, or null */
+    public RouteMatch match(final String path){
+        return match(path, null, true);
+    }
+
+    /*
+     * returns null if no endpoint matches the path,
+     * a RouteMatch without route if the path matches but no endpoint accepts the method (405);
+     * a null method (unknown to HttpMethod) only matches the endpoints bound to every method
+     */
+    public RouteMatch match(final HttpMethod method, final String path){
+        return match(path, method, false);
+    }
+
+    private RouteMatch match(final String path, final HttpMethod method, final boolean anyMethod){
+        int start = (!path.isEmpty() && path.charAt(0) == '/') ? 1 : 0;
+        int end = path.length();
+        if(end > start && path.charAt(end-1) == '/') end--;
+        Routes routes = root.find(path, start, end);
+        if(routes == null) return null;
+        Route route = anyMethod ? routes.first : routes.get(method);
+        Route variables = (route != null) ? route : routes.first;
+        return new RouteMatch(route, routes, variables.extractPathVariables(path, start, end));
+    }
+
+    private static List<String> segmentsOf(String path){
+        if(path.startsWith("/")) path = path.substring(1);
+        if(path.endsWith("/")) path = path.substring(0, path.length()-1);
+        return Arrays.asList(path.split("/", -1));
+    }
+
+    private static boolean isParam(String segment){
+        return segment.startsWith("{") || segment.endsWith("}");
+    }
+
+    private static String paramNameOf(String segment){
+        return segment.replace("{", "").replace("}", "").replace(" ", "");
+    }
+
+    /* same value as String#hashCode of the region, computed without creating the substring */
+    private static int hashOf(String s, int from, int to){
+        int h = 0;
+        for(int i=from; i<to; i++){
+            h = 31*h + s.charAt(i);
+        }
+        return h;
+    }
+
+    /**
+     * a compiled route: the template it comes from, its action and where its path variables are
+     */
+    public static final class Route {
+        private final String       template;
+        private final HttpMethod   method;
+        private final Action       action;
+        private final DispatchMode dispatchMode;
+        private final String[]     consumes;
+        private final String       produces;
+        private final String[]     producedMediaTypes;
+        private final boolean      precompressed;
+        private final ResponseCache cache;
+        private final Priority     priority;
+        private final int          maxInFlight;
+        private final long         timeout;
+        private final TypeAdapter<?> bodyAdapter;
+        private final AtomicInteger inFlight;
+        private final String[]     paramNames;
+        private final int[]        paramSegments;
+
+        Route(Endpoint endpoint, TypeAdapter<?> bodyAdapter, String[] paramNames, int[] paramSegments) {
+            this.template = endpoint.getPath();
+            this.method = endpoint.getMethod();
+            this.action = endpoint.getAction();
+            this.dispatchMode = endpoint.getDispatchMode();
+            this.consumes = mediaTypesOf(endpoint.getConsumes());
+            this.produces = endpoint.getProduces();
+            this.producedMediaTypes = mediaTypesOf(endpoint.getProduces());
+            this.precompressed = endpoint.isPrecompressed();
+            this.cache = endpoint.getCache();
+            this.priority = endpoint.getPriority();
+            this.maxInFlight = endpoint.getMaxInFlight();
+            this.timeout = endpoint.getTimeout();
+            this.bodyAdapter = bodyAdapter;
+            this.inFlight = endpoint.inFlight();
+            this.paramNames = paramNames;
+            this.paramSegments = paramSegments;
+        }
+
+        public String getTemplate() {
+            return template;
+        }
+
+        /* null when the route accepts every method */
+        public HttpMethod getMethod() {
+            return method;
+        }
+
+        public Action getAction() {
+            return action;
+        }
+
+        /* null when the route follows the dispatch mode of the server */
+        public DispatchMode getDispatchMode() {
+            return dispatchMode;
+        }
+
+        public String getProduces() {
+            return produces;
+        }
+
+        /* the produces media types, lower case, for the content negotiation */
+        String[] producedMediaTypes() {
+            return producedMediaTypes;
+        }
+
+        public boolean isPrecompressed() {
+            return precompressed;
+        }
+
+        /* null when the responses are not cached */
+        public ResponseCache getCache() {
+            return cache;
+        }
+
+        public Priority getPriority() {
+            return priority;
+        }
+
+        /* 0 when the route has no limit of its own */
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        /* 0 when the route follows the timeout of the server */
+        public long getTimeout() {
+            return timeout;
+        }
+
+        /* adapter of the json body declared with Endpoint#body, null when none is */
+        public TypeAdapter<?> getBodyAdapter() {
+            return bodyAdapter;
+        }
+
+        /* the requests of the route being served, counted by the admission control: the counter of its Endpoint, which outlives the recompiled routes */
+        AtomicInteger inFlight() {
+            return inFlight;
+        }
+
+        String[] paramNames() {
+            return paramNames;
+        }
+
+        /* true if the route declares no consumes or one of them matches the media type of the Content-Type */
+        public boolean accepts(final String contentType){
+            if(consumes.length == 0) return true;
+            if(contentType == null) return false;
+            int semicolon = contentType.indexOf(';');
+            String mediaType = ((semicolon < 0) ? contentType : contentType.substring(0, semicolon)).trim().toLowerCase(Locale.ROOT);
+            for(String accepted : consumes){
+                if(accepted.equals(mediaType) || accepted.equals("*/*")) return true;
+                if(accepted.endsWith("/*") && mediaType.startsWith(accepted.substring(0, accepted.length()-1))) return true;
+            }
+            return false;
+        }
+
+        private static String[] mediaTypesOf(String mediaTypes){
+            return Arrays.stream(mediaTypes.split(","))
+                    .map(m -> m.trim().toLowerCase(Locale.ROOT))
+                    .filter(m -> !m.isEmpty())
+                    .toArray(String[]::new);
+        }
+
+        private Map<String, String> extractPathVariables(String path, int start, int end){
+            if(paramNames.length == 0) return new HashMap<>();
+            Map<String, String> pathVariables = new HashMap<>();
+            int segment = 0, from = start, p = 0;
+            for(int i=start; i<=end && p<paramSegments.length; i++){
+                if(i == end || path.charAt(i) == '/'){
+                    if(segment == paramSegments[p]){
+                        pathVariables.put(paramNames[p], path.substring(from, i));
+                        p++;
+                    }
+                    segment++;
+                    from = i+1;
+                }
+            }
+            return pathVariables;
+        }
+    }
+
+    /**
+     * the result of a successful lookup
+     */
+    public static final class RouteMatch {
+        private final Route  route;
+        private final Routes routes;
+        private final Map<String, String> pathVariables;
+
+        RouteMatch(Route route, Routes routes, Map<String, String> pathVariables) {
+            this.route = route;
+            this.routes = routes;
+            this.pathVariables = pathVariables;
+        }
+
+        /* null when the path matches but the method doesn't */
+        public Route getRoute() {
+            return route;
+        }
+
+        public Action getAction() {
+            return route.getAction();
+        }
+
+        public String getTemplate() {
+            return routes.template;
+        }
+
+        /* value of the Allow header for the matched path */
+        public String getAllowedMethods() {
+            return routes.allow;
+        }
+
+        public Map<String, String> getPathVariables() {
+            return pathVariables;
+        }
+    }
+
+    /* the routes sharing a template, indexed by method */
+    private static final class Routes {
+        private final Route[] byMethod = new Route[HttpMethod.values().length];
+        private Route  any;
+        private Route  first;
+        private String template;
+        private String allow;
+
+        private boolean add(Route route){
+            if(first == null){
+                first = route;
+                template = route.getTemplate();
+            }
+            if(route.getMethod() == null){
+                if(any != null) return false;
+                any = route;
+            } else {
+                if(byMethod[route.getMethod().ordinal()] != null) return false;
+                byMethod[route.getMethod().ordinal()] = route;
+            }
+            return true;
+        }
+
+        /* HEAD falls back to GET, OPTIONS is answered by the server when no route declares it */
+        private Routes freeze(){
+            Set<HttpMethod> allowed = EnumSet.noneOf(HttpMethod.class);
+            for(HttpMethod method : HttpMethod.values()){
+                if(any != null || byMethod[method.ordinal()] != null) allowed.add(method);
+            }
+            if(allowed.contains(HttpMethod.GET)) allowed.add(HttpMethod.HEAD);
+            allowed.add(HttpMethod.OPTIONS);
+            allow = allowed.stream().map(Enum::name).collect(Collectors.joining(", "));
+            return this;
+        }
+
+        private Route get(HttpMethod method){
+            if(method == null) return any;
+            Route route = byMethod[method.ordinal()];
+            if(route == null && method == HttpMethod.HEAD) route = byMethod[HttpMethod.GET.ordinal()];
+            return (route != null) ? route : any;
+        }
+    }
+
+    private static final class MutableNode {
+        private final Map<String, MutableNode> literals = new LinkedHashMap<>();
+        private MutableNode param;
+        private Routes routes;
+
+        private Node freeze(){
+            int size = 1;
+            while(size < literals.size()*2) size <<= 1;
+            String[] keys = new String[size];
+            Node[] children = new Node[size];
+            for(Map.Entry<String, MutableNode> entry : literals.entrySet()){
+                int slot = entry.getKey().hashCode() & (size-1);
+                while(keys[slot] != null) slot = (slot+1) & (size-1);
+                keys[slot] = entry.getKey();
+                children[slot] = entry.getValue().freeze();
+            }
+            return new Node(keys, children, (param == null) ? null : param.freeze(), (routes == null) ? null : routes.freeze());
+        }
+    }
+
+    /* literal children live in an open addressing table probed by the hash of the path region */
+    private static final class Node {
+        private final String[] keys;
+        private final Node[]   children;
+        private final Node     param;
+        private final Routes   routes;
+
+        private Node(String[] keys, Node[] children, Node param, Routes routes) {
+            this.keys = keys;
+            this.children = children;
+            this.param = param;
+            this.routes = routes;
+        }
+
+        private Routes find(String path, int start, int end){
+            int slash = path.indexOf('/', start);
+            int segmentEnd = (slash < 0 || slash > end) ? end : slash;
+            boolean last = segmentEnd == end;
+
+            Node literal = literal(path, start, segmentEnd);
+            if(literal != null){
+                Routes routes = last ? literal.routes : literal.find(path, segmentEnd+1, end);
+                if(routes != null) return routes;
+            }
+            if(param != null){
+                return last ? param.routes : param.find(path, segmentEnd+1, end);
+            }
+            return null;
+        }
+
+        private Node literal(String path, int from, int to){
+            int length = to - from;
+            int mask = keys.length - 1;
+            int slot = hashOf(path, from, to) & mask;
+            String key;
+            while((key = keys[slot]) != null){
+                if(key.length() == length && path.regionMatches(from, key, 0, length)) return children[slot];
+                slot = (slot+1) & mask;
+            }
+            return null;
+        }
+    }
+}
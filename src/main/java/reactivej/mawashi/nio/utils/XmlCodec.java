@@ -0,0 +1,38 @@
+package reactivej.mawashi.nio.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Type;
+
+/**
+ * @author alessandroargentieri
+ *
+ * application/xml through the cached JAXB contexts of an XmlConverter: bodies are decoded into classes only, not generic types
+ */
+public final class XmlCodec implements Codec {
+
+    public static final String MEDIA_TYPE = "application/xml";
+
+    private final XmlConverter xmlConverter;
+
+    public XmlCodec(XmlConverter xmlConverter) {
+        this.xmlConverter = xmlConverter;
+    }
+
+    @Override
+    public String getMediaType() {
+        return MEDIA_TYPE;
+    }
+
+    @Override
+    public void encode(final Object value, final OutputStream out) throws IOException {
+        xmlConverter.writeXmlOf(value, out);
+    }
+
+    @Override
+    public Object decode(final InputStream in, final Type type) throws IOException {
+        if(!(type instanceof Class)) throw new IllegalArgumentException("xml bodies are decoded into classes only: " + type);
+        return xmlConverter.getDataFrom(in, (Class) type);
+    }
+}
@@ -1,42 +1,161 @@
 package reactivej.mawashi.nio.utils;
 
 import javax.servlet.http.HttpServletRequest;
-import javax.xml.bind.JAXB;
+import javax.xml.bind.DataBindingException;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBElement;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
+import javax.xml.bind.Unmarshaller;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.namespace.QName;
+import javax.xml.transform.Source;
+import javax.xml.transform.stream.StreamSource;
 import java.io.IOException;
-import java.io.StringReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * @author alessandroargentieri
  *
  * This class encapsulates the logic of conversion from and to Xml
  * using JAXB library.
+ * The JAXBContext of each class is created once and cached, Marshallers and Unmarshallers
+ * (which are not thread-safe) are borrowed from a per-class lock-free pool.
+ * The output is the same as the one of the JAXB#marshal helper: formatted, with the root element
+ * inferred from the class name when the class is not an @XmlRootElement
  * @param <T>
  */
 public class XmlConverter<T> {
 
-    private static XmlConverter instance = null;
+    /* the holder class is initialized, once and thread-safely, on the first call */
+    private static final class Holder {
+        private static final XmlConverter INSTANCE = new XmlConverter();
+    }
     public static XmlConverter getInstance(){
-        if(instance == null){
-            instance = new XmlConverter();
+        return Holder.INSTANCE;
+    }
+
+    private final ConcurrentMap<Class<?>, Binding> bindings = new ConcurrentHashMap<>();
+
+    /* creates the JAXBContext of the classes at startup rather than on their first request */
+    public void prewarm(final Class<?>... classes){
+        for(Class<?> clazz : classes){
+            bindingOf(clazz);
         }
-        return instance;
     }
 
     public Object getDataFromBodyRequest(final HttpServletRequest request, final Class clazz) throws IOException {
-        StringBuilder sb = new StringBuilder();
-        String s;
-        while ((s = request.getReader().readLine()) != null) {
-            sb.append(s);
-        }
-        return JAXB.unmarshal(new StringReader(sb.toString()), clazz);
+        return unmarshal(new StreamSource(request.getReader()), clazz);
+    }
+
+    /* parses an xml body, as collected by the non-blocking body reader: the encoding comes from the prolog */
+    public Object getDataFrom(final InputStream in, final Class clazz) throws IOException {
+        return unmarshal(new StreamSource(in), clazz);
     }
 
     public String getXmlOf(final Object object){
         StringWriter sw = new StringWriter();
-        JAXB.marshal(object, sw);
+        writeXmlOf(object, sw);
         return sw.toString();
     }
 
+    /* marshals straight into the stream as UTF-8, without building an intermediate String */
+    public void writeXmlOf(final Object object, final OutputStream out){
+        final Binding binding = bindingOf(object.getClass());
+        final Marshaller marshaller = binding.marshaller();
+        try {
+            marshaller.marshal(rootOf(object), out);
+        } catch (JAXBException e) {
+            throw new DataBindingException(e);
+        } finally {
+            binding.marshallers.offer(marshaller);
+        }
+    }
+
+    public void writeXmlOf(final Object object, final Writer writer){
+        final Binding binding = bindingOf(object.getClass());
+        final Marshaller marshaller = binding.marshaller();
+        try {
+            marshaller.marshal(rootOf(object), writer);
+        } catch (JAXBException e) {
+            throw new DataBindingException(e);
+        } finally {
+            binding.marshallers.offer(marshaller);
+        }
+    }
+
+    private Object unmarshal(final Source source, final Class clazz){
+        final Binding binding = bindingOf(clazz);
+        final Unmarshaller unmarshaller = binding.unmarshaller();
+        try {
+            return unmarshaller.unmarshal(source, clazz).getValue();
+        } catch (JAXBException e) {
+            throw new DataBindingException(e);
+        } finally {
+            binding.unmarshallers.offer(unmarshaller);
+        }
+    }
+
+    private Binding bindingOf(final Class<?> clazz){
+        Binding binding = bindings.get(clazz);
+        return (binding != null) ? binding : bindings.computeIfAbsent(clazz, Binding::new);
+    }
+
+    /* same wrapping as JAXB#marshal for the classes which are not annotated with @XmlRootElement */
+    @SuppressWarnings("unchecked")
+    private static Object rootOf(final Object object){
+        if(object instanceof JAXBElement || object.getClass().isAnnotationPresent(XmlRootElement.class)) return object;
+        Class<Object> clazz = (Class<Object>) object.getClass();
+        return new JAXBElement<>(new QName(inferName(clazz)), clazz, object);
+    }
+
+    /* java.beans.Introspector#decapitalize of the simple class name */
+    private static String inferName(final Class<?> clazz){
+        String name = clazz.getSimpleName();
+        if(name.isEmpty() || (name.length() > 1 && Character.isUpperCase(name.charAt(1)) && Character.isUpperCase(name.charAt(0)))) return name;
+        return Character.toLowerCase(name.charAt(0)) + name.substring(1);
+    }
+
+    private static final class Binding {
+        private final JAXBContext context;
+        private final Queue<Marshaller>   marshallers   = new ConcurrentLinkedQueue<>();
+        private final Queue<Unmarshaller> unmarshallers = new ConcurrentLinkedQueue<>();
+
+        private Binding(Class<?> clazz) {
+            try {
+                this.context = JAXBContext.newInstance(clazz);
+            } catch (JAXBException e) {
+                throw new DataBindingException(e);
+            }
+        }
 
+        private Marshaller marshaller(){
+            Marshaller marshaller = marshallers.poll();
+            if(marshaller != null) return marshaller;
+            try {
+                marshaller = context.createMarshaller();
+                marshaller.setProperty(Marshaller.JAXB_FORMATTED_OUTPUT, true);
+                return marshaller;
+            } catch (JAXBException e) {
+                throw new DataBindingException(e);
+            }
+        }
+
+        private Unmarshaller unmarshaller(){
+            Unmarshaller unmarshaller = unmarshallers.poll();
+            if(unmarshaller != null) return unmarshaller;
+            try {
+                return context.createUnmarshaller();
+            } catch (JAXBException e) {
+                throw new DataBindingException(e);
+            }
+        }
+    }
 }
@@ -0,0 +1,180 @@
+package reactivej.mawashi.nio.jetty;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpURI;
+import org.eclipse.jetty.http.HttpVersion;
+import org.eclipse.jetty.http.MetaData;
+import org.eclipse.jetty.http2.api.Session;
+import org.eclipse.jetty.http2.api.Stream;
+import org.eclipse.jetty.http2.client.HTTP2Client;
+import org.eclipse.jetty.http2.frames.DataFrame;
+import org.eclipse.jetty.http2.frames.HeadersFrame;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.util.Callback;
+import org.eclipse.jetty.util.FuturePromise;
+import org.eclipse.jetty.util.Promise;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Test;
+import reactivej.mawashi.nio.servlets.GenericNioServlet;
+import reactivej.mawashi.nio.utils.Endpoints;
+import reactivej.mawashi.nio.utils.HttpMethod;
+import reactivej.mawashi.nio.utils.RestHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class JettyTest {
+
+    Jetty jetty;
+
+    static class ProtocolEndpoints extends Endpoints {
+        ProtocolEndpoints(){
+            setEndpoint(HttpMethod.GET, "/h2c", (request, response) -> toTextResponse(request, response, request.getProtocol()));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(jetty != null) jetty.stop();
+    }
+
+    @Test
+    public void http1_connector_test() throws Exception {
+        jetty = new Jetty().port(0).outputBufferSize(16 * 1024).sendDateHeader(false).sendServerVersion(false)
+                .idleTimeout(12_345).acceptQueueSize(64);
+        jetty.launch();
+
+        ServerConnector connector = jetty.getConnector();
+        assertEquals(1, connector.getConnectionFactories().size());
+        assertEquals("HTTP/1.1", connector.getDefaultProtocol());
+        HttpConfiguration configuration = connector.getConnectionFactory(HttpConnectionFactory.class).getHttpConfiguration();
+        assertEquals(16 * 1024, configuration.getOutputBufferSize());
+        assertFalse(configuration.getSendDateHeader());
+        assertFalse(configuration.getSendServerVersion());
+        assertEquals(12_345, connector.getIdleTimeout());
+        assertEquals(64, connector.getAcceptQueueSize());
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + jetty.getLocalPort() + "/").openConnection();
+        try {
+            assertEquals(404, connection.getResponseCode());
+            assertNull(connection.getHeaderField("Date"));
+            assertNull(connection.getHeaderField("Server"));
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    @Test
+    public void thread_pool_and_connector_test() throws Exception {
+        jetty = new Jetty().port(0).threadPool(12, 40).reservedThreads(3).acceptorsAndSelectors(2, 3)
+                .idleTimeout(23_456).acceptQueueSize(128);
+        jetty.launch();
+
+        ServerConnector connector = jetty.getConnector();
+        assertTrue(connector.isStarted());
+        assertEquals(2, connector.getAcceptors());
+        assertEquals(3, connector.getSelectorManager().getSelectorCount());
+        assertEquals(23_456, connector.getIdleTimeout());
+        assertEquals(128, connector.getAcceptQueueSize());
+
+        QueuedThreadPool threadPool = (QueuedThreadPool) connector.getServer().getThreadPool();
+        assertTrue(threadPool.isStarted());
+        assertEquals(12, threadPool.getMinThreads());
+        assertEquals(40, threadPool.getMaxThreads());
+        assertEquals(3, threadPool.getReservedThreads());
+        assertSame(threadPool, connector.getExecutor());
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + jetty.getLocalPort() + "/").openConnection();
+        try {
+            assertEquals(404, connection.getResponseCode());
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /* only meaningful without org.eclipse.jetty.http2:http2-server, the optional dependency of h2c, which the tests have */
+    @Test
+    public void h2c_without_http2_server_test() throws Exception {
+        boolean http2Server;
+        try {
+            Class.forName("org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory");
+            http2Server = true;
+        } catch (ClassNotFoundException e) {
+            http2Server = false;
+        }
+        Assume.assumeFalse("http2-server is on the classpath", http2Server);
+        jetty = new Jetty().port(0).h2c(true).http2MaxConcurrentStreams(16);
+        try {
+            jetty.launch();
+            fail("h2c started without http2-server");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getMessage().contains("org.eclipse.jetty.http2:http2-server"));
+            assertTrue(e.getCause() instanceof ClassNotFoundException);
+        }
+        assertEquals(-1, jetty.getLocalPort());
+    }
+
+    /* HTTP/2 with prior knowledge and HTTP/1.1 on the same port */
+    @Test
+    public void h2c_prior_knowledge_test() throws Exception {
+        RestHandler handler = new RestHandler();
+        handler.register(new ProtocolEndpoints());
+        jetty = new Jetty().port(0).h2c(true).http2MaxConcurrentStreams(16)
+                .attribute(RestHandler.CONTEXT_ATTRIBUTE, handler).servlet(GenericNioServlet.class, "/*");
+        jetty.launch();
+        assertEquals(16, jetty.getConnector().getConnectionFactory(HTTP2CServerConnectionFactory.class).getMaxConcurrentStreams());
+
+        HTTP2Client client = new HTTP2Client();
+        client.start();
+        try {
+            FuturePromise<Session> connected = new FuturePromise<>();
+            client.connect(new InetSocketAddress("localhost", jetty.getLocalPort()), new Session.Listener.Adapter(), connected);
+            Session session = connected.get(5, TimeUnit.SECONDS);
+
+            MetaData.Request request = new MetaData.Request("GET", new HttpURI("http://localhost:" + jetty.getLocalPort() + "/h2c"), HttpVersion.HTTP_2, new HttpFields());
+            AtomicInteger status = new AtomicInteger();
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            CountDownLatch done = new CountDownLatch(1);
+            session.newStream(new HeadersFrame(request, null, true), new Promise.Adapter<>(), new Stream.Listener.Adapter() {
+                @Override
+                public void onHeaders(Stream stream, HeadersFrame frame) {
+                    if(frame.getMetaData() instanceof MetaData.Response) status.set(((MetaData.Response) frame.getMetaData()).getStatus());
+                    if(frame.isEndStream()) done.countDown();
+                }
+
+                @Override
+                public void onData(Stream stream, DataFrame frame, Callback callback) {
+                    ByteBuffer data = frame.getData();
+                    while(data.hasRemaining()) body.write(data.get());
+                    callback.succeeded();
+                    if(frame.isEndStream()) done.countDown();
+                }
+            });
+            assertTrue(done.await(5, TimeUnit.SECONDS));
+            assertEquals(200, status.get());
+            assertEquals("HTTP/2.0", body.toString("UTF-8"));
+        } finally {
+            client.stop();
+        }
+
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + jetty.getLocalPort() + "/h2c").openConnection();
+        try {
+            assertEquals(200, connection.getResponseCode());
+        } finally {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package reactivej.mawashi.nio.jetty;
+
+import org.junit.After;
+import org.junit.Test;
+import reactivej.mawashi.nio.logging.AccessLog;
+import reactivej.mawashi.nio.utils.Endpoints;
+import reactivej.mawashi.nio.utils.HttpMethod;
+import reactivej.mawashi.nio.utils.RestHandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ReactiveJTest {
+
+    ReactiveJ publicPort;
+    ReactiveJ adminPort;
+
+    static class PublicEndpoints extends Endpoints {
+        PublicEndpoints(){
+            setEndpoint(HttpMethod.GET, "/hello", (request, response) -> toTextResponse(request, response, "public"));
+        }
+    }
+
+    static class AdminEndpoints extends Endpoints {
+        AdminEndpoints(){
+            setEndpoint(HttpMethod.GET, "/hello", (request, response) -> toTextResponse(request, response, "admin"));
+            setEndpoint(HttpMethod.GET, "/admin/only", (request, response) -> toTextResponse(request, response, "secret"));
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(publicPort != null) publicPort.stop();
+        if(adminPort != null) adminPort.stop();
+    }
+
+    @Test
+    public void isolated_instances_test() throws Exception {
+        publicPort = new ReactiveJ().port(0).endpoints(new PublicEndpoints()).launch();
+        adminPort = new ReactiveJ().port(0).endpoints(new AdminEndpoints()).metrics(false).launch();
+
+        assertEquals("public", get(publicPort, "/hello"));
+        assertEquals("admin", get(adminPort, "/hello"));
+        assertEquals("secret", get(adminPort, "/admin/only"));
+        assertEquals(404, status(publicPort, "/admin/only"));
+
+        assertNotSame(publicPort.getHandler(), adminPort.getHandler());
+        assertNotSame(publicPort.getHandler().getJsonConverter(), adminPort.getHandler().getJsonConverter());
+        /* the endpoints are bound by ReactiveJ#endpoints only, the default handler never sees them */
+        assertEquals(RestHandler.getInstance().getEndpointIfMatches("/not-found"), RestHandler.getInstance().getEndpointIfMatches("/admin/only"));
+    }
+
+    @Test
+    public void default_port_test() throws Exception {
+        publicPort = new ReactiveJ().endpoints(new PublicEndpoints()).launch();
+        assertTrue(publicPort.getLocalPort() > 0);
+        assertEquals("public", get(publicPort, "/hello"));
+    }
+
+    @Test
+    public void stop_closes_the_access_log_test() throws Exception {
+        Path file = Files.createTempFile("access", ".log");
+        try {
+            publicPort = new ReactiveJ().port(0).endpoints(new PublicEndpoints()).accessLog(AccessLog.toFile(file)).launch();
+            assertEquals("public", get(publicPort, "/hello"));
+            publicPort.stop();
+            publicPort = null;
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            assertEquals(1, lines.size());
+            assertTrue(lines.get(0).contains(" GET /hello 200 6 "));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static String get(ReactiveJ server, String path) throws Exception {
+        HttpURLConnection connection = open(server, path);
+        try (InputStream in = connection.getInputStream()) {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] chunk = new byte[1024];
+            for(int n; (n = in.read(chunk)) != -1; ) body.write(chunk, 0, n);
+            return new String(body.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    private static int status(ReactiveJ server, String path) throws Exception {
+        HttpURLConnection connection = open(server, path);
+        try {
+            return connection.getResponseCode();
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private static HttpURLConnection open(ReactiveJ server, String path) throws Exception {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://localhost:" + server.getLocalPort() + path).openConnection();
+        connection.setConnectTimeout(5000);
+        connection.setReadTimeout(5000);
+        return connection;
+    }
+}
@@ -0,0 +1,54 @@
+package reactivej.mawashi.nio.logging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class AccessLogTest {
+
+    @Test
+    public void writes_one_line_per_request_test() throws Exception {
+        Path file = Files.createTempFile("access", ".log");
+        AccessLog accessLog = AccessLog.toFile(file, 4);
+        accessLog.record("GET", "/todo/{id}", 200, 123, 4_000);
+        accessLog.record("POST", "/todo", 500, 45, 2_000_000);
+        accessLog.close();
+
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(2, lines.size());
+        assertTrue(lines.get(0).endsWith(" GET /todo/{id} 200 123 4us"));
+        assertTrue(lines.get(1).endsWith(" POST /todo 500 45 2000us"));
+        Files.delete(file);
+    }
+
+    @Test
+    public void stdout_is_flushed_not_closed_test() throws Exception {
+        PrintStream original = System.out;
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AtomicBoolean closed = new AtomicBoolean();
+        System.setOut(new PrintStream(out, true) {
+            @Override
+            public void close() {
+                closed.set(true);
+                super.close();
+            }
+        });
+        try {
+            AccessLog accessLog = AccessLog.toStdout(4);
+            accessLog.record("GET", "/todo/{id}", 200, 123, 4_000);
+            accessLog.close();
+        } finally {
+            System.setOut(original);
+        }
+        assertFalse(closed.get());
+        assertTrue(new String(out.toByteArray(), StandardCharsets.UTF_8).trim().endsWith(" GET /todo/{id} 200 123 4us"));
+    }
+}
@@ -0,0 +1,40 @@
+package reactivej.mawashi.nio.metrics;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void bucket_bounds_test(){
+        for(long value : new long[]{0, 1, 7, 8, 9, 15, 16, 17, 1000, 123_456, 10_000_000_000L}){
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value <= LatencyHistogram.upperBoundOf(index));
+            if(index > 0) assertTrue(value > LatencyHistogram.upperBoundOf(index - 1));
+            /* at most one eighth wider than the value */
+            assertTrue(LatencyHistogram.upperBoundOf(index) - value <= value / 8 + 1);
+        }
+    }
+
+    @Test
+    public void percentile_test(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getPercentile(99));
+        for(int i=1; i<=1000; i++) histogram.record(i * 1000L);
+        assertEquals(1000, histogram.getCount());
+        assertEquals(500_500_000L, histogram.getSumMicros());
+        assertEquals(500_000, histogram.getPercentile(50), 500_000 / 8);
+        assertEquals(990_000, histogram.getPercentile(99), 990_000 / 8);
+        assertTrue(histogram.getPercentile(100) >= 1_000_000);
+    }
+
+    @Test
+    public void cumulative_counts_test(){
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(100);
+        histogram.record(3_000);
+        histogram.record(3_000_000);
+        assertArrayEquals(new long[]{0, 1, 2, 2, 3}, histogram.cumulativeCounts(new long[]{50, 1_000, 5_000, 1_000_000, 10_000_000}));
+    }
+}
@@ -0,0 +1,120 @@
+package reactivej.mawashi.nio.metrics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import reactivej.mawashi.nio.utils.Endpoints;
+import reactivej.mawashi.nio.utils.HttpMethod;
+import reactivej.mawashi.nio.utils.RestHandler;
+import reactivej.mawashi.nio.utils.TestServer;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class MetricsTest {
+
+    TestServer server;
+
+    static class MeteredEndpoints extends Endpoints {
+        MeteredEndpoints(){
+            setEndpoint(HttpMethod.GET, "/metered/{id}", (request, response) -> {
+                toJsonResponse(request, response, "metered " + getPathVariables(request).get("id"));
+            });
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer(new MeteredEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void prometheus_format_test(){
+        Metrics metrics = new Metrics();
+        metrics.recordRequest("/todo/{id}", 200, 100, TimeUnit.MILLISECONDS.toNanos(3));
+        metrics.recordRequest("/todo/{id}", 200, 50, TimeUnit.MILLISECONDS.toNanos(30));
+        metrics.recordRequest("/todo/{id}", 404, 10, TimeUnit.MICROSECONDS.toNanos(200));
+        metrics.recordRequest("/say \"hi\"", 200, 1, 0);
+
+        String text = metrics.toPrometheus();
+        assertTrue(text.contains("reactivej_requests_total{route=\"/todo/{id}\",status=\"200\"} 2\n"));
+        assertTrue(text.contains("reactivej_requests_total{route=\"/todo/{id}\",status=\"404\"} 1\n"));
+        assertTrue(text.contains("reactivej_requests_total{route=\"/say \\\"hi\\\"\",status=\"200\"} 1\n"));
+        assertTrue(text.contains("reactivej_response_bytes_total{route=\"/todo/{id}\"} 160\n"));
+        assertTrue(text.contains("reactivej_request_duration_seconds_bucket{route=\"/todo/{id}\",le=\"0.001\"} 1\n"));
+        assertTrue(text.contains("reactivej_request_duration_seconds_bucket{route=\"/todo/{id}\",le=\"0.005\"} 2\n"));
+        assertTrue(text.contains("reactivej_request_duration_seconds_bucket{route=\"/todo/{id}\",le=\"+Inf\"} 3\n"));
+        assertTrue(text.contains("reactivej_request_duration_seconds_count{route=\"/todo/{id}\"} 3\n"));
+        assertTrue(text.contains("reactivej_requests_in_flight 0\n"));
+        assertTrue(text.contains("reactivej_write_stall_seconds_count 0\n"));
+    }
+
+    @Test
+    public void records_route_templates_test() throws Exception {
+        server.handler.setMetricsEnabled(true);
+        Metrics metrics = server.handler.getMetrics();
+        assertTrue(server.get("/metered/1").endsWith("\"metered 1\""));
+        assertTrue(server.get("/metered/2").endsWith("\"metered 2\""));
+
+        /* the client can read the whole response before the server records it: the latency is recorded last */
+        RouteMetrics route = metrics.getRoute("/metered/{id}");
+        long deadline = System.currentTimeMillis() + 5000;
+        while((route == null || route.getLatency().getCount() < 2) && System.currentTimeMillis() < deadline){
+            Thread.sleep(10);
+            route = metrics.getRoute("/metered/{id}");
+        }
+        assertEquals(2, route.getRequests());
+        assertEquals(2, route.getStatusCount(200));
+        assertEquals(2, route.getLatency().getCount());
+        assertEquals(2 * "\"metered 1\"".length(), route.getBytes());
+        assertNull(metrics.getRoute("/metered/1"));
+
+        String exported = server.get("/metrics");
+        assertTrue(exported.startsWith("HTTP/1.1 200"));
+        assertTrue(exported.contains("Content-Type: " + RestHandler.PROMETHEUS_MIMETYPE));
+        assertTrue(exported.contains("reactivej_requests_total{route=\"/metered/{id}\",status=\"200\"} 2\n"));
+        /* the /metrics request itself is still in flight */
+        assertFalse(exported.contains("reactivej_requests_in_flight 0\n"));
+    }
+
+    @Test
+    public void opt_in_test() throws Exception {
+        assertFalse(server.handler.isMetricsEnabled());
+        assertNull(server.handler.getMetricsPath());
+        assertTrue(server.get("/metered/1").endsWith("\"metered 1\""));
+        assertTrue(server.get("/metrics").startsWith("HTTP/1.1 404"));
+        assertNull(server.handler.getMetrics().getRoute("/metered/{id}"));
+
+        server.handler.setMetricsPath("/admin/metrics");
+        assertTrue(server.handler.isMetricsEnabled());
+        assertTrue(server.get("/admin/metrics").startsWith("HTTP/1.1 200"));
+        assertTrue(server.get("/metrics").startsWith("HTTP/1.1 404"));
+
+        server.handler.setMetricsEnabled(false);
+        assertNull(server.handler.getMetricsPath());
+        assertTrue(server.get("/admin/metrics").startsWith("HTTP/1.1 404"));
+    }
+
+    @Test
+    public void path_collision_test(){
+        try {
+            server.handler.setMetricsPath("/metered/{id}");
+            fail("the metrics path is mapped by an endpoint");
+        } catch (IllegalStateException expected) {
+            assertFalse(server.handler.isMetricsEnabled());
+        }
+        server.handler.setMetricsEnabled(true);
+        try {
+            server.handler.addEndpoint(HttpMethod.GET, "/metrics", (request, response) -> {});
+            fail("the endpoint path is mapped by the metrics");
+        } catch (IllegalStateException expected) {
+            assertEquals(RestHandler.DEFAULT_METRICS_PATH, server.handler.getMetricsPath());
+        }
+    }
+}
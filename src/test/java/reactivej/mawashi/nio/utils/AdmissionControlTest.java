@@ -0,0 +1,138 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControlTest {
+
+    TestServer server;
+    ExecutorService clients;
+    static volatile CountDownLatch started;
+    static volatile HttpServletRequest heldRequest;
+    static volatile HttpServletResponse heldResponse;
+
+    static class HeldEndpoints extends Endpoints {
+        HeldEndpoints(){
+            setEndpoint(HttpMethod.GET, "/admission/limited", this::hold).maxInFlight(1);
+            setEndpoint(HttpMethod.GET, "/admission/held", this::hold);
+            setEndpoint(HttpMethod.GET, "/admission/other", (request, response) -> toTextResponse(request, response, "other"));
+        }
+
+        /* the response is sent by release(), the request keeps its slot meanwhile */
+        private void hold(HttpServletRequest request, HttpServletResponse response){
+            heldRequest = request;
+            heldResponse = response;
+            started.countDown();
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        started = new CountDownLatch(1);
+        server = new TestServer(new HeldEndpoints()).start();
+        clients = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        clients.shutdownNow();
+        server.stop();
+    }
+
+    @Test
+    public void route_limit_test() throws Exception {
+        Future<String> first = clients.submit(() -> server.get("/admission/limited"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        String shed = server.get("/admission/limited");
+        assertTrue(shed.startsWith("HTTP/1.1 503"));
+        assertTrue(shed.contains("Retry-After: 1"));
+        assertTrue(shed.endsWith(new String(AdmissionControl.OVERLOADED, StandardCharsets.UTF_8)));
+        assertTrue(server.get("/admission/other").endsWith("other"));
+
+        release();
+        assertTrue(first.get(5, TimeUnit.SECONDS).endsWith("released"));
+        Router.Route route = server.handler.match("/admission/limited").getRoute();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(route.inFlight().get() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        started = new CountDownLatch(1);
+        Future<String> again = clients.submit(() -> server.get("/admission/limited"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+        release();
+        assertTrue(again.get(5, TimeUnit.SECONDS).startsWith("HTTP/1.1 200"));
+    }
+
+    @Test
+    public void republish_keeps_the_route_count_test() throws Exception {
+        server.handler.freeze();
+        Future<String> held = clients.submit(() -> server.get("/admission/limited"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        Router.Route before = server.handler.match("/admission/limited").getRoute();
+        server.handler.addEndpoint(HttpMethod.GET, "/admission/added", (request, response) -> server.handler.toTextResponse(request, response, "added"));
+        assertNotSame(before, server.handler.match("/admission/limited").getRoute());
+        assertTrue(server.get("/admission/added").endsWith("added"));
+        /* the request held before the routes were recompiled still counts */
+        assertTrue(server.get("/admission/limited").startsWith("HTTP/1.1 503"));
+
+        release();
+        assertTrue(held.get(5, TimeUnit.SECONDS).endsWith("released"));
+    }
+
+    @Test
+    public void global_limit_and_priority_test() throws Exception {
+        AdmissionControl control = new AdmissionControl(1).retryAfter(3);
+        server.handler.setAdmissionControl(control);
+        Future<String> held = clients.submit(() -> server.get("/admission/held"));
+        assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        String shed = server.get("/admission/other");
+        assertTrue(shed.startsWith("HTTP/1.1 503"));
+        assertTrue(shed.contains("Retry-After: 3"));
+        assertTrue(server.get("/status").startsWith("HTTP/1.1 200"));
+        assertEquals(1, control.getRejected());
+
+        release();
+        assertTrue(held.get(5, TimeUnit.SECONDS).endsWith("released"));
+        /* the slot is given back when the AsyncContext completes, which can follow the end of the response */
+        long deadline = System.currentTimeMillis() + 5000;
+        while(control.getInFlight() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(10);
+        assertTrue(server.get("/admission/other").endsWith("other"));
+    }
+
+    @Test
+    public void aimd_test(){
+        AdmissionControl control = new AdmissionControl(100).adaptive(10).minLimit(10);
+        long slow = TimeUnit.MILLISECONDS.toNanos(50);
+        long fast = TimeUnit.MILLISECONDS.toNanos(1);
+
+        control.onCompleted(slow, 50);
+        assertEquals(90, control.getLimit());
+        /* one decrease per window */
+        control.onCompleted(slow, 50);
+        assertEquals(90, control.getLimit());
+
+        /* an unused limit doesn't grow */
+        for(int i=0; i<100; i++) control.onCompleted(fast, 10);
+        assertEquals(90, control.getLimit());
+        /* about one more slot every limit requests */
+        for(int i=0; i<100; i++) control.onCompleted(fast, 90);
+        assertEquals(91, control.getLimit());
+    }
+
+    private void release() throws Exception {
+        server.handler.toTextResponse(heldRequest, heldResponse, "released");
+    }
+}
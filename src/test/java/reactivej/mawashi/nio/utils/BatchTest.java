@@ -0,0 +1,161 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BatchTest {
+
+    TestServer server;
+    static volatile CountDownLatch cancelled;
+    static final AtomicInteger computed = new AtomicInteger();
+
+    static class Todo {
+        long id;
+        String title;
+
+        Todo(){}
+
+        Todo(long id, String title) {
+            this.id = id;
+            this.title = title;
+        }
+    }
+
+    static class BatchedEndpoints extends Endpoints {
+        BatchedEndpoints(){
+            setEndpoint(HttpMethod.GET, "/batched/todos/{id}", (request, response) ->
+                    toJsonResponse(request, response, new Todo(Long.parseLong(getPathVariables(request).get("id")), request.getParameter("title"))));
+            setEndpoint(HttpMethod.POST, "/batched/echo", (request, response) ->
+                    readJsonBody(request, Todo.class).thenAccept(todo -> {
+                        try {
+                            toTextResponse(request, response, todo.title + " " + request.getHeader("X-Trace"));
+                        } catch (IOException e) {
+                            request.getAsyncContext().complete();
+                        }
+                    }));
+            setEndpoint(HttpMethod.GET, "/batched/bytes", (request, response) -> toResponse(request, response, new byte[]{1, 2, 3}, "application/octet-stream"));
+            setEndpoint(HttpMethod.GET, "/batched/stream", (request, response) -> toJsonStream(request, response, Arrays.asList(1, 2, 3).iterator()));
+            setEndpoint(HttpMethod.GET, "/batched/never", (request, response) -> getDeadline(request).onCancel(cancelled::countDown));
+            setEndpoint(HttpMethod.GET, "/batched/cached/{id}", (request, response) -> {
+                computed.incrementAndGet();
+                toJsonResponse(request, response, new Todo(Long.parseLong(getPathVariables(request).get("id")), "cached"));
+            }).cache(60_000, 16);
+            setEndpoint(HttpMethod.GET, "/batched/big", (request, response) -> toTextResponse(request, response, new String(new char[2048]).replace('\0', 'x')));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        cancelled = new CountDownLatch(1);
+        computed.set(0);
+        server = new TestServer(new BatchedEndpoints()).start();
+        server.handler.setBatch(new Batch().maxRequests(8).maxBytes(4096).timeout(300));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void batch_test() throws Exception {
+        TestServer.Reply reply = batch("["
+                + "{\"path\":\"/batched/todos/7?title=a%20b\"},"
+                + "{\"method\":\"POST\",\"path\":\"/batched/echo\",\"headers\":{\"X-Trace\":\"t1\"},\"body\":{\"title\":\"hi\"}},"
+                + "{\"path\":\"/batched/bytes\"},"
+                + "{\"path\":\"/batched/stream\"},"
+                + "{\"path\":\"/batched/missing\"},"
+                + "{\"method\":\"PUT\",\"path\":\"/batched/bytes\"},"
+                + "{\"method\":\"POST\",\"path\":\"/batch\"}]");
+        assertEquals(200, reply.status);
+        JsonArray parts = JsonParser.parseString(new String(reply.body, StandardCharsets.UTF_8)).getAsJsonArray();
+        assertEquals(7, parts.size());
+
+        JsonObject todo = parts.get(0).getAsJsonObject();
+        assertEquals(200, todo.get("status").getAsInt());
+        assertEquals("application/json", todo.getAsJsonObject("headers").get("Content-Type").getAsString());
+        assertEquals(7, todo.getAsJsonObject("body").get("id").getAsLong());
+        assertEquals("a b", todo.getAsJsonObject("body").get("title").getAsString());
+
+        JsonObject echo = parts.get(1).getAsJsonObject();
+        assertEquals(200, echo.get("status").getAsInt());
+        assertEquals("hi t1", echo.get("body").getAsString());
+
+        JsonObject bytes = parts.get(2).getAsJsonObject();
+        assertEquals("base64", bytes.get("encoding").getAsString());
+        assertEquals("AQID", bytes.get("body").getAsString());
+
+        assertEquals("[1,2,3]", parts.get(3).getAsJsonObject().get("body").toString());
+        assertEquals(404, parts.get(4).getAsJsonObject().get("status").getAsInt());
+        JsonObject notAllowed = parts.get(5).getAsJsonObject();
+        assertEquals(405, notAllowed.get("status").getAsInt());
+        assertTrue(notAllowed.getAsJsonObject("headers").get("Allow").getAsString().startsWith("GET"));
+        assertEquals(400, parts.get(6).getAsJsonObject().get("status").getAsInt());
+    }
+
+    @Test
+    public void limits_test() throws Exception {
+        StringBuilder many = new StringBuilder("[");
+        for(int i=0; i<9; i++) many.append((i > 0) ? "," : "").append("{\"path\":\"/batched/bytes\"}");
+        assertEquals(413, batch(many.append("]").toString()).status);
+        assertEquals(413, batch("[{\"path\":\"/batched/echo\",\"body\":\"" + new String(new char[5000]).replace('\0', 'x') + "\"}]").status);
+        assertEquals(400, batch("[{\"path\":").status);
+        assertEquals(400, batch("[]").status);
+
+        long start = System.nanoTime();
+        TestServer.Reply slow = batch("[{\"path\":\"/batched/never\"},{\"path\":\"/batched/todos/1\"}]");
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 2000);
+        JsonArray parts = JsonParser.parseString(new String(slow.body, StandardCharsets.UTF_8)).getAsJsonArray();
+        assertEquals(504, parts.get(0).getAsJsonObject().get("status").getAsInt());
+        assertEquals(200, parts.get(1).getAsJsonObject().get("status").getAsInt());
+        assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+
+        parts = JsonParser.parseString(new String(batch("[{\"path\":\"/batched/big\"},{\"path\":\"/batched/big\"},{\"path\":\"/batched/big\"}]").body,
+                StandardCharsets.UTF_8)).getAsJsonArray();
+        int served = 0;
+        int overflown = 0;
+        for(int i=0; i<parts.size(); i++){
+            int status = parts.get(i).getAsJsonObject().get("status").getAsInt();
+            if(status == 200) served++;
+            if(status == 500) overflown++;
+        }
+        assertEquals(2, served);
+        assertEquals(1, overflown);
+    }
+
+    @Test
+    public void cached_route_test() throws Exception {
+        server.handler.setCompression(new Compression().minSize(0));
+        String part = "{\"path\":\"/batched/cached/3\",\"headers\":{\"Accept-Encoding\":\"gzip\"}}";
+        for(int i=0; i<2; i++){
+            TestServer.Reply reply = batch("[" + part + "," + part + "]");
+            assertEquals(200, reply.status);
+            JsonArray parts = JsonParser.parseString(new String(reply.body, StandardCharsets.UTF_8)).getAsJsonArray();
+            assertEquals(2, parts.size());
+            for(int j=0; j<parts.size(); j++){
+                JsonObject cached = parts.get(j).getAsJsonObject();
+                assertEquals(200, cached.get("status").getAsInt());
+                assertNull(cached.getAsJsonObject("headers").get("Content-Encoding"));
+                assertEquals(3, cached.getAsJsonObject("body").get("id").getAsLong());
+            }
+        }
+        assertEquals(1, computed.get());
+    }
+
+    private TestServer.Reply batch(String body) throws Exception {
+        return server.request("POST", "/batch", "Content-Type: application/json\r\n", body.getBytes(StandardCharsets.UTF_8));
+    }
+}
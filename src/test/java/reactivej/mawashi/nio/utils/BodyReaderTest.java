@@ -0,0 +1,100 @@
+package reactivej.mawashi.nio.utils;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BodyReaderTest {
+
+    TestServer server;
+    static final AtomicInteger failed = new AtomicInteger();
+
+    static class Todo {
+        long id;
+        String title;
+    }
+
+    static class BodyEndpoints extends Endpoints {
+        BodyEndpoints(){
+            setEndpoint(HttpMethod.POST, "/body/echo", (request, response) ->
+                    readJsonBody(request, Todo.class).whenComplete((todo, failure) -> {
+                        if(failure != null){
+                            failed.incrementAndGet();
+                            return;
+                        }
+                        try {
+                            toTextResponse(request, response, (todo == null) ? "empty" : todo.id + " " + todo.title);
+                        } catch (IOException e) {
+                            request.getAsyncContext().complete();
+                        }
+                    }));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        failed.set(0);
+        server = new TestServer(new BodyEndpoints()).start();
+        server.handler.setMaxBodySize(64);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void slow_chunked_body_test() throws Exception {
+        LocalConnector.LocalEndPoint endPoint = server.connector().executeRequest("POST /body/echo HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n");
+        for(String piece : new String[]{"{\"id\":", "7,\"tit", "le\":\"milk\"", "}"}){
+            Thread.sleep(50);
+            endPoint.addInput(Integer.toHexString(piece.length()) + "\r\n" + piece + "\r\n");
+        }
+        endPoint.addInput("0\r\n\r\n");
+        TestServer.Reply reply = reply(endPoint.waitForResponse(false, 5, TimeUnit.SECONDS));
+        assertEquals(200, reply.status);
+        assertEquals("7 milk", reply.text());
+    }
+
+    @Test
+    public void empty_body_test() throws Exception {
+        TestServer.Reply reply = server.request("POST", "/body/echo", "Content-Type: application/json\r\n", new byte[0]);
+        assertEquals(200, reply.status);
+        assertEquals("empty", reply.text());
+    }
+
+    @Test
+    public void payload_too_large_test() throws Exception {
+        byte[] big = ("{\"id\":1,\"title\":\"" + new String(new char[100]).replace('\0', 'x') + "\"}").getBytes(StandardCharsets.UTF_8);
+        TestServer.Reply declared = server.request("POST", "/body/echo", "Content-Type: application/json\r\n", big);
+        assertEquals(413, declared.status);
+        assertTrue(declared.text().contains("\"code\":413"));
+
+        /* without a Content-Length the body is rejected once it goes past the limit */
+        String chunked = "POST /body/echo HTTP/1.1\r\nHost: localhost\r\nContent-Type: application/json\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + Integer.toHexString(big.length) + "\r\n" + new String(big, StandardCharsets.UTF_8) + "\r\n0\r\n\r\n";
+        TestServer.Reply streamed = server.exchange(chunked.getBytes(StandardCharsets.UTF_8));
+        assertEquals(413, streamed.status);
+        assertTrue(streamed.text().contains("exceeds the max size of 64 bytes"));
+        /* the stage of the Action fails right after the 413 is sent */
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(1);
+        while(failed.get() < 2 && System.nanoTime() < until) Thread.sleep(10);
+        assertEquals(2, failed.get());
+    }
+
+    private static TestServer.Reply reply(ByteBuffer response){
+        byte[] bytes = new byte[response.remaining()];
+        response.get(bytes);
+        return new TestServer.Reply(bytes);
+    }
+}
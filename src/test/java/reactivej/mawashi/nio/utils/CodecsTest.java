@@ -0,0 +1,198 @@
+package reactivej.mawashi.nio.utils;
+
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CodecsTest {
+
+    TestServer server;
+    static List<Todo> todos = new ArrayList<>();
+
+    static class Todo {
+        long id;
+        String title;
+        double progress;
+        boolean done;
+        List<String> tags;
+
+        Todo(){}
+
+        Todo(long id, String title, double progress, boolean done, String... tags) {
+            this.id = id;
+            this.title = title;
+            this.progress = progress;
+            this.done = done;
+            this.tags = Arrays.asList(tags);
+        }
+    }
+
+    static class NegotiatedEndpoints extends Endpoints {
+        NegotiatedEndpoints(){
+            setEndpoint(HttpMethod.GET, "/negotiated/todos", (request, response) -> toNegotiatedResponse(request, response, todos));
+            setEndpoint(HttpMethod.GET, "/negotiated/json-only", (request, response) -> toNegotiatedResponse(request, response, todos)).produces("application/json");
+            setEndpoint(HttpMethod.POST, "/negotiated/todos", (request, response) ->
+                    readNegotiatedBody(request, new TypeToken<List<Todo>>(){}).thenAccept(body -> {
+                        try {
+                            toNegotiatedResponse(request, response, body.size() + " " + body.get(1).title);
+                        } catch (IOException e) {
+                            request.getAsyncContext().complete();
+                        }
+                    }));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        todos.clear();
+        for(int i=0; i<100; i++) todos.add(new Todo(i, "todo n\u00b0" + i, i / 4.0, i % 2 == 0, "home", "work"));
+        server = new TestServer(new NegotiatedEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void accept_ranking_test(){
+        JsonConverter json = JsonConverter.getInstance();
+        Codecs codecs = new Codecs(new JsonCodec(json), new XmlCodec(XmlConverter.getInstance()), new CborCodec(json));
+        assertEquals(JsonCodec.MEDIA_TYPE, codecs.negotiate(null, new String[0]).getMediaType());
+        assertEquals(JsonCodec.MEDIA_TYPE, codecs.negotiate("*/*", new String[0]).getMediaType());
+        assertEquals(CborCodec.MEDIA_TYPE, codecs.negotiate("application/cbor, application/json;q=0.9", new String[0]).getMediaType());
+        assertEquals(XmlCodec.MEDIA_TYPE, codecs.negotiate("application/*;q=0.5, application/xml", new String[0]).getMediaType());
+        assertEquals(CborCodec.MEDIA_TYPE, codecs.negotiate("application/*, application/xml;q=0.1", new String[]{"application/xml", "application/cbor"}).getMediaType());
+        assertEquals(CborCodec.MEDIA_TYPE, codecs.negotiate("*/*", new String[]{"text/plain", "application/cbor"}).getMediaType());
+        assertNull(codecs.negotiate("text/html", new String[0]));
+        assertNull(codecs.negotiate("application/cbor", new String[]{"application/json"}));
+        assertSame(codecs.rank("application/cbor"), codecs.rank("application/cbor"));
+    }
+
+    @Test
+    public void cbor_encoding_test() throws IOException {
+        /* RFC 8949 appendix A */
+        assertEquals("00", cborOf(0L));
+        assertEquals("17", cborOf(23L));
+        assertEquals("1818", cborOf(24L));
+        assertEquals("1903e8", cborOf(1000L));
+        assertEquals("3903e7", cborOf(-1000L));
+        assertEquals("1b000000e8d4a51000", cborOf(1000000000000L));
+        assertEquals("fb3ff199999999999a", cborOf(1.1));
+        assertEquals("fa47c35000", cborOf(100000.0));
+        assertEquals("f5", cborOf(true));
+        assertEquals("6449455446", cborOf("IETF"));
+        assertEquals("62c3bc", cborOf("\u00fc"));
+        assertEquals("9f010203ff", cborOf(Arrays.asList(1, 2, 3)));
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("a", 1);
+        map.put("b", null);
+        assertEquals("bf616101ff", cborOf(map));
+    }
+
+    @Test
+    public void cbor_round_trip_test() throws IOException {
+        CborCodec cbor = new CborCodec(JsonConverter.getInstance());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        cbor.encode(todos, out);
+        String json = JsonConverter.getInstance().getJsonOf(todos);
+        assertTrue(out.size() < json.getBytes(StandardCharsets.UTF_8).length * 3 / 4);
+        Object decoded = cbor.decode(new ByteArrayInputStream(out.toByteArray()), new TypeToken<List<Todo>>(){}.getType());
+        assertEquals(json, JsonConverter.getInstance().getJsonOf(decoded));
+
+        /* definite lengths, integer keys, tags and half floats written by other encoders */
+        byte[] foreign = hex("a2" + "01" + "c1" + "f93e00" + "02" + "83" + "20" + "f6" + "4201ff");
+        Map<Integer, Object> parsed = (Map<Integer, Object>) cbor.decode(new ByteArrayInputStream(foreign), new TypeToken<Map<Integer, Object>>(){}.getType());
+        assertEquals(1.5, parsed.get(1));
+        assertEquals(Arrays.asList(-1.0, null, Arrays.asList(1.0, -1.0)), parsed.get(2));
+        assertNull(cbor.decode(new ByteArrayInputStream(new byte[0]), Todo.class));
+    }
+
+    @Test
+    public void cbor_untrusted_input_test() throws IOException {
+        CborCodec cbor = new CborCodec(JsonConverter.getInstance());
+        /* unknown fields are skipped, whatever they hold */
+        Todo todo = (Todo) cbor.decode(new ByteArrayInputStream(hex("a3" + "626964" + "07" + "65657874726181a1617880" + "657469746c65" + "626869")), Todo.class);
+        assertEquals(7, todo.id);
+        assertEquals("hi", todo.title);
+        /* a 9 bytes body declaring a 2 GB string ends with the body, without allocating the declared length */
+        for(String lie : new String[]{"5a7ffffff0" + "61", "7a7ffffff0" + "61", "5b7fffffffffffffff", "9b3fffffffffffffff" + "01", "bb3fffffffffffffff" + "6161"}){
+            try {
+                cbor.decode(new ByteArrayInputStream(hex(lie)), Object.class);
+                fail(lie);
+            } catch (JsonSyntaxException e) {
+                //expected
+            }
+        }
+        try {
+            cbor.decode(new ByteArrayInputStream(hex("9f01")), Object.class);
+            fail("a truncated document is not an empty one");
+        } catch (JsonSyntaxException e) {
+            //expected
+        }
+        try {
+            cbor.decode(new ByteArrayInputStream(hex("0102")), Object.class);
+            fail("trailing content");
+        } catch (JsonSyntaxException e) {
+            //expected
+        }
+    }
+
+    @Test
+    public void negotiated_response_test() throws Exception {
+        TestServer.Reply json = request("GET", "/negotiated/todos", "application/xml;q=0.5, application/json", null, null);
+        assertEquals(200, json.status);
+        assertEquals("application/json", json.header("Content-Type"));
+        assertEquals(JsonConverter.getInstance().getJsonOf(todos), new String(json.body, StandardCharsets.UTF_8));
+
+        TestServer.Reply cbor = request("GET", "/negotiated/todos", "application/cbor", null, null);
+        assertEquals("application/cbor", cbor.header("Content-Type"));
+        assertTrue(cbor.header("Vary").contains("Accept"));
+        Object decoded = new CborCodec(JsonConverter.getInstance()).decode(new ByteArrayInputStream(cbor.body), new TypeToken<List<Todo>>(){}.getType());
+        assertEquals(JsonConverter.getInstance().getJsonOf(todos), JsonConverter.getInstance().getJsonOf(decoded));
+
+        assertEquals(406, request("GET", "/negotiated/json-only", "application/cbor", null, null).status);
+        assertEquals(200, request("GET", "/negotiated/json-only", "*/*", null, null).status);
+    }
+
+    @Test
+    public void negotiated_body_test() throws Exception {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        new CborCodec(JsonConverter.getInstance()).encode(todos, body);
+        TestServer.Reply response = request("POST", "/negotiated/todos", "application/json", "application/cbor", body.toByteArray());
+        assertEquals(200, response.status);
+        assertEquals("\"100 todo n\u00b01\"", new String(response.body, StandardCharsets.UTF_8));
+    }
+
+    private TestServer.Reply request(String method, String path, String accept, String contentType, byte[] body) throws Exception {
+        return server.request(method, path, "Accept: " + accept + "\r\n" + ((body != null) ? "Content-Type: " + contentType + "\r\n" : ""), body);
+    }
+
+    private static String cborOf(Object value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new CborCodec(JsonConverter.getInstance()).encode(value, out);
+        StringBuilder hex = new StringBuilder();
+        for(byte b : out.toByteArray()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    private static byte[] hex(String hex){
+        byte[] bytes = new byte[hex.length() / 2];
+        for(int i=0; i<bytes.length; i++) bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        return bytes;
+    }
+}
@@ -0,0 +1,97 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    TestServer server;
+    static List<String> todos = new ArrayList<>();
+
+    static class CompressedEndpoints extends Endpoints {
+        CompressedEndpoints(){
+            for(int i=0; i<5000; i++) todos.add("todo number " + i);
+            setEndpoint("/compressed/todos", (request, response) -> toJsonResponse(request, response, todos));
+            setEndpoint("/compressed/static", (request, response) -> toJsonResponse(request, response, todos)).precompressed();
+            setEndpoint("/compressed/small", (request, response) -> toJsonResponse(request, response, "ok"));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        todos.clear();
+        server = new TestServer(new CompressedEndpoints()).start();
+        server.handler.setCompression(new Compression().minSize(1024));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void accept_encoding_test(){
+        assertEquals("gzip", Compression.encodingOf("gzip, deflate, br"));
+        assertEquals("deflate", Compression.encodingOf("gzip;q=0, deflate"));
+        assertEquals("gzip", Compression.encodingOf("*"));
+        assertNull(Compression.encodingOf("identity"));
+        assertNull(Compression.encodingOf(null));
+    }
+
+    @Test
+    public void gzip_test() throws Exception {
+        String expected = JsonConverter.getInstance().getJsonOf(todos);
+        byte[] compressed = get("/compressed/todos", "gzip", "Content-Encoding: gzip");
+        assertTrue(compressed.length < expected.length() / 4);
+        assertEquals(expected, new String(readAll(new GZIPInputStream(new ByteArrayInputStream(compressed))), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void deflate_test() throws Exception {
+        String expected = JsonConverter.getInstance().getJsonOf(todos);
+        byte[] compressed = get("/compressed/todos", "deflate", "Content-Encoding: deflate");
+        assertEquals(expected, new String(readAll(new InflaterInputStream(new ByteArrayInputStream(compressed))), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void precompressed_test() throws Exception {
+        byte[] first = get("/compressed/static", "gzip", "Content-Length:");
+        byte[] second = get("/compressed/static", "gzip", "Content-Length:");
+        assertArrayEquals(first, second);
+        assertEquals(JsonConverter.getInstance().getJsonOf(todos), new String(readAll(new GZIPInputStream(new ByteArrayInputStream(second))), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void min_size_test() throws Exception {
+        assertEquals("\"ok\"", new String(get("/compressed/small", "gzip", "Content-Length: 4"), StandardCharsets.UTF_8));
+    }
+
+    /* body of the response, which must contain the header */
+    private byte[] get(String path, String acceptEncoding, String header) throws Exception {
+        TestServer.Reply reply = server.request("GET", path, "Accept-Encoding: " + acceptEncoding + "\r\n");
+        assertEquals(200, reply.status);
+        assertTrue(reply.head, reply.head.contains(header));
+        return reply.body;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int read;
+        while((read = in.read(buffer)) > 0) out.write(buffer, 0, read);
+        return out.toByteArray();
+    }
+}
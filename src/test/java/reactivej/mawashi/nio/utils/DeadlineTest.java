@@ -0,0 +1,75 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DeadlineTest {
+
+    TestServer server;
+    static volatile CountDownLatch cancelled;
+    static volatile CountDownLatch dropped;
+
+    static class SlowEndpoints extends Endpoints {
+        SlowEndpoints(){
+            setEndpoint(HttpMethod.GET, "/deadline/never", (request, response) -> {
+                getDeadline(request).onCancel(cancelled::countDown);
+            }).timeout(200);
+            setEndpoint(HttpMethod.GET, "/deadline/late", (request, response) -> {
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(300);
+                        toJsonResponse(request, response, "too late");
+                        dropped.countDown();
+                    } catch (Exception e) {
+                        //the test fails on the latch
+                    }
+                }).start();
+            });
+            setEndpoint(HttpMethod.GET, "/deadline/fast", (request, response) -> {
+                getDeadline(request).onCancel(cancelled::countDown);
+                toJsonResponse(request, response, "fast");
+            }).timeout(200);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        cancelled = new CountDownLatch(1);
+        dropped = new CountDownLatch(1);
+        server = new TestServer(new SlowEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void endpoint_timeout_test() throws Exception {
+        long start = System.nanoTime();
+        String response = server.get("/deadline/never", "");
+        assertTrue(response.startsWith("HTTP/1.1 504"));
+        assertTrue(response.contains("\"code\":504"));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 5000);
+        assertTrue(cancelled.await(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void deadline_header_and_late_response_test() throws Exception {
+        assertTrue(server.get("/deadline/late", "X-Request-Timeout: 100\r\n").startsWith("HTTP/1.1 504"));
+        /* the response attempted after the expiry is dropped without failing */
+        assertTrue(dropped.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void response_disarms_the_deadline_test() throws Exception {
+        assertTrue(server.get("/deadline/fast", "").endsWith("\"fast\""));
+        assertFalse(cancelled.await(400, TimeUnit.MILLISECONDS));
+    }
+}
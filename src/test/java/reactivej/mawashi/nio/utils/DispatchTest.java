@@ -0,0 +1,106 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DispatchTest {
+
+    TestServer server;
+    static volatile Thread actor;
+
+    static class ThreadEndpoints extends Endpoints {
+        ThreadEndpoints(){
+            Action thread = (request, response) -> {
+                actor = Thread.currentThread();
+                toJsonResponse(request, response, actor.getName());
+            };
+            setEndpoint(HttpMethod.GET, "/dispatch/inline", thread).dispatch(DispatchMode.INLINE);
+            setEndpoint(HttpMethod.GET, "/dispatch/executor", thread).dispatch(DispatchMode.EXECUTOR);
+            setEndpoint(HttpMethod.GET, "/dispatch/virtual", thread).dispatch(DispatchMode.VIRTUAL_THREAD);
+            setEndpoint(HttpMethod.GET, "/dispatch/default", thread);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        actor = null;
+        server = new TestServer(new ThreadEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void dispatch_modes_test() throws Exception {
+        assertTrue(server.get("/dispatch/inline").contains("\"qtp"));
+        assertTrue(server.get("/dispatch/default").contains("\"qtp"));
+        assertTrue(server.get("/dispatch/executor").contains("\"reactivej-dispatch-"));
+        /* a virtual thread has no name, before JDK 21 the bounded executor runs the action */
+        String virtual = server.get("/dispatch/virtual");
+        assertTrue(virtual.endsWith("\"\"") || virtual.contains("\"reactivej-dispatch-"));
+
+        server.handler.setDispatchMode(DispatchMode.EXECUTOR);
+        assertTrue(server.get("/dispatch/default").contains("\"reactivej-dispatch-"));
+        assertTrue(server.get("/dispatch/inline").contains("\"qtp"));
+    }
+
+    @Test
+    public void rejected_dispatch_test() throws Exception {
+        ExecutorService closed = Executors.newSingleThreadExecutor();
+        closed.shutdown();
+        server.handler.setDispatchExecutor(closed);
+        TestServer.Reply reply = server.request("GET", "/dispatch/executor", "");
+        assertEquals(503, reply.status);
+        assertEquals("1", reply.header("Retry-After"));
+        assertTrue(reply.text().contains("\"code\":503"));
+        assertNull(actor);
+    }
+
+    @Test
+    public void shutdown_stops_the_executors_test() throws Exception {
+        assertTrue(server.get("/dispatch/executor").contains("\"reactivej-dispatch-"));
+        Thread dispatcher = actor;
+        server.stop();
+        dispatcher.join(TimeUnit.SECONDS.toMillis(5));
+        assertFalse(dispatcher.isAlive());
+
+        /* the executor of the caller is left running, the handler creates its own again once restarted */
+        ExecutorService own = Executors.newSingleThreadExecutor();
+        try {
+            server.handler.setDispatchExecutor(own);
+            server.start();
+            assertTrue(server.get("/dispatch/executor").contains("\"pool-"));
+            server.stop();
+            assertFalse(own.isShutdown());
+        } finally {
+            own.shutdown();
+        }
+        server.handler.setDispatchExecutor(null);
+        server.start();
+    }
+
+    @Test
+    public void swapped_executor_test() throws Exception {
+        Assume.assumeTrue("virtual threads fall back to the bounded executor before JDK 21", server.get("/dispatch/virtual").contains("\"reactivej-dispatch-"));
+        ExecutorService own = Executors.newSingleThreadExecutor();
+        try {
+            server.handler.setDispatchExecutor(own);
+            assertTrue(server.get("/dispatch/virtual").contains("\"pool-"));
+            assertTrue(server.get("/dispatch/executor").contains("\"pool-"));
+        } finally {
+            server.handler.setDispatchExecutor(null);
+            own.shutdown();
+        }
+        assertTrue(server.get("/dispatch/virtual").contains("\"reactivej-dispatch-"));
+    }
+}
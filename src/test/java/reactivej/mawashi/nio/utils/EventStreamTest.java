@@ -0,0 +1,70 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class EventStreamTest {
+
+    TestServer server;
+    static CountDownLatch closed;
+
+    static class StreamEndpoints extends Endpoints {
+        StreamEndpoints(){
+            setEndpoint("/events/sse", (request, response) -> {
+                EventStream stream = toEventStream(request, response).onClose(() -> closed.countDown());
+                new Thread(() -> {
+                    stream.send("hello\nworld");
+                    stream.send("todo", Collections.singletonMap("id", 1));
+                    stream.complete();
+                }).start();
+            });
+            setEndpoint("/events/ndjson", (request, response) -> {
+                EventStream stream = toNdjsonStream(request, response).onClose(() -> closed.countDown());
+                new Thread(() -> {
+                    stream.send(Collections.singletonMap("id", 1));
+                    stream.send(Collections.singletonMap("id", 2));
+                    stream.complete();
+                }).start();
+            });
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        closed = new CountDownLatch(1);
+        server = new TestServer(new StreamEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void server_sent_events_test() throws Exception {
+        String response = server.get("/events/sse");
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.contains("Content-Type: text/event-stream;charset=utf-8"));
+        assertTrue(response.contains("data: hello\ndata: world\n\n"));
+        assertTrue(response.contains("event: todo\ndata: {\"id\":1}\n\n"));
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void ndjson_test() throws Exception {
+        String response = server.get("/events/ndjson");
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.contains("Content-Type: application/x-ndjson"));
+        assertTrue(response.contains("{\"id\":1}\n"));
+        assertTrue(response.contains("{\"id\":2}\n"));
+        assertTrue(response.indexOf("{\"id\":1}") < response.indexOf("{\"id\":2}"));
+        assertTrue(closed.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,125 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class FileResponseTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    TestServer server;
+    static volatile Path small;
+    static volatile Path big;
+    static volatile MappedByteBuffer mapped;
+
+    static class FileEndpoints extends Endpoints {
+        FileEndpoints(){
+            setEndpoint(HttpMethod.GET, "/files/small", (request, response) -> toFileResponse(request, response, small, "application/octet-stream"));
+            setEndpoint(HttpMethod.GET, "/files/big", (request, response) -> toFileResponse(request, response, big, "application/octet-stream"));
+            setEndpoint(HttpMethod.GET, "/files/mapped", (request, response) -> toMappedResponse(request, response, mapped, "application/octet-stream"));
+            setEndpoint(HttpMethod.GET, "/files/missing", (request, response) -> toFileResponse(request, response, small.resolveSibling("missing.bin")));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        small = write(folder.newFile("small.bin").toPath(), 10_000);
+        big = write(folder.newFile("big.bin").toPath(), 100_000);
+        try (FileChannel channel = FileChannel.open(small, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, 10_000);
+        }
+        server = new TestServer(new FileEndpoints()).start();
+        server.handler.setFileCache(4, 64 * 1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void whole_file_test() throws Exception {
+        for(String path : new String[]{"/files/small", "/files/big", "/files/mapped"}){
+            TestServer.Reply reply = get(path, "");
+            assertEquals(200, reply.status);
+            assertEquals("bytes", reply.header("Accept-Ranges"));
+            assertArrayEquals(Files.readAllBytes(path.equals("/files/big") ? big : small), reply.body);
+        }
+        assertNotNull(get("/files/small", "").header("ETag"));
+        assertNotNull(get("/files/big", "").header("Last-Modified"));
+        assertEquals(404, get("/files/missing", "").status);
+        TestServer.Reply head = server.request("HEAD", "/files/big", "");
+        assertEquals(200, head.status);
+        assertEquals("100000", head.header("Content-Length"));
+    }
+
+    @Test
+    public void range_test() throws Exception {
+        byte[] content = Files.readAllBytes(small);
+        TestServer.Reply middle = get("/files/small", "Range: bytes=10-19\r\n");
+        assertEquals(206, middle.status);
+        assertEquals("bytes 10-19/10000", middle.header("Content-Range"));
+        assertArrayEquals(Arrays.copyOfRange(content, 10, 20), middle.body);
+
+        assertArrayEquals(Arrays.copyOfRange(content, 9995, 10000), get("/files/small", "Range: bytes=-5\r\n").body);
+        assertArrayEquals(Arrays.copyOfRange(content, 9990, 10000), get("/files/mapped", "Range: bytes=9990-\r\n").body);
+        byte[] bigContent = Files.readAllBytes(big);
+        TestServer.Reply tail = get("/files/big", "Range: bytes=50000-99999\r\n");
+        assertEquals(206, tail.status);
+        assertArrayEquals(Arrays.copyOfRange(bigContent, 50000, 100000), tail.body);
+
+        TestServer.Reply unsatisfiable = get("/files/small", "Range: bytes=20000-\r\n");
+        assertEquals(416, unsatisfiable.status);
+        assertEquals("bytes */10000", unsatisfiable.header("Content-Range"));
+
+        String etag = get("/files/small", "").header("ETag");
+        assertEquals(206, get("/files/small", "Range: bytes=0-9\r\nIf-Range: " + etag + "\r\n").status);
+        assertEquals(200, get("/files/small", "Range: bytes=0-9\r\nIf-Range: \"stale\"\r\n").status);
+        assertEquals(200, get("/files/mapped", "Range: bytes=0-9\r\nIf-Range: " + etag + "\r\n").status);
+        assertEquals(200, get("/files/small", "Range: bytes=0-9,20-29\r\n").status);
+    }
+
+    @Test
+    public void range_parsing_test(){
+        assertArrayEquals(new long[]{0, 99}, FileResponse.range("bytes=0-", 100));
+        assertArrayEquals(new long[]{90, 99}, FileResponse.range("bytes=90-200", 100));
+        assertArrayEquals(new long[]{0, 99}, FileResponse.range("bytes=-500", 100));
+        assertEquals(0, FileResponse.range("bytes=100-", 100).length);
+        assertEquals(0, FileResponse.range("bytes=-0", 100).length);
+        assertNull(FileResponse.range("bytes=5-1", 100));
+        assertNull(FileResponse.range("items=0-1", 100));
+        assertNull(FileResponse.range("bytes=a-b", 100));
+    }
+
+    @Test
+    public void changed_file_test() throws Exception {
+        assertEquals(10_000, get("/files/small", "").body.length);
+        Files.write(small, "changed".getBytes(StandardCharsets.UTF_8));
+        assertTrue(small.toFile().setLastModified(System.currentTimeMillis() + 5000));
+        assertEquals("changed", new String(get("/files/small", "").body, StandardCharsets.UTF_8));
+    }
+
+    private static Path write(Path file, int size) throws Exception {
+        byte[] bytes = new byte[size];
+        for(int i=0; i<size; i++) bytes[i] = (byte) (i * 31 + i / 256);
+        return Files.write(file, bytes);
+    }
+
+    private TestServer.Reply get(String path, String headers) throws Exception {
+        return server.request("GET", path, headers);
+    }
+}
@@ -1,6 +1,15 @@
 package reactivej.mawashi.nio.utils;
 
+import com.google.gson.JsonSyntaxException;
+import com.google.gson.reflect.TypeToken;
 import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
 import static org.junit.Assert.*;
 
 public class JsonConverterTest {
@@ -14,6 +23,50 @@ public class JsonConverterTest {
         assertEquals(jsonString, "{\"attribute1\":1,\"attribute2\":\"hello world\"}");
     }
 
+    @Test
+    public void write_to_pooled_buffer_test() throws IOException {
+        PooledBuffer buffer = PooledBuffer.acquire();
+        jsonConverter.writeJsonOf(new CustomObject(2, "h\u00e9llo"), buffer.writer());
+        assertEquals("{\"attribute1\":2,\"attribute2\":\"h\u00e9llo\"}", new String(buffer.toByteArray(), StandardCharsets.UTF_8));
+        buffer.release();
+    }
+
+    @Test
+    public void generic_type_test() throws IOException {
+        TypeToken<List<Todo>> type = new TypeToken<List<Todo>>(){};
+        List<Todo> todos = (List<Todo>) jsonConverter.getDataFrom(utf8("[{\"id\":1,\"title\":\"first\"},{\"id\":2,\"title\":\"second\"}]"), type);
+        assertEquals(2, todos.size());
+        assertEquals("second", todos.get(1).title);
+        assertEquals("[{\"id\":1,\"title\":\"first\"},{\"id\":2,\"title\":\"second\"}]", jsonConverter.getJsonOf(todos));
+        assertSame(jsonConverter.getAdapter(type), jsonConverter.getAdapter(type.getType()));
+    }
+
+    @Test
+    public void same_errors_as_gson_test() throws IOException {
+        assertNull(jsonConverter.getDataFrom(utf8(""), Todo.class));
+        try {
+            jsonConverter.getDataFrom(utf8("{\"id\":\"one\"}"), Todo.class);
+            fail();
+        } catch (JsonSyntaxException e){
+            //expected
+        }
+        try {
+            jsonConverter.getDataFrom(utf8("{\"id\":1} {\"id\":2}"), Todo.class);
+            fail();
+        } catch (RuntimeException e){
+            assertTrue(e.getMessage().contains("not fully consumed"));
+        }
+    }
+
+    private static InputStream utf8(String json){
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static class Todo {
+        int id;
+        String title;
+    }
+
     class CustomObject {
         private int attribute1;
         private String attribute2;
@@ -0,0 +1,214 @@
+package reactivej.mawashi.nio.utils;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.util.BufferUtil;
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+import static org.junit.Assert.*;
+
+public class JsonStreamWriterTest {
+
+    TestServer server;
+    static volatile Object publisher;
+
+    static class StreamEndpoints extends Endpoints {
+        StreamEndpoints(){
+            setEndpoint("/stream/published", (request, response) -> toJsonStream(request, response, publisher));
+            setEndpoint("/stream/submitted", (request, response) -> {
+                toJsonStream(request, response, publisher);
+                new Thread(() -> {
+                    try {
+                        Method submit = publisher.getClass().getMethod("submit", Object.class);
+                        for(int i=0; i<10000; i++) submit.invoke(publisher, i);
+                        publisher.getClass().getMethod("close").invoke(publisher);
+                    } catch (ReflectiveOperationException e) {
+                        //the test fails on the missing elements
+                    }
+                }).start();
+            });
+            setEndpoint("/stream/numbers", (request, response) -> toJsonStream(request, response, IntStream.range(0, 10000).iterator()));
+            setEndpoint("/stream/empty", (request, response) -> toJsonStream(request, response, Collections.emptyIterator()));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer(new StreamEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void stream_iterator_test() throws Exception {
+        String response = server.get("/stream/numbers");
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.contains("Transfer-Encoding: chunked"));
+        Integer[] numbers = (Integer[]) JsonConverter.getInstance().gson.fromJson(bodyOf(response), Integer[].class);
+        assertEquals(10000, numbers.length);
+        assertEquals(9999, (int) numbers[9999]);
+    }
+
+    @Test
+    public void stream_empty_test() throws Exception {
+        String response = server.get("/stream/empty");
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertEquals("[]", bodyOf(response));
+    }
+
+    @Test
+    public void submission_publisher_test() throws Exception {
+        Class<?> type;
+        try {
+            type = Class.forName("java.util.concurrent.SubmissionPublisher");
+        } catch (ClassNotFoundException e) {
+            type = null;
+        }
+        Assume.assumeNotNull(type);
+        publisher = type.getConstructor().newInstance();
+        String response = server.get("/stream/submitted");
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        Integer[] numbers = (Integer[]) JsonConverter.getInstance().gson.fromJson(bodyOf(response), Integer[].class);
+        assertEquals(10000, numbers.length);
+        assertEquals(9999, (int) numbers[9999]);
+    }
+
+    @Test
+    public void reactive_streams_publisher_test() throws Exception {
+        CountingPublisher counting = new CountingPublisher(1000, null);
+        publisher = counting;
+        String response = server.get("/stream/published");
+        Integer[] numbers = (Integer[]) JsonConverter.getInstance().gson.fromJson(bodyOf(response), Integer[].class);
+        assertEquals(1000, numbers.length);
+        assertEquals(999, (int) numbers[999]);
+        /* the writer subscribes through a proxy of the org.reactivestreams interface */
+        assertTrue(Proxy.isProxyClass(counting.subscriber.getClass()));
+        assertFalse(counting.cancelled);
+    }
+
+    @Test
+    public void demand_follows_the_client_test() throws Exception {
+        CountingPublisher counting = new CountingPublisher(Long.MAX_VALUE, null);
+        publisher = counting;
+        LocalConnector.LocalEndPoint endPoint = server.connector().connect();
+        endPoint.setGrowOutput(false);
+        endPoint.addInputAndExecute(BufferUtil.toBuffer("GET /stream/published HTTP/1.1\r\nHost: localhost\r\n\r\n"));
+
+        /* the client doesn't read: the output stream stops being ready and the publisher is asked nothing more */
+        long stalled = awaitStable(counting.requested);
+        assertTrue(stalled > 0);
+        Thread.sleep(200);
+        assertEquals(stalled, counting.requested.get());
+
+        /* the client reads: the publisher is asked for more once the pending writes are through */
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(counting.requested.get() == stalled && System.nanoTime() < until){
+            endPoint.takeOutput();
+            Thread.sleep(10);
+        }
+        assertTrue(counting.requested.get() > stalled);
+
+        /* the client goes away: the subscription is cancelled */
+        endPoint.close();
+        until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!counting.cancelled && System.nanoTime() < until) Thread.sleep(10);
+        assertTrue(counting.cancelled);
+    }
+
+    @Test
+    public void publisher_error_aborts_the_response_test() throws Exception {
+        /* enough elements for the response to be committed before the failure */
+        publisher = new CountingPublisher(20000, new IllegalStateException("broken source"));
+        LocalConnector.LocalEndPoint endPoint = server.connector().executeRequest("GET /stream/published HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        endPoint.waitUntilClosedOrIdleFor(5, TimeUnit.SECONDS);
+        assertFalse(endPoint.isOpen());
+        String response = endPoint.takeOutputString(StandardCharsets.ISO_8859_1);
+        assertTrue(response.startsWith("HTTP/1.1 200"));
+        assertTrue(response.contains("[0,1,2,"));
+        /* no closing bracket nor last chunk: the client can't take the truncated array for a complete one */
+        assertFalse(response.contains("]"));
+        assertFalse(response.endsWith("0\r\n\r\n"));
+    }
+
+    /* waits until the value is positive and stays the same for 100 ms */
+    private static long awaitStable(AtomicLong value) throws InterruptedException {
+        long until = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        long last = -1;
+        while(System.nanoTime() < until){
+            Thread.sleep(100);
+            long current = value.get();
+            if(current > 0 && current == last) return current;
+            last = current;
+        }
+        return last;
+    }
+
+    /* emits one number per requested element, up to its size, then completes or fails; the demand is recorded */
+    static class CountingPublisher implements Publisher<Integer> {
+        final long size;
+        final Throwable failure;
+        final AtomicLong requested = new AtomicLong();
+        volatile boolean cancelled;
+        volatile Subscriber<? super Integer> subscriber;
+
+        CountingPublisher(long size, Throwable failure) {
+            this.size = size;
+            this.failure = failure;
+        }
+
+        @Override
+        public void subscribe(Subscriber<? super Integer> s) {
+            subscriber = s;
+            s.onSubscribe(new Subscription() {
+                long emitted;
+                boolean done;
+
+                @Override
+                public synchronized void request(long n) {
+                    requested.addAndGet(n);
+                    for(long i=0; i<n && emitted < size && !cancelled; i++) s.onNext((int) emitted++);
+                    if(emitted == size && !done){
+                        done = true;
+                        if(failure != null) s.onError(failure);
+                        else s.onComplete();
+                    }
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    /* joins the chunks of a chunked response; a short stream may fit in a single write with a Content-Length */
+    private static String bodyOf(String response){
+        StringBuilder body = new StringBuilder();
+        int position = response.indexOf("\r\n\r\n") + 4;
+        if(!response.contains("Transfer-Encoding: chunked")) return response.substring(position);
+        while(true){
+            int lineEnd = response.indexOf("\r\n", position);
+            int size = Integer.parseInt(response.substring(position, lineEnd).trim(), 16);
+            if(size == 0) return body.toString();
+            body.append(response, lineEnd + 2, lineEnd + 2 + size);
+            position = lineEnd + 2 + size + 2;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ResponseCacheTest {
+
+    TestServer server;
+    static AtomicInteger calls = new AtomicInteger();
+    static ResponseCache pages = new ResponseCache(60_000, 2).keyParams("page");
+
+    static class CachedEndpoints extends Endpoints {
+        CachedEndpoints(){
+            setEndpoint(HttpMethod.GET, "/cached/todo/{id}", (request, response) -> {
+                calls.incrementAndGet();
+                toJsonResponse(request, response, "todo " + getPathVariables(request).get("id"));
+            }).cache(60_000, 100);
+            setEndpoint(HttpMethod.GET, "/cached/slow", (request, response) -> {
+                calls.incrementAndGet();
+                new Thread(() -> {
+                    try {
+                        Thread.sleep(300);
+                        toJsonResponse(request, response, "slow");
+                    } catch (Exception e) {
+                        request.getAsyncContext().complete();
+                    }
+                }).start();
+            }).cache(60_000, 100);
+            setEndpoint(HttpMethod.GET, "/cached/pages", (request, response) -> {
+                calls.incrementAndGet();
+                toJsonResponse(request, response, "page " + request.getParameter("page"));
+            }).cache(pages);
+            setEndpoint(HttpMethod.GET, "/cached/negotiated", (request, response) -> {
+                calls.incrementAndGet();
+                toNegotiatedResponse(request, response, "negotiated");
+            }).produces("application/json, application/cbor").cache(60_000, 100);
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        calls.set(0);
+        server = new TestServer(new CachedEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void hit_and_not_modified_test() throws Exception {
+        String first = server.get("/cached/todo/1", "");
+        String second = server.get("/cached/todo/1", "");
+        assertEquals(1, calls.get());
+        assertTrue(first.startsWith("HTTP/1.1 200") && second.startsWith("HTTP/1.1 200"));
+        assertTrue(second.endsWith("\"todo 1\""));
+        String etag = headerOf(first, "ETag");
+        assertNotNull(etag);
+        assertEquals(etag, headerOf(second, "ETag"));
+        assertTrue(headerOf(second, "Cache-Control").startsWith("max-age="));
+
+        assertTrue(server.get("/cached/todo/1", "If-None-Match: " + etag + "\r\n").startsWith("HTTP/1.1 304"));
+        assertTrue(server.get("/cached/todo/2", "").endsWith("\"todo 2\""));
+        assertEquals(2, calls.get());
+    }
+
+    @Test
+    public void key_params_and_eviction_test() throws Exception {
+        assertTrue(server.get("/cached/pages?page=1&ignored=a", "").endsWith("\"page 1\""));
+        assertTrue(server.get("/cached/pages?page=1&ignored=b", "").endsWith("\"page 1\""));
+        assertEquals(1, calls.get());
+        server.get("/cached/pages?page=2", "");
+        server.get("/cached/pages?page=3", "");
+        assertEquals(3, calls.get());
+        assertTrue(pages.size() <= 2);
+    }
+
+    @Test
+    public void coalescing_test() throws Exception {
+        ExecutorService clients = Executors.newFixedThreadPool(10);
+        try {
+            List<Future<String>> responses = new ArrayList<>();
+            for(int i=0; i<10; i++) responses.add(clients.submit(() -> server.get("/cached/slow", "")));
+            for(Future<String> response : responses) assertTrue(response.get(5, TimeUnit.SECONDS).endsWith("\"slow\""));
+            assertEquals(1, calls.get());
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    @Test
+    public void waiter_leaves_on_its_deadline_test() throws Exception {
+        ExecutorService clients = Executors.newSingleThreadExecutor();
+        try {
+            Future<String> leader = clients.submit(() -> server.get("/cached/slow", ""));
+            long deadline = System.currentTimeMillis() + 5000;
+            while(calls.get() == 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+
+            assertTrue(server.get("/cached/slow", "X-Request-Timeout: 50\r\n").startsWith("HTTP/1.1 504"));
+            /* the waiter leaves the flight once its exchange is over, before the Action answers */
+            ResponseCache cache = server.handler.match("/cached/slow").getRoute().getCache();
+            while(cache.waiting() > 0 && System.currentTimeMillis() < deadline) Thread.sleep(5);
+            assertEquals(0, cache.waiting());
+            assertFalse(leader.isDone());
+
+            assertTrue(leader.get(5, TimeUnit.SECONDS).endsWith("\"slow\""));
+            assertTrue(server.get("/cached/slow", "").endsWith("\"slow\""));
+            assertEquals(1, calls.get());
+        } finally {
+            clients.shutdown();
+        }
+    }
+
+    @Test
+    public void negotiated_key_test() throws Exception {
+        String cbor = server.get("/cached/negotiated", "Accept: application/cbor\r\n");
+        assertEquals("application/cbor", headerOf(cbor, "Content-Type"));
+        String json = server.get("/cached/negotiated", "Accept: application/json\r\n");
+        assertTrue(json.endsWith("\"negotiated\""));
+        assertTrue(headerOf(json, "Content-Type").startsWith("application/json"));
+        assertEquals(2, calls.get());
+
+        String hit = server.get("/cached/negotiated", "Accept: application/json\r\n");
+        assertEquals(2, calls.get());
+        assertTrue(hit.endsWith("\"negotiated\""));
+        assertEquals("Accept", headerOf(hit, "Vary"));
+        assertEquals("application/cbor", headerOf(server.get("/cached/negotiated", "Accept: application/cbor\r\n"), "Content-Type"));
+        assertEquals(2, calls.get());
+
+        assertTrue(server.get("/cached/negotiated", "Accept: text/html\r\n").startsWith("HTTP/1.1 406"));
+    }
+
+    private static String headerOf(String response, String name){
+        for(String line : response.split("\r\n")){
+            if(line.startsWith(name + ": ")) return line.substring(name.length() + 2);
+        }
+        return null;
+    }
+}
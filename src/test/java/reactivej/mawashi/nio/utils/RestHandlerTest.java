@@ -1,18 +1,21 @@
 package reactivej.mawashi.nio.utils;
 
+import com.google.gson.reflect.TypeToken;
 import org.junit.Before;
 import org.junit.Test;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.lang.reflect.Type;
+import java.util.List;
 import java.util.Map;
 
 import static org.junit.Assert.*;
 
 public class RestHandlerTest {
 
-    RestHandler handler = RestHandler.getInstance();
+    RestHandler handler = new RestHandler();
     Action action;
 
     @Before
@@ -37,4 +40,54 @@ public class RestHandlerTest {
         assertEquals(pathMaps.get("id"), "23");
     }
 
-}
\ No newline at end of file
+    @Test
+    public void republish_after_freeze_test(){
+        Router frozen = handler.freeze();
+        handler.addEndpoint(HttpMethod.GET, "/reloaded/{id}", action).consumes("application/json");
+        assertNotSame(frozen, handler.compileRoutes());
+        assertEquals(action, handler.getEndpointIfMatches("/reloaded/1"));
+        assertFalse(handler.match("/reloaded/1").getRoute().accepts("text/plain"));
+
+        assertTrue(handler.removeEndpoint(HttpMethod.GET, "/reloaded/{id}"));
+        assertEquals(handler.getEndpointIfMatches("/not-found"), handler.getEndpointIfMatches("/reloaded/1"));
+        assertFalse(handler.removeEndpoint(null, "/status"));
+    }
+
+    @Test
+    public void body_adapter_resolved_with_the_routes_test(){
+        Type todos = new TypeToken<List<String>>(){}.getType();
+        handler.addEndpoint(HttpMethod.POST, "/typed/{id}", action).body(todos);
+        Router.Route route = handler.compileRoutes().match("/typed/1").getRoute();
+        assertSame(handler.getJsonConverter().getAdapter(todos), route.getBodyAdapter());
+        assertNull(handler.match("/path/1").getRoute().getBodyAdapter());
+    }
+
+    @Test
+    public void register_binds_the_declared_endpoints_test(){
+        Endpoints endpoints = new Endpoints() {
+            {
+                setEndpoint(HttpMethod.GET, "/declared/{id}", action).timeout(100);
+            }
+        };
+        assertEquals(handler.getEndpointIfMatches("/not-found"), handler.getEndpointIfMatches("/declared/1"));
+        handler.register(endpoints);
+        assertEquals(action, handler.getEndpointIfMatches("/declared/1"));
+        assertEquals(100, handler.match("/declared/1").getRoute().getTimeout());
+        assertEquals(RestHandler.getInstance().getEndpointIfMatches("/not-found"), RestHandler.getInstance().getEndpointIfMatches("/declared/1"));
+    }
+
+    @Test
+    public void unbound_endpoints_use_the_default_handler_test(){
+        Endpoints endpoints = new Endpoints() {
+            {
+                setEndpoint(HttpMethod.GET, "/unbound", action);
+                assertSame(RestHandler.getInstance(), handler);
+                assertEquals("\"built\"", jsonConverter.getJsonOf("built"));
+                assertNotNull(xmlConverter);
+            }
+        };
+        assertEquals(RestHandler.getInstance().getEndpointIfMatches("/not-found"), RestHandler.getInstance().getEndpointIfMatches("/unbound"));
+        handler.register(endpoints);
+        assertEquals(action, handler.getEndpointIfMatches("/unbound"));
+    }
+}
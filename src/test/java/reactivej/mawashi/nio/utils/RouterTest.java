@@ -0,0 +1,76 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class RouterTest {
+
+    Router router;
+    Action byId     = (request, response) -> {};
+    Action byName   = (request, response) -> {};
+    Action comments = (request, response) -> {};
+    Action root     = (request, response) -> {};
+
+    @Before
+    public void setUp(){
+        router = Router.compile(Arrays.asList(
+                new Endpoint("/todo/{id}", byId),
+                new Endpoint("/todo/name", byName),
+                new Endpoint("/todo/{id}/comments/{ commentId }", comments),
+                new Endpoint("/", root)));
+    }
+
+    @Test
+    public void literal_wins_over_param_test(){
+        assertEquals(byName, router.match("/todo/name").getAction());
+        assertEquals(byId, router.match("/todo/23").getAction());
+    }
+
+    @Test
+    public void path_variables_test(){
+        Router.RouteMatch match = router.match("todo/23/comments/7/");
+        assertEquals(comments, match.getAction());
+        assertEquals("/todo/{id}/comments/{ commentId }", match.getTemplate());
+        assertEquals("23", match.getPathVariables().get("id"));
+        assertEquals("7", match.getPathVariables().get("commentId"));
+    }
+
+    @Test
+    public void root_test(){
+        assertEquals(root, router.match("/").getAction());
+    }
+
+    @Test
+    public void method_test(){
+        Action get  = (request, response) -> {};
+        Action post = (request, response) -> {};
+        Router methods = Router.compile(Arrays.asList(
+                new Endpoint(HttpMethod.GET, "/todo/{id}", get),
+                new Endpoint(HttpMethod.POST, "/todo/{id}", post).consumes("application/json, text/*")));
+
+        assertEquals(get, methods.match(HttpMethod.GET, "/todo/1").getAction());
+        assertEquals(get, methods.match(HttpMethod.HEAD, "/todo/1").getAction());
+        assertEquals(post, methods.match(HttpMethod.POST, "/todo/1").getAction());
+
+        Router.RouteMatch notAllowed = methods.match(HttpMethod.DELETE, "/todo/1");
+        assertNull(notAllowed.getRoute());
+        assertEquals("GET, HEAD, POST, OPTIONS", notAllowed.getAllowedMethods());
+        assertNull(methods.match(null, "/todo/1").getRoute());
+
+        Router.Route route = methods.match(HttpMethod.POST, "/todo/1").getRoute();
+        assertTrue(route.accepts("application/json; charset=utf-8"));
+        assertTrue(route.accepts("text/plain"));
+        assertFalse(route.accepts("application/xml"));
+    }
+
+    @Test
+    public void miss_test(){
+        assertNull(router.match("/todo"));
+        assertNull(router.match("/todo/23/comments"));
+        assertNull(router.match("/other/23"));
+    }
+}
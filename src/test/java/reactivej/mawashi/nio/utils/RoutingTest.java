@@ -0,0 +1,69 @@
+package reactivej.mawashi.nio.utils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class RoutingTest {
+
+    TestServer server;
+
+    static class TodoEndpoints extends Endpoints {
+        TodoEndpoints(){
+            setEndpoint(HttpMethod.GET, "/routing/todo/{id}", (request, response) -> toJsonResponse(request, response, "read"));
+            setEndpoint(HttpMethod.PUT, "/routing/todo/{id}", (request, response) -> toJsonResponse(request, response, "updated"))
+                    .consumes("application/json");
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        server = new TestServer(new TodoEndpoints()).start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.stop();
+    }
+
+    @Test
+    public void method_not_allowed_test() throws Exception {
+        TestServer.Reply reply = server.request("DELETE", "/routing/todo/1", "");
+        assertEquals(405, reply.status);
+        assertEquals("GET, HEAD, PUT, OPTIONS", reply.header("Allow"));
+        assertTrue(reply.text().contains("\"code\":405"));
+        assertTrue(reply.text().contains("Method DELETE not allowed"));
+    }
+
+    @Test
+    public void unsupported_media_type_test() throws Exception {
+        byte[] body = "{\"title\":\"milk\"}".getBytes(StandardCharsets.UTF_8);
+        TestServer.Reply reply = server.request("PUT", "/routing/todo/1", "Content-Type: text/plain\r\n", body);
+        assertEquals(415, reply.status);
+        assertTrue(reply.text().contains("Unsupported media type text/plain"));
+        assertEquals("\"updated\"", server.request("PUT", "/routing/todo/1", "Content-Type: application/json\r\n", body).text());
+    }
+
+    @Test
+    public void preflight_test() throws Exception {
+        TestServer.Reply reply = server.request("OPTIONS", "/routing/todo/1",
+                "Origin: http://example.com\r\nAccess-Control-Request-Method: PUT\r\nAccess-Control-Request-Headers: Content-Type\r\n");
+        assertEquals(204, reply.status);
+        assertEquals("GET, HEAD, PUT, OPTIONS", reply.header("Allow"));
+        assertEquals("GET, HEAD, PUT, OPTIONS", reply.header("Access-Control-Allow-Methods"));
+        assertEquals("Content-Type", reply.header("Access-Control-Allow-Headers"));
+        assertEquals("600", reply.header("Access-Control-Max-Age"));
+        assertEquals(0, reply.body.length);
+    }
+
+    @Test
+    public void fallbacks_are_not_routes_test() throws Exception {
+        for(String path : new String[]{"/internal-server-error", "/service-unavailable", "/method-not-allowed", "/unsupported-media-type", "/preflight"}){
+            assertEquals(path, 404, server.request("GET", path, "").status);
+        }
+    }
+}
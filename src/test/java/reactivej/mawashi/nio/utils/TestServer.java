@@ -0,0 +1,119 @@
+package reactivej.mawashi.nio.utils;
+
+import org.eclipse.jetty.server.LocalConnector;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import reactivej.mawashi.nio.servlets.GenericNioServlet;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @author alessandroargentieri
+ *
+ * Jetty on a LocalConnector serving the GenericNioServlet with a RestHandler of its own:
+ * each test builds one in @Before with its endpoints, registered once, and stops it in @After,
+ * so that nothing is left on the default handler for the next test
+ */
+public class TestServer {
+
+    public final RestHandler handler = new RestHandler();
+    private final Server server = new Server();
+    private final LocalConnector connector = new LocalConnector(server);
+
+    public TestServer(Endpoints... endpoints){
+        for(Endpoints e : endpoints) handler.register(e);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler(ServletContextHandler.NO_SESSIONS);
+        context.setAttribute(RestHandler.CONTEXT_ATTRIBUTE, handler);
+        context.addServlet(GenericNioServlet.class, "/*");
+        server.setHandler(context);
+    }
+
+    public TestServer start() throws Exception {
+        server.start();
+        return this;
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+        handler.shutdown();
+    }
+
+    public LocalConnector connector(){
+        return connector;
+    }
+
+    /* the whole raw response, as text */
+    public String get(String path) throws Exception {
+        return get(path, "");
+    }
+
+    /* the headers, each one ending with \r\n, are added to the request */
+    public String get(String path, String headers) throws Exception {
+        return connector.getResponse("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n" + headers + "\r\n", 5, TimeUnit.SECONDS);
+    }
+
+    public Reply request(String method, String path, String headers) throws Exception {
+        return request(method, path, headers, null);
+    }
+
+    /* a Content-Length is added for the body, if any */
+    public Reply request(String method, String path, String headers, byte[] body) throws Exception {
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        String head = method + " " + path + " HTTP/1.1\r\nHost: localhost\r\n" + headers
+                + ((body != null) ? "Content-Length: " + body.length + "\r\n" : "") + "\r\n";
+        raw.write(head.getBytes(StandardCharsets.US_ASCII));
+        if(body != null) raw.write(body);
+        return exchange(raw.toByteArray());
+    }
+
+    /* sends the raw bytes, which can hold a chunked body, and parses the response */
+    public Reply exchange(byte[] raw) throws Exception {
+        ByteBuffer response = connector.getResponse(ByteBuffer.wrap(raw), 5, TimeUnit.SECONDS);
+        byte[] bytes = new byte[response.remaining()];
+        response.get(bytes);
+        return new Reply(bytes);
+    }
+
+    /* status, headers and body of a raw response, chunked or not */
+    public static class Reply {
+        public final int status;
+        public final String head;
+        public final byte[] body;
+
+        public Reply(byte[] bytes){
+            String text = new String(bytes, StandardCharsets.ISO_8859_1);
+            int position = text.indexOf("\r\n\r\n") + 4;
+            head = text.substring(0, position);
+            status = Integer.parseInt(head.substring(9, 12));
+            if(!head.contains("Transfer-Encoding: chunked")){
+                body = Arrays.copyOfRange(bytes, position, bytes.length);
+                return;
+            }
+            ByteArrayOutputStream chunks = new ByteArrayOutputStream();
+            while(true){
+                int lineEnd = text.indexOf("\r\n", position);
+                int size = Integer.parseInt(text.substring(position, lineEnd).trim(), 16);
+                if(size == 0) break;
+                chunks.write(bytes, lineEnd + 2, size);
+                position = lineEnd + 2 + size + 2;
+            }
+            body = chunks.toByteArray();
+        }
+
+        public String header(String name){
+            for(String line : head.split("\r\n")){
+                if(line.startsWith(name + ": ")) return line.substring(name.length() + 2);
+            }
+            return null;
+        }
+
+        public String text(){
+            return new String(body, StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -6,6 +6,15 @@ import javax.xml.bind.annotation.XmlAccessType;
 import javax.xml.bind.annotation.XmlAccessorType;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.*;
 
@@ -24,6 +33,60 @@ public class XmlConverterTest {
                 "</customObject>\n");
     }
 
+    @Test
+    public void round_trip_test() throws IOException {
+        PooledBuffer buffer = PooledBuffer.acquire();
+        xmlConverter.writeXmlOf(new CustomObject(2, "h\u00e9llo"), buffer);
+        CustomObject o = (CustomObject) xmlConverter.getDataFrom(buffer.toInputStream(), CustomObject.class);
+        buffer.release();
+        assertEquals(2, o.getAttribute1());
+        assertEquals("h\u00e9llo", o.getAttribute2());
+    }
+
+    @Test
+    public void alternating_types_test() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for(int t=0; t<4; t++){
+                final int thread = t;
+                futures.add(pool.submit(() -> {
+                    for(int i=0; i<50; i++){
+                        String custom = xmlConverter.getXmlOf(new CustomObject(i, "thread " + thread));
+                        String other = xmlConverter.getXmlOf(new OtherObject("thread " + thread + " item " + i));
+                        assertTrue(custom.contains("<customObject>") && custom.contains("<attribute1>" + i + "</attribute1>"));
+                        assertTrue(other.contains("<otherObject>") && other.contains("<name>thread " + thread + " item " + i + "</name>"));
+                        assertFalse(other.contains("attribute"));
+
+                        PooledBuffer buffer = PooledBuffer.acquire();
+                        xmlConverter.writeXmlOf(new OtherObject("item " + i), buffer);
+                        OtherObject o = (OtherObject) xmlConverter.getDataFrom(buffer.toInputStream(), OtherObject.class);
+                        buffer.release();
+                        assertEquals("item " + i, o.name);
+                        CustomObject c = (CustomObject) xmlConverter.getDataFrom(new ByteArrayInputStream(custom.getBytes(StandardCharsets.UTF_8)), CustomObject.class);
+                        assertEquals(i, c.getAttribute1());
+                    }
+                    return null;
+                }));
+            }
+            for(Future<?> future : futures) future.get(30, TimeUnit.SECONDS);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+}
+
+/* not annotated with @XmlRootElement: wrapped in an element named after the class */
+@XmlAccessorType(XmlAccessType.FIELD)
+class OtherObject {
+    String name;
+
+    public OtherObject(){}
+
+    public OtherObject(String name) {
+        this.name = name;
+    }
 }
 
 @XmlRootElement